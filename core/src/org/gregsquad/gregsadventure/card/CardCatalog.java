@@ -0,0 +1,110 @@
+package org.gregsquad.gregsadventure.card;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @class CardCatalog
+ * @brief The kinds of cards of the game, as described in config.properties.
+ * Every side of the game loads the same configuration, so a card can be designated by its id alone:
+ * the catalog creates the card of an id. Its name holds a checksum of the configuration, two catalogs
+ * with the same name create the same cards.
+ */
+public class CardCatalog {
+    private static CardCatalog instance;
+
+    private final int[] ids;
+    private final String name;
+
+    /**
+     * @brief Private constructor for CardCatalog class.
+     */
+    private CardCatalog() {
+        this.ids = ConfigLoader.getIdArray();
+        this.name = "cards/" + Long.toHexString(checksum());
+    }
+
+    /**
+     * @brief Gets the singleton instance of the CardCatalog class.
+     * @return The CardCatalog instance.
+     */
+    public static synchronized CardCatalog getInstance() {
+        if (instance == null) {
+            instance = new CardCatalog();
+        }
+        return instance;
+    }
+
+    /**
+     * @brief Gets the name of the catalog, exchanged to check that both sides have the same cards.
+     * @return The name of the catalog, with the checksum of the configuration.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @brief Gets the ids of the kinds of cards, in increasing order.
+     * @return The ids of the cards. The array must not be modified.
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @brief Gets the number of copies of a card in a full stack.
+     * @param id The id of the card.
+     * @return The number of copies.
+     */
+    public int getCopies(int id) {
+        return ConfigLoader.getInt(id + "_number");
+    }
+
+    /**
+     * @brief Creates a new card of a kind. Cards can be modified, so every call creates a new one.
+     * @param id The id of the card.
+     * @return The card, or null if the configuration does not describe it.
+     */
+    public Card create(int id) {
+        String key = Integer.toString(id);
+        String type = ConfigLoader.getString(key);
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case "Curse":
+                return new Curse(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getString(key + "_type"), ConfigLoader.getInt(key + "_value"));
+            case "Monster":
+                return new Monster(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_level"), ConfigLoader.getInt(key + "_damage"), ConfigLoader.getInt(key + "_treasure"), ConfigLoader.getString(key + "_incident"));
+            case "Equipement":
+                if(ConfigLoader.isValid(key + "_conditionBonus") && ConfigLoader.isValid(key + "_combo")){
+                    return new Equipement(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_position"), ConfigLoader.getInt(key + "_bonus"), ConfigLoader.getBoolean(key + "_equipementSize"), ConfigLoader.getString(key + "_conditionBonus"), ConfigLoader.getInt(key + "_combo"));
+                }
+                return new Equipement(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_position"), ConfigLoader.getInt(key + "_bonus"), ConfigLoader.getBoolean(key + "_equipementSize"));
+            case "Race":
+                return new Race(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_bonusDamage"), ConfigLoader.getInt(key + "_bonusDice"));
+            case "Class":
+                return new Class(id, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"));
+            default:
+                System.out.println("Error in config file");
+                return null;
+        }
+    }
+
+    /**
+     * @brief Computes a checksum of the whole configuration, keys sorted so the order of the file does not matter.
+     * @return The checksum.
+     */
+    private static long checksum() {
+        List<String> keys = new ArrayList<String>(ConfigLoader.cardsList.keySet());
+        Collections.sort(keys);
+        CRC32 crc = new CRC32();
+        for (String key : keys) {
+            crc.update((key + "=" + ConfigLoader.getString(key) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return crc.getValue();
+    }
+}
@@ -1,39 +1,400 @@
 package org.gregsquad.gregsadventure.card;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-public abstract class CardList implements Serializable {
-    protected LinkedList<Card> cards;
+/**
+ * @class CardList
+ * @brief A list of cards kept in growable arrays: the cards, and their ids as ints next to them.
+ * Searching a card or reading the ids of the list only scans the int array. The arrays are hidden:
+ * the list is read through getCard, iteration, or the read-only view of getCards, and changed
+ * through the methods of the subclasses.
+ * A subclass may store its cards in reverse order, see position. The cards start at an offset of the
+ * arrays: a card is removed by shifting the cards on its shorter side, before it or after it.
+ * A list can be frozen into a read-only copy sharing its arrays, in constant time. The copy keeps its
+ * own size: the live list appends past it in place, and copies the arrays before changing a card
+ * the copy may see. Only the live list changes, so a frozen copy never changes.
+ */
+public abstract class CardList implements Serializable, Iterable<Card> {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+    private static final int MAX_LOOP_MOVES = 16; // Past this, a shift is two arraycopy calls instead of one loop over both arrays
+
+    private transient Card[] cards;
+    private transient int[] ids;
+    private transient int head; // Offset of the cards in the arrays, the positions are relative to it
+    private transient int size;
+    private transient boolean shared; // The arrays are seen by a frozen copy
+    private transient boolean frozen;
 
     public CardList() {
-        this.cards = new LinkedList<Card>();
+        this.cards = new Card[INITIAL_CAPACITY];
+        this.ids = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @brief Constructor for a frozen copy of a list, sharing its arrays.
+     * @param source The list to copy.
+     */
+    protected CardList(CardList source) {
+        this(source, true);
     }
 
-    public CardList(LinkedList<Card> cards) {
-        this.cards = cards;        
+    /**
+     * @brief Constructor for a copy of a list, frozen or not.
+     * A frozen copy shares the arrays of the list, in constant time. A copy that can be changed gets its
+     * own arrays, the cards themselves are shared: two lists appending in place would overwrite each other.
+     * @param source The list to copy.
+     * @param frozen True for a frozen copy.
+     */
+    protected CardList(CardList source, boolean frozen) {
+        if (frozen) {
+            this.cards = source.cards;
+            this.ids = source.ids;
+            this.head = source.head;
+            this.shared = true;
+            this.frozen = true;
+            source.shared = true;
+        } else {
+            int capacity = Math.max(INITIAL_CAPACITY, source.size);
+            this.cards = Arrays.copyOfRange(source.cards, source.head, source.head + capacity);
+            this.ids = Arrays.copyOfRange(source.ids, source.head, source.head + capacity);
+        }
+        this.size = source.size;
+    }
+
+    public CardList(Collection<Card> cards) {
+        this();
+        for (Card card : cards) {
+            append(card);
+        }
     }
 
     // Getters
     public int getSize() {
-        return cards.size();
+        return size;
     }
-    public LinkedList<Card> getCards() {
-        return cards;
+
+    /**
+     * @brief Gets a read-only view of the cards, in the order of getCard. It follows the changes of the list.
+     * @return The view of the cards.
+     */
+    public List<Card> getCards() {
+        return new AbstractList<Card>() {
+            @Override
+            public Card get(int index) {
+                return getCard(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
+
     public Card getCard(int index) {
-        return cards.get(index);
+        checkIndex(index);
+        return cards[head + position(index)];
+    }
+
+    /**
+     * @brief Gets the ids of the cards, in the order of getCard.
+     * @return A copy of the ids.
+     */
+    public int[] getCardIds() {
+        int[] copy = new int[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = ids[head + position(i)];
+        }
+        return copy;
+    }
+
+    /**
+     * @brief Tells whether the list holds a card of a kind.
+     * @param id The id of the card.
+     * @return True if a card with this id is in the list.
+     */
+    public boolean contains(int id) {
+        return find(id) >= 0;
+    }
+
+    /**
+     * @brief Counts the cards of a kind in the list.
+     * @param id The id of the card.
+     * @return The number of cards with this id.
+     */
+    public int count(int id) {
+        int count = 0;
+        for (int i = head; i < head + size; i++) {
+            if (ids[i] == id) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @brief Iterates over the cards in the order of getCard. The list must not change meanwhile.
+     * The positions of the cards follow each other in the arrays, in order or in reverse, see position:
+     * the iterator walks the arrays without asking the position of each card.
+     */
+    @Override
+    public Iterator<Card> iterator() {
+        Card[] array = cards;
+        int end = size;
+        int first = head + (end > 0 ? position(0) : 0);
+        int step = end > 1 ? position(1) - position(0) : 1;
+        return new Iterator<Card>() {
+            private int index;
+            private int at = first;
+
+            @Override
+            public boolean hasNext() {
+                return index < end;
+            }
+
+            @Override
+            public Card next() {
+                if (index >= end) {
+                    throw new NoSuchElementException();
+                }
+                index++;
+                Card card = array[at];
+                at += step;
+                return card;
+            }
+        };
     }
 
     public void removeCard(int index) {
-        cards.remove(index);
+        checkIndex(index);
+        removeAt(position(index));
     }
 
     public void removeCard(Card card) {
-        cards.remove(card);
+        for (int i = 0; i < size; i++) {
+            if (cards[head + i] == card) { // The cards are compared by identity, two copies of a card are two cards
+                removeAt(i);
+                return;
+            }
+        }
     }
 
     public void addCard(Card card) {
-        cards.add(card);
+        append(card);
+    }
+
+    /**
+     * @brief Gets the position in the arrays of the card at an index of the list.
+     * The arrays only grow at their end: a list adding its cards at the head stores them in reverse.
+     * The positions must follow the indexes in order or in reverse, see iterator.
+     * @param index The index of the card in the list.
+     * @return The position of the card in the arrays.
+     */
+    protected int position(int index) {
+        return index;
+    }
+
+    /**
+     * @brief Adds a card at the end of the arrays, in amortized constant time.
+     * @param card The card to add.
+     */
+    protected final void append(Card card) {
+        checkNotFrozen();
+        if (head + size == cards.length) {
+            if (head >= size && !shared) {
+                // As much room before the cards as they take: moved back to the start, in place
+                shift(head, 0, size);
+                Arrays.fill(cards, size, head + size, null);
+            } else {
+                // Room left before the cards after a move, so the removals at the front do not fill it at once
+                int capacity = Math.max(INITIAL_CAPACITY, head > 0 ? 2 * size : size + (size >> 1));
+                cards = Arrays.copyOfRange(cards, head, head + capacity);
+                ids = Arrays.copyOfRange(ids, head, head + capacity);
+            }
+            head = 0;
+        }
+        cards[head + size] = card;
+        ids[head + size] = card.getId();
+        size++;
+        // Past the size of the frozen copies: they do not see it, the arrays stay shared
+    }
+
+    /**
+     * @brief Adds the cards of the catalog with the given ids at the end of the arrays, in order.
+     * Used to rebuild a list from its ids, see GameState.
+     * @param ids The ids of the cards.
+     * @throws IllegalArgumentException If an id is not in the catalog.
+     */
+    protected final void appendIds(int[] ids) {
+        CardCatalog catalog = CardCatalog.getInstance();
+        for (int id : ids) {
+            Card card = catalog.create(id);
+            if (card == null) {
+                throw new IllegalArgumentException("Unknown card id: " + id);
+            }
+            append(card);
+        }
+    }
+
+    /**
+     * @brief Removes the card at a position of the arrays, shifting the cards on its shorter side.
+     * @param position The position of the card in the arrays.
+     * @return The removed card.
+     */
+    protected final Card removeAt(int position) {
+        unshare();
+        int at = head + position;
+        Card card = cards[at];
+        if (position < size / 2) {
+            shift(head, head + 1, position); // The cards before it move up
+            cards[head++] = null;
+        } else {
+            shift(at + 1, at, size - position - 1); // The cards after it move down
+            cards[head + size - 1] = null;
+        }
+        size--;
+        return card;
+    }
+
+    /**
+     * @brief Moves cards and their ids inside the arrays, the ranges may overlap.
+     * @param from The first position moved, absolute in the arrays.
+     * @param to Where it goes.
+     * @param count The number of cards moved.
+     */
+    private void shift(int from, int to, int count) {
+        if (count > MAX_LOOP_MOVES) {
+            System.arraycopy(cards, from, cards, to, count);
+            System.arraycopy(ids, from, ids, to, count);
+        } else if (to < from) {
+            for (int i = 0; i < count; i++) { // One pass over both arrays, short moves are cheaper than two calls
+                cards[to + i] = cards[from + i];
+                ids[to + i] = ids[from + i];
+            }
+        } else {
+            for (int i = count - 1; i >= 0; i--) {
+                cards[to + i] = cards[from + i];
+                ids[to + i] = ids[from + i];
+            }
+        }
+    }
+
+    /**
+     * @brief Removes the card at a position of the arrays, moving the last card in its place.
+     * Constant time, for the lists whose order does not matter.
+     * @param position The position of the card in the arrays.
+     * @return The removed card.
+     */
+    protected final Card swapRemove(int position) {
+        unshare();
+        int at = head + position;
+        int last = head + --size;
+        Card card = cards[at];
+        cards[at] = cards[last];
+        ids[at] = ids[last];
+        cards[last] = null;
+        return card;
+    }
+
+    /**
+     * @brief Swaps two positions of the arrays.
+     */
+    protected final void swap(int i, int j) {
+        unshare();
+        i += head;
+        j += head;
+        Card card = cards[i];
+        cards[i] = cards[j];
+        cards[j] = card;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+    /**
+     * @brief Gets the card at a position of the arrays.
+     */
+    protected final Card cardAt(int position) {
+        return cards[head + position];
+    }
+
+    /**
+     * @brief Tells whether the list is a frozen copy.
+     * @return True if the list cannot be changed.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * @brief Copies the arrays before changing a card that a frozen copy may see.
+     */
+    private void unshare() {
+        checkNotFrozen();
+        if (shared) {
+            cards = Arrays.copyOf(cards, cards.length);
+            ids = Arrays.copyOf(ids, ids.length);
+            shared = false;
+        }
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("A frozen card list cannot be changed");
+        }
+    }
+
+    /**
+     * @brief Finds the first position of a card of a kind, scanning the ids only.
+     * @return The position, or -1 if there is none.
+     */
+    private int find(int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[head + i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * @brief Writes the number of cards then the cards, in the order of the arrays, without the spare capacity.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(cards[head + i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new InvalidObjectException("Negative card count: " + count);
+        }
+        cards = new Card[Math.max(INITIAL_CAPACITY, Math.min(count, MAX_INITIAL_CAPACITY))]; // Do not trust the count for the allocation
+        ids = new int[cards.length];
+        for (int i = 0; i < count; i++) {
+            append((Card) in.readObject());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+package org.gregsquad.gregsadventure.card;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @class ComboTable
+ * @brief The combo bonuses of the equipements, as a matrix of equipement ids by race and class ids.
+ * An equipement names in its configuration the race or the class for which its combo applies. The
+ * names are resolved once, when the table is built from the catalog: checking a combo is then an
+ * array read, whatever the strings of the cards.
+ * The columns are the races and the classes of the catalog. Cards that are not in the catalog, like
+ * the default race of a new player, have no column and never get a combo.
+ */
+public class ComboTable {
+    private static final int NONE = -1;
+
+    private static ComboTable instance;
+
+    private final int[] rows; // Row of each equipement id, or NONE
+    private final int[] columns; // Column of each race or class id, or NONE
+    private final int columnCount;
+    private final int[] combos; // rows x columns
+
+    /**
+     * @brief Private constructor for ComboTable class, building the table from the catalog.
+     */
+    private ComboTable(CardCatalog catalog) {
+        int[] ids = catalog.getIds();
+        int maxId = 0;
+        for (int id : ids) {
+            maxId = Math.max(maxId, id);
+        }
+        rows = new int[maxId + 1];
+        columns = new int[maxId + 1];
+        Arrays.fill(rows, NONE);
+        Arrays.fill(columns, NONE);
+
+        List<Integer> equipements = new ArrayList<Integer>();
+        List<Integer> conditions = new ArrayList<Integer>();
+        for (int id : ids) {
+            String type = ConfigLoader.getString(Integer.toString(id));
+            if ("Equipement".equals(type)) {
+                rows[id] = equipements.size();
+                equipements.add(id);
+            } else if ("Race".equals(type) || "Class".equals(type)) {
+                columns[id] = conditions.size();
+                conditions.add(id);
+            }
+        }
+        columnCount = conditions.size();
+        combos = new int[equipements.size() * columnCount];
+        for (int row = 0; row < equipements.size(); row++) {
+            String key = Integer.toString(equipements.get(row));
+            if (!ConfigLoader.isValid(key + "_conditionBonus") || !ConfigLoader.isValid(key + "_combo")) {
+                continue;
+            }
+            String condition = ConfigLoader.getString(key + "_conditionBonus");
+            int combo = ConfigLoader.getInt(key + "_combo");
+            for (int column = 0; column < columnCount; column++) {
+                if (condition.equals(ConfigLoader.getString(conditions.get(column) + "_name"))) {
+                    combos[row * columnCount + column] = combo;
+                }
+            }
+        }
+    }
+
+    /**
+     * @brief Gets the singleton instance of the ComboTable class.
+     * @return The ComboTable instance.
+     */
+    public static synchronized ComboTable getInstance() {
+        if (instance == null) {
+            instance = new ComboTable(CardCatalog.getInstance());
+        }
+        return instance;
+    }
+
+    /**
+     * @brief Gets the combo bonus of an equipement for a race or a class.
+     * @param equipementId The id of the equipement.
+     * @param cardId The id of the race or of the class.
+     * @return The combo bonus, 0 if there is none.
+     */
+    public int getCombo(int equipementId, int cardId) {
+        int row = indexOf(rows, equipementId);
+        int column = indexOf(columns, cardId);
+        return row != NONE && column != NONE ? combos[row * columnCount + column] : 0;
+    }
+
+    /**
+     * @brief Gets the number of columns, the races and classes of the catalog.
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @brief Gets the column of a race or a class.
+     * @param cardId The id of the race or of the class.
+     * @return The column, or -1 if the card has none.
+     */
+    public int getColumn(int cardId) {
+        return indexOf(columns, cardId);
+    }
+
+    /**
+     * @brief Adds the combo bonuses of an equipement to totals indexed by column.
+     * @param equipementId The id of the equipement.
+     * @param totals The totals, of getColumnCount values.
+     * @param sign 1 to add the bonuses, -1 to remove them.
+     */
+    public void addCombos(int equipementId, int[] totals, int sign) {
+        int row = indexOf(rows, equipementId);
+        if (row == NONE) {
+            return;
+        }
+        int offset = row * columnCount;
+        for (int column = 0; column < columnCount; column++) {
+            totals[column] += sign * combos[offset + column];
+        }
+    }
+
+    private static int indexOf(int[] index, int id) {
+        return id >= 0 && id < index.length ? index[id] : NONE;
+    }
+}
@@ -32,8 +32,7 @@ public class Curse extends Card implements Serializable {
             player.addDamage(value);
         }
         if(type == "equipement"){
-            Random rand = new Random();
-            player.getStuff().removeEquipement(rand.nextInt(player.getStuff().getSize()));
+            player.getStuff().removeRandomEquipement(new Random());
         }
     }
     /**
@@ -4,4 +4,26 @@ import java.io.Serializable;
 
 public class Deck extends CardList implements Serializable {
 
+    public Deck() {
+    }
+
+    private Deck(Deck source, boolean frozen) {
+        super(source, frozen);
+    }
+
+    /**
+     * @brief Gets a frozen copy of the deck, sharing its cards, in constant time.
+     * @return The copy, that cannot be changed.
+     */
+    public Deck snapshot() {
+        return new Deck(this, true);
+    }
+
+    /**
+     * @brief Gets a copy of the deck that can be changed without changing this one, sharing its cards.
+     * @return The copy.
+     */
+    public Deck fork() {
+        return new Deck(this, false);
+    }
 }
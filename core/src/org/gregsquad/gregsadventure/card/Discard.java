@@ -1,16 +1,129 @@
 package org.gregsquad.gregsadventure.card;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 /**
  * @class Discard
  * @brief Represents a discard pile of cards in the game, derived from CardList.
+ * The top of the pile is stored at the end of the arrays of CardList, so adding a card never moves the others.
+ * The pile only grows on top, so it keeps a version counting the cards ever added: a client that
+ * knows the pile up to a version only needs the cards added since, which are the first ones.
+ * Removing a card rewrites the pile, older versions then get the top of the pile from scratch.
+ * The pile must only be changed through the methods of this class.
  */
 public class Discard extends CardList implements Serializable {
+    private long version; // Number of cards added, and of removals
+    private long resetVersion; // Version of the last removal, cursors before it cannot follow the pile
+
+    public Discard() {
+    }
+
+    /**
+     * @brief Constructor for a pile rebuilt from the ids of its cards, at a version.
+     * The cursors taken before this version get the top of the pile from scratch.
+     * @param ids The ids of the cards, the top first.
+     * @param version The version of the pile.
+     */
+    public Discard(int[] ids, long version) {
+        int[] bottomFirst = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            bottomFirst[i] = ids[ids.length - 1 - i];
+        }
+        appendIds(bottomFirst);
+        this.version = version;
+        this.resetVersion = version;
+    }
+
+    private Discard(Discard source, boolean frozen) {
+        super(source, frozen);
+        this.version = source.version;
+        this.resetVersion = source.resetVersion;
+    }
+
+    /**
+     * @brief Gets a frozen copy of the pile, sharing its cards, in constant time.
+     * The pile only grows past the end of the copy, so taking a copy after every change costs nothing.
+     * @return The copy, that cannot be changed.
+     */
+    public Discard snapshot() {
+        return new Discard(this, true);
+    }
+
+    /**
+     * @brief Gets a copy of the pile that can be changed without changing this one, sharing its cards.
+     * @return The copy, at the same version.
+     */
+    public Discard fork() {
+        return new Discard(this, false);
+    }
+
     /**
      * @brief Adds a card to the discard pile.
      * @param card The card to be added to the discard pile.
      */
     public void addCard(Card card) {
-        cards.addFirst(card);
+        append(card);
+        version++;
+    }
+
+    /**
+     * @brief Removes a card from the discard pile.
+     * @param index The position of the card, 0 being the top.
+     */
+    @Override
+    public void removeCard(int index) {
+        super.removeCard(index);
+        resetVersion = ++version;
+    }
+
+    /**
+     * @brief Removes a card from the discard pile.
+     * @param card The card to remove.
+     */
+    @Override
+    public void removeCard(Card card) {
+        int size = getSize();
+        super.removeCard(card);
+        if (getSize() != size) {
+            resetVersion = ++version;
+        }
+    }
+
+    /**
+     * @brief Gets the position of a card in the arrays, the top of the pile being the last one.
+     * @param index The index of the card, 0 being the top.
+     * @return The position of the card.
+     */
+    @Override
+    protected int position(int index) {
+        return getSize() - 1 - index;
+    }
+
+    /**
+     * @brief Gets the version of the pile, increased by every change.
+     * @return The current version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @brief Gets the cards added to the pile since a version, at most a given number of them.
+     * Costs the number of cards returned, whatever the size of the pile.
+     * If the cards since the version cannot all be given, the page holds the top of the pile instead
+     * and is flagged as a reset. Asking since version 0 gives the top of the pile.
+     * @param since The version known by the client, 0 if it knows nothing.
+     * @param limit The maximum number of cards to return.
+     * @return The page of cards, newest first.
+     */
+    public DiscardPage since(long since, int limit) {
+        long added = version - since;
+        boolean reset = since < resetVersion || added < 0 || added > limit;
+        int count = reset ? Math.min(limit, getSize()) : (int) added;
+        ArrayList<Card> page = new ArrayList<Card>(count);
+        for (int i = 0; i < count; i++) {
+            page.add(cardAt(position(i)));
+        }
+        return new DiscardPage(version, getSize(), reset || since == 0, page);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package org.gregsquad.gregsadventure.card;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * @class DiscardPage
+ * @brief The cards of a discard pile added since a version known by a client, newest first.
+ * A reset page holds the top of the pile instead: the client drops what it knew before.
+ * On the wire, the cards are either the cards themselves or their ids, for the clients sharing
+ * our card catalog. Instances are immutable.
+ */
+public final class DiscardPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long version;
+    private final int size;
+    private final boolean reset;
+    private final List<Card> cards;
+    private final byte[] cardIds;
+
+    /**
+     * @brief Constructor for DiscardPage class.
+     * @param version The version of the pile after the cards of the page, to ask for the next page.
+     * @param size The number of cards of the whole pile.
+     * @param reset True if the page does not follow the version of the client.
+     * @param cards The cards of the page, newest first.
+     */
+    public DiscardPage(long version, int size, boolean reset, List<Card> cards) {
+        this(version, size, reset, Collections.unmodifiableList(cards), null);
+    }
+
+    private DiscardPage(long version, int size, boolean reset, List<Card> cards, byte[] cardIds) {
+        this.version = version;
+        this.size = size;
+        this.reset = reset;
+        this.cards = cards;
+        this.cardIds = cardIds;
+    }
+
+    /**
+     * @brief Gets the same page with the cards replaced by their encoded ids.
+     * @param cardIds The encoded ids of the cards.
+     * @return A page holding only the ids.
+     */
+    public DiscardPage withCardIds(byte[] cardIds) {
+        return new DiscardPage(version, size, reset, null, cardIds);
+    }
+
+    /**
+     * @brief Gets the same page with the cards decoded from their ids.
+     * @param cards The cards of the page, newest first.
+     * @return A page holding the cards.
+     */
+    public DiscardPage withCards(List<Card> cards) {
+        return new DiscardPage(version, size, reset, Collections.unmodifiableList(cards), null);
+    }
+
+    /**
+     * @brief Applies the page to the copy of the pile kept by a client.
+     * The copy holds at most the size of the pile, the older cards fall off the bottom.
+     * @param pile The copy of the pile, top first.
+     */
+    public void applyTo(LinkedList<Card> pile) {
+        if (reset) {
+            pile.clear();
+        }
+        for (int i = cards.size() - 1; i >= 0; i--) {
+            pile.addFirst(cards.get(i));
+        }
+        while (pile.size() > size) {
+            pile.removeLast();
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * @brief Gets the cards of the page.
+     * @return The cards, newest first, or null if the page only holds their ids.
+     */
+    public List<Card> getCards() {
+        return cards;
+    }
+
+    /**
+     * @brief Gets the encoded ids of the cards of the page.
+     * @return The ids, or null if the page holds the cards.
+     */
+    public byte[] getCardIds() {
+        return cardIds;
+    }
+}
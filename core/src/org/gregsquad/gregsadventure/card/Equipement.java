@@ -72,16 +72,24 @@ public class Equipement extends Card implements Serializable {
     }
     /**
      * @brief Checks if the combo condition for the bonus is valid.
+     * The game reads the combos from the ComboTable, this compares the names.
      * @param currentRace The current race of the player.
      * @return True if the combo condition is valid, false otherwise.
      */
     public boolean comboValid(String currentRace){
-        if(conditionBonus == currentRace){
+        if(conditionBonus != null && conditionBonus.equals(currentRace)){
             return true;
         } else {
             return false;
         }
     }
+    /**
+     * @brief Gets the race for which the combo bonus applies.
+     * @return The name of the race, or null if the equipement has no combo.
+     */
+    public String getConditionBonus(){
+        return this.conditionBonus;
+    }
     /**
      * @brief Gets the combo bonus when the condition is met.
      * @return The combo bonus.
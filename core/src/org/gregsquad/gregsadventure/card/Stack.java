@@ -1,7 +1,6 @@
 package org.gregsquad.gregsadventure.card;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Random;
 import java.io.Serializable;
 
@@ -11,66 +10,84 @@ import com.badlogic.gdx.scenes.scene2d.ui.Table.Debug;
  * @brief Represents a stack of cards in the game, derived from CardList.
  */
 public class Stack extends CardList implements Serializable {
+    private final Random rand;
+
     /**
      * @brief Default constructor for Stack class.
      * Initializes the stack by loading cards from the configuration file and shuffling them.
      */
     public Stack() {
+        rand = new Random();
         init();
     }
+
+    /**
+     * @brief Constructor for a stack rebuilt from the ids of its cards and the seed of its draws.
+     * @param ids The ids of the cards, in the order of getCard.
+     * @param seed The seed returned by reseed.
+     */
+    public Stack(int[] ids, long seed) {
+        rand = new Random(seed);
+        appendIds(ids);
+    }
+
+    /**
+     * @brief Constructor for a copy of a stack, see fork.
+     */
+    private Stack(Stack source, long seed) {
+        super(source, false);
+        rand = new Random(seed);
+    }
+
+    /**
+     * @brief Gets a copy of the stack that can be drawn from without changing this one, sharing its cards.
+     * @param seed The seed of the draws of the copy. With the seed returned by reseed, the copy draws
+     * the same cards as this stack.
+     * @return The copy.
+     */
+    public Stack fork(long seed) {
+        return new Stack(this, seed);
+    }
+
+    /**
+     * @brief Restarts the random draws from a new seed, drawn from the current ones.
+     * A stack rebuilt with the same cards and this seed draws the same cards as this one from now on.
+     * @return The new seed.
+     */
+    public long reseed() {
+        long seed = rand.nextLong();
+        rand.setSeed(seed);
+        return seed;
+    }
     /**
      * @brief Draws a card from the stack.
      * If the stack is empty recreate a Stack
      * @return The drawn card.
      */
     public Card draw() {
-        if(cards.size() == 0) {
+        if(getSize() == 0) {
             init();
         }
-        Random rand = new Random();
-        int randomNumber = rand.nextInt(cards.size());
-        return cards.remove(randomNumber);
+        int randomNumber = rand.nextInt(getSize());
+        return swapRemove(randomNumber); // The stack is drawn at random, its order does not matter
     }
 
 
 
+    /**
+     * @brief Fills the stack with the copies of every card of the catalog, then shuffles it.
+     */
     public void init() {
-        for (int tableId : ConfigLoader.getIdArray()) {
-            
-            String key = Integer.toString(tableId);
-            //System.out.println(key);
-
-
-            for (int j = 0; j < ConfigLoader.getInt(key + "_number"); j++) {
-                    // Use key and value to create a card
-                    switch (ConfigLoader.getString(key)) {
-                        case "Curse":
-                            cards.add(new Curse(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getString(key + "_type"), ConfigLoader.getInt(key + "_value")));
-                            break;
-                        case "Monster":
-                            cards.add(new Monster(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_level"), ConfigLoader.getInt(key + "_damage"), ConfigLoader.getInt(key + "_treasure"), ConfigLoader.getString(key + "_incident")));
-                            break;
-                        case "Equipement":
-                            if(ConfigLoader.isValid(key + "_conditionBonus") && ConfigLoader.isValid(key + "_combo")){
-                                cards.add(new Equipement(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_position"), ConfigLoader.getInt(key + "_bonus"), ConfigLoader.getBoolean(key + "_equipementSize"), ConfigLoader.getString(key + "_conditionBonus"), ConfigLoader.getInt(key + "_combo")));
-                            } else {
-                                cards.add(new Equipement(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_position"), ConfigLoader.getInt(key + "_bonus"), ConfigLoader.getBoolean(key + "_equipementSize")));
-                            }
-                            break;
-                        case "Race":
-                            cards.add(new Race(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description"), ConfigLoader.getInt(key + "_bonusDamage"), ConfigLoader.getInt(key + "_bonusDice")));
-                            break;
-                        case "Clas":
-                            cards.add(new Class(tableId, ConfigLoader.getString(key + "_name"), ConfigLoader.getString(key + "_description")));
-                            break;
-                        default:
-                            System.out.println("Error in config file");
-                            break;
-                    }
+        CardCatalog catalog = CardCatalog.getInstance();
+        for (int id : catalog.getIds()) {
+            for (int j = 0; j < catalog.getCopies(id); j++) {
+                Card card = catalog.create(id);
+                if (card != null) {
+                    append(card);
+                }
             }
         }
 
-
         shuffle(); // Shuffle the draw
     }
 
@@ -78,6 +95,8 @@ public class Stack extends CardList implements Serializable {
      * @brief Shuffles the cards in the stack.
      */
     public void shuffle() {
-        Collections.shuffle(cards);
+        for (int i = getSize() - 1; i > 0; i--) {
+            swap(i, rand.nextInt(i + 1));
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,357 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.Equipement;
+import org.gregsquad.gregsadventure.card.Monster;
+
+/**
+ * @class Bot
+ * @brief A player of the game played by the program, to fill the empty seats of a room.
+ * The bot makes the choices the rules leave to the players: fight or run, which player to ask for help
+ * and how many treasures to offer him, which player gets a card at the charity. Each choice is a flat
+ * Monte Carlo search: every candidate is played on forks of the game, each followed by a round of turns
+ * with simple choices, and the candidate with the best mean score wins.
+ * The search runs on copies, without holding the lock of the game, and stops at the deadline of the
+ * choice: a rollout still running is stopped between two of its turns, a bot never makes the table
+ * wait longer than its budget for a choice, plus one turn of a rollout.
+ */
+public class Bot {
+    public static final long DEFAULT_BUDGET_MILLIS = 50;
+
+    private static final int MAX_ROLLOUTS = 64; // By candidate, the search stops earlier when the outcome is clear enough
+    private static final int LEVEL_WEIGHT = 2; // A level counts in the damage too, it is worth more than a bonus
+    private static final int HELP_LEAD = 2; // A bot does not help a player leading him by this many levels
+
+    private final int id;
+    private final long budgetNanos;
+    private final Random rand = new Random();
+    private long rollouts;
+
+    /**
+     * @brief Constructor for Bot class.
+     * @param id The id of the player the bot plays.
+     * @param budgetMillis The time the bot is given for each choice.
+     */
+    public Bot(int id, long budgetMillis) {
+        this.id = id;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    /**
+     * @brief Gets the id of the player played by the bot.
+     * @return The id of the player.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @brief Gets the number of games simulated by the bot since it was created.
+     * @return The number of rollouts.
+     */
+    public long getRollouts() {
+        return rollouts;
+    }
+
+    /**
+     * @brief Plays the turn of the bot: draws a donjon card and fights it if it is a monster, equips its
+     * best equipements, gives its extra cards away and ends its turn. A turn already started, in a room
+     * moved here, goes on from its phase. Not thread safe, a bot plays one turn at a time.
+     * @param game The live game.
+     * @param bots The bots of the game by player id, the only players the bot can ask for help.
+     * @return True if the turn was played, or ended by another player meanwhile. False if it is not the turn of the bot.
+     */
+    public boolean playTurn(Game game, Map<Integer, Bot> bots) {
+        Player player = playerById(game, id);
+        Card[] drawn = new Card[1];
+        if (player == null || !onTurn(game, () -> drawn[0] = game.getPhase() == Game.Phase.DRAW ? game.donjonDraw(player) : game.getMonster())) {
+            return false;
+        }
+        if (drawn[0] instanceof Monster) {
+            Monster monster = (Monster) drawn[0];
+            FightChoice choice = chooseFight(game, monster, bots);
+            boolean played = onTurn(game, () -> {
+                if (choice.helper >= 0) {
+                    game.askHelp();
+                    game.help(monster, playerById(game, choice.helper), choice.treasures);
+                }
+                if (choice.run) {
+                    game.run(monster);
+                } else {
+                    game.fight(monster);
+                }
+            });
+            if (!played) {
+                return true;
+            }
+        }
+        if (!onTurn(game, () -> equipBest(game, player))) {
+            return true;
+        }
+        // The hand is read from the snapshots, the other players may give cards to the bot meanwhile
+        for (Player hand = game.getSnapshot().getPlayer(id); hand.getDeck().getSize() > Game.MAX_DECK_SIZE; hand = game.getSnapshot().getPlayer(id)) {
+            Card given = weakestCard(hand);
+            Player target = chooseCharityTarget(game, given);
+            if (!onTurn(game, () -> game.charity(given, target))) {
+                return true;
+            }
+        }
+        onTurn(game, game::nextPlayer);
+        return true;
+    }
+
+    /**
+     * @brief Makes a move of the bot on the live game, if it is still its turn. The turn is checked under
+     * the lock of the game, the other players cannot end it before the move is made.
+     * @return False if the turn of the bot is over.
+     */
+    private boolean onTurn(Game game, Runnable move) {
+        synchronized (game) {
+            Player current = game.getCurrentPlayer();
+            if (current == null || current.getId() != id) {
+                return false;
+            }
+            move.run();
+            return true;
+        }
+    }
+
+    /**
+     * @brief Tells whether the bot accepts to help another player against a monster.
+     * The bot helps for at least one treasure, unless the player is far ahead of him.
+     * @param game The live game.
+     * @param player The player asking for help.
+     * @param treasures The number of treasures offered.
+     * @return True if the bot helps.
+     */
+    public boolean acceptHelp(Game game, Player player, int treasures) {
+        Player self = playerById(game, id);
+        return self != null && treasures > 0 && player.getLevel() < self.getLevel() + HELP_LEAD;
+    }
+
+    /**
+     * @class FightChoice
+     * @brief The choice of the bot against a monster: run, or fight, alone or with a helper.
+     */
+    static final class FightChoice {
+        final boolean run;
+        final int helper; // Id of the helper, -1 if none
+        final int treasures; // Treasures offered to the helper
+
+        FightChoice(boolean run, int helper, int treasures) {
+            this.run = run;
+            this.helper = helper;
+            this.treasures = treasures;
+        }
+    }
+
+    /**
+     * @brief Chooses between running, fighting alone, and fighting with the help of another bot, for each
+     * number of treasures it accepts.
+     */
+    FightChoice chooseFight(Game game, Monster monster, Map<Integer, Bot> bots) {
+        List<FightChoice> choices = new ArrayList<FightChoice>();
+        choices.add(new FightChoice(false, -1, 0));
+        choices.add(new FightChoice(true, -1, 0));
+        Player self = playerById(game, id);
+        for (Player player : game.getSnapshot().getPlayers()) {
+            Bot helper = bots.get(player.getId());
+            if (helper == null || helper == this) {
+                continue;
+            }
+            for (int treasures = 1; treasures <= monster.getTreasure(); treasures++) {
+                if (helper.acceptHelp(game, self, treasures)) {
+                    choices.add(new FightChoice(false, player.getId(), treasures));
+                    break; // The cheapest offer it accepts
+                }
+            }
+        }
+        List<Consumer<Game>> candidates = new ArrayList<Consumer<Game>>(choices.size());
+        int monsterId = monster.getId();
+        for (FightChoice choice : choices) {
+            candidates.add(copy -> {
+                Monster copied = (Monster) cardById(copy.getCurrentPlayer(), monsterId);
+                if (choice.helper >= 0) {
+                    copy.help(copied, playerById(copy, choice.helper), choice.treasures);
+                }
+                if (choice.run) {
+                    copy.run(copied);
+                } else {
+                    copy.fight(copied);
+                }
+                finishTurn(copy);
+            });
+        }
+        return choices.get(search(game, candidates));
+    }
+
+    /**
+     * @brief Chooses the player getting a card at the charity, among the players of lowest level.
+     */
+    Player chooseCharityTarget(Game game, Card card) {
+        List<Player> targets = game.getCharityTargets();
+        if (targets.size() < 2) {
+            return targets.isEmpty() ? null : targets.get(0);
+        }
+        List<Consumer<Game>> candidates = new ArrayList<Consumer<Game>>(targets.size());
+        int cardId = card.getId();
+        for (Player target : targets) {
+            int targetId = target.getId();
+            candidates.add(copy -> {
+                copy.charity(cardById(copy.getCurrentPlayer(), cardId), playerById(copy, targetId));
+                finishTurn(copy);
+            });
+        }
+        return targets.get(search(game, candidates));
+    }
+
+    /**
+     * @brief Plays every candidate on copies of the game, in turn, until the deadline or MAX_ROLLOUTS each.
+     * A rollout still running at the deadline is stopped between two turns and does not count.
+     * @return The index of the candidate with the best mean score, the first one if there was no time.
+     */
+    private int search(Game game, List<Consumer<Game>> candidates) {
+        if (candidates.size() == 1 || budgetNanos <= 0) {
+            return 0;
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        Game base = game.fork(rand.nextLong()); // The only moment the search holds the lock of the game
+        if (base.getCurrentPlayer().getId() != id) {
+            return 0; // The turn of the bot ended meanwhile, the choice no longer matters
+        }
+        long[] scores = new long[candidates.size()];
+        int[] counts = new int[candidates.size()];
+        search:
+        for (int round = 0; round < MAX_ROLLOUTS; round++) {
+            for (int i = 0; i < candidates.size(); i++) {
+                if (System.nanoTime() - deadline >= 0) {
+                    break search;
+                }
+                Game copy = base.fork(rand.nextLong());
+                candidates.get(i).accept(copy);
+                for (int turn = 1; turn < copy.getPlayerList().size(); turn++) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        break search;
+                    }
+                    playDefaultTurn(copy);
+                }
+                scores[i] += score(copy);
+                counts[i]++;
+                rollouts++;
+            }
+        }
+        int best = 0;
+        for (int i = 1; i < candidates.size(); i++) {
+            // Compares the means without dividing: scores[i] / counts[i] > scores[best] / counts[best]
+            if (counts[i] > 0 && (counts[best] == 0 || scores[i] * counts[best] > scores[best] * counts[i])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @brief Gets the score of the bot in a copy of the game: its strength against the strongest other player.
+     */
+    private long score(Game copy) {
+        int self = 0;
+        int best = Integer.MIN_VALUE;
+        for (Player player : copy.getPlayerList()) {
+            int strength = LEVEL_WEIGHT * player.getLevel() + player.getDamage();
+            if (player.getId() == id) {
+                self = strength;
+            } else {
+                best = Math.max(best, strength);
+            }
+        }
+        return best == Integer.MIN_VALUE ? self : self - best;
+    }
+
+    /**
+     * @brief Plays a turn with the simple choices: fight alone, equip what is better, give the first cards away.
+     */
+    static void playDefaultTurn(Game game) {
+        Card card = game.donjonDraw(game.getCurrentPlayer());
+        if (card instanceof Monster) {
+            game.fight((Monster) card);
+        }
+        finishTurn(game);
+    }
+
+    /**
+     * @brief Ends a turn with the simple choices, after the fight.
+     */
+    private static void finishTurn(Game game) {
+        equipBest(game, game.getCurrentPlayer());
+        game.charity();
+        game.nextPlayer();
+    }
+
+    /**
+     * @brief Equips, one at a time, the equipements of the hand that are better than the ones worn at their position.
+     * Reads the player itself: called holding the lock of the game, or on a fork.
+     */
+    private static void equipBest(Game game, Player player) {
+        for (Equipement better = betterEquipement(player); better != null; better = betterEquipement(player)) {
+            game.equip(player, better);
+        }
+    }
+
+    /**
+     * @brief Finds an equipement of the hand with a higher bonus than the one worn at its position.
+     * @return The equipement, or null if there is none.
+     */
+    private static Equipement betterEquipement(Player player) {
+        for (Card card : player.getDeck()) {
+            if (card instanceof Equipement) {
+                Equipement equipement = (Equipement) card;
+                Equipement worn = player.getStuff().getEquipement(equipement.getPosition());
+                if (worn == null || worn.getBonus() < equipement.getBonus()) {
+                    return equipement;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief Gets the card of the hand the bot needs the least: any card before an equipement, then the weakest equipement.
+     */
+    private static Card weakestCard(Player player) {
+        Card weakest = null;
+        for (Card card : player.getDeck()) {
+            if (!(card instanceof Equipement)) {
+                return card;
+            }
+            if (weakest == null || ((Equipement) card).getBonus() < ((Equipement) weakest).getBonus()) {
+                weakest = card;
+            }
+        }
+        return weakest;
+    }
+
+    private static Player playerById(Game game, int id) {
+        for (Player player : game.getPlayerList()) {
+            if (player.getId() == id) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    private static Card cardById(Player player, int id) {
+        for (Card card : player.getDeck()) {
+            if (card.getId() == id) {
+                return card;
+            }
+        }
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package org.gregsquad.gregsadventure.game;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -11,11 +12,27 @@ import com.badlogic.gdx.scenes.scene2d.ui.Table.Debug;
 /**
  * @class Game
  * @brief Represents the main game logic and flow.
+ * The changes are made one at a time, under the lock of the game. Each one ends by publishing a
+ * GameSnapshot: the readers get the state of the game from getSnapshot, never from the live objects.
+ * A game can be forked into a copy to play hypothetical moves on, see fork.
+ * A turn goes through the phases of Phase, the changes of the game move it from one to the next.
  */
 public class Game {
+    /**
+     * @brief The phases of a turn, in order. A turn without monster goes from DRAW to CHARITY or END.
+     */
+    public enum Phase {
+        DRAW, // The current player opens a donjon card
+        FIGHT, // A monster was drawn: the player fights it, runs away or asks for help
+        HELP, // The player waits for the answer of a helper
+        CHARITY, // The player has too many cards and gives some away
+        END // The player can end his turn
+    }
+
     private static Game instance;
     static final int DICE_NEED_TO_RUN = 5;
     static final int INITIAL_DECK_SIZE = 4;
+    static final int MAX_DECK_SIZE = 5; // Cards kept at the end of a turn, the others go to charity
     private ArrayList<Player> playerList;
     private Stack donjonStack;
     private Stack treasureStack;
@@ -25,17 +42,100 @@ public class Game {
     private Monster monster;
     private Player playerHelp;
     private boolean isGameStarted;
+    private long turn; // Number of the turn, 0 before the game starts
+    private Phase phase = Phase.DRAW;
+    private final Random rand;
+    private long version; // Guarded by this
+    private volatile GameSnapshot snapshot; // Null in a fork when it changed since the last getSnapshot
+    private final boolean forked;
 
     /**
-     * @brief Private constructor to ensure singleton pattern.
+     * @brief Constructor for a game independent from the singleton.
+     * Used to host several rooms in the same process, the GUI goes through getInstance().
      */
-    private Game() {
+    public Game() {
+        forked = false;
+        rand = new Random();
         playerList = new ArrayList<Player>();
         donjonStack = new Stack();
         treasureStack = new Stack();
         donjonDiscard = new Discard();
         treasureDiscard = new Discard();
         isGameStarted = false;
+        snapshot = GameSnapshot.of(null, 0, this, null);
+    }
+
+    /**
+     * @brief Constructor for a game restored from a state captured by another server.
+     * The game goes on where it was captured, with the same players, cards and random draws.
+     * @param state The state of the game.
+     * @throws IllegalArgumentException If the state was captured with another card catalog.
+     */
+    public Game(GameState state) {
+        state.checkCatalog();
+        forked = false;
+        rand = new Random(state.seed);
+        playerList = new ArrayList<Player>(state.players.length);
+        for (GameState.PlayerState player : state.players) {
+            playerList.add(player.restore());
+        }
+        donjonStack = state.donjonStack();
+        treasureStack = state.treasureStack();
+        donjonDiscard = state.donjonDiscard();
+        treasureDiscard = state.treasureDiscard();
+        currentPlayer = state.currentPlayer >= 0 ? playerList.get(state.currentPlayer) : null;
+        playerHelp = state.playerHelp >= 0 ? playerList.get(state.playerHelp) : null;
+        monster = state.monster >= 0 ? restoreMonster(state.monster) : null;
+        isGameStarted = state.started;
+        turn = state.turn;
+        phase = state.phase;
+        version = state.version;
+        snapshot = GameSnapshot.of(null, version, this, null);
+    }
+
+    /**
+     * @brief Finds the monster of the fight in the hand of the current player, where the fight discards it
+     * from. The cards have no equality, a new card of the same id would stay in the hand.
+     * @param id The id of the monster.
+     * @return The card of the hand, or a new card if the hand does not hold it.
+     */
+    private Monster restoreMonster(int id) {
+        if (currentPlayer != null) {
+            for (Card card : currentPlayer.getDeck()) {
+                if (card.getId() == id && card instanceof Monster) {
+                    return (Monster) card;
+                }
+            }
+        }
+        return (Monster) GameState.create(id);
+    }
+
+    /**
+     * @brief Constructor for a fork of a game, see fork. Called holding the lock of the source.
+     */
+    private Game(Game source, long seed, long donjonSeed, long treasureSeed) {
+        forked = true;
+        rand = new Random(seed);
+        playerList = new ArrayList<Player>(source.playerList.size());
+        for (Player player : source.playerList) {
+            Player copy = player.fork();
+            playerList.add(copy);
+            if (player == source.currentPlayer) {
+                currentPlayer = copy;
+            }
+            if (player == source.playerHelp) {
+                playerHelp = copy;
+            }
+        }
+        donjonStack = source.donjonStack.fork(donjonSeed);
+        treasureStack = source.treasureStack.fork(treasureSeed);
+        donjonDiscard = source.donjonDiscard.fork();
+        treasureDiscard = source.treasureDiscard.fork();
+        monster = source.monster;
+        isGameStarted = source.isGameStarted;
+        turn = source.turn;
+        phase = source.phase;
+        version = source.version;
     }
 
     /**
@@ -52,7 +152,7 @@ public class Game {
     /**
      * @brief Initializes the game.
      */
-    public void init(){
+    public synchronized void init(){
         int numberOfPlayer = this.playerList.size();
         isGameStarted = true;
         //Initialize of deck of all players
@@ -63,23 +163,37 @@ public class Game {
             }
         }         
         //Make a random currrent player
-        Random rand = new Random();
         int randNumber = rand.nextInt(numberOfPlayer);
         currentPlayer = playerList.get(randNumber);
-
+        turn = 1;
+        phase = Phase.DRAW;
+        changed();
     }
 
     /**
      * @brief Initiates a fight between the player and a monster.
+     * The helper accepted with help fights along. A won fight gives a level to the current player and
+     * the treasures of the monster to the fighters, a lost one ends in a run.
      * @param monster The monster to fight.
+     * @return True if the fight is won.
      */
-    public void fight(Monster monster) { //button fight  // GARDER PARAMETRE UTILE ?
-        if(currentPlayer.getDamage() > monster.getDamage()){
-
-            System.out.println("Player win"); // DEBUG
+    public synchronized boolean fight(Monster monster) { //button fight
+        this.monster = monster;
+        int damage = currentPlayer.getDamage() + (playerHelp != null ? playerHelp.getDamage() : 0);
+        if(damage > monster.getDamage()){
+            if(playerHelp == null){
+                currentPlayer.setTreasuresForFight(monster.getTreasure());
+            }
+            Player helper = playerHelp;
+            currentPlayer.addLevel(1);
+            drawTreasures(currentPlayer);
+            drawTreasures(helper);
+            endFight();
+            changed(currentPlayer, helper != null ? helper : currentPlayer);
+            return true;
         } else {
-            System.out.println("Player lose"); // DEBUG
             run(monster);
+            return false;
         }
     }
 
@@ -88,27 +202,82 @@ public class Game {
      * @param monster The monster to run away from.
      * @return True if the run is successful, false otherwise.
      */
-    public boolean run(Monster monster) { //button run, true = success 
-        System.out.println("Run"); // DEBUG
-        Random rand = new Random();
+    public synchronized boolean run(Monster monster) { //button run, true = success 
+        this.monster = monster;
         int diceResult = rand.nextInt(6) + 1 + currentPlayer.getDiceBuff();
-        if(diceResult >= DICE_NEED_TO_RUN){
-            return true;
-        } else {
+        if(diceResult < DICE_NEED_TO_RUN){
             incident(currentPlayer);
             if(playerHelp != null){
                 incident(playerHelp);
             }
-            return false;
         }
+        endFight();
+        changed(currentPlayer);
+        return diceResult >= DICE_NEED_TO_RUN;
+    }
+
+    /**
+     * @brief Gives a player of a won fight the treasures promised to him.
+     */
+    private void drawTreasures(Player player) {
+        if(player == null){
+            return;
+        }
+        for(int i = 0; i < player.getTreasuresForFight(); i++){
+            player.getDeck().addCard(treasureStack.draw());
+        }
+        player.setTreasuresForFight(0);
+    }
 
+    /**
+     * @brief Ends the fight: the monster goes to the discard, the helper goes back to his own game.
+     */
+    private void endFight() {
+        if(currentPlayer.getDeck().contains(monster.getId())){
+            currentPlayer.getDeck().removeCard(monster);
+            donjonDiscard.addCard(monster);
+        }
+        currentPlayer.setTreasuresForFight(0);
+        if(playerHelp != null){
+            playerHelp.setTreasuresForFight(0);
+        }
+        monster = null;
+        playerHelp = null;
+        phase = endPhase();
+    }
+
+    /**
+     * @brief Gets the phase of the turn once the fight is over, or when there was none.
+     */
+    private Phase endPhase() {
+        return currentPlayer.getDeck().getSize() > MAX_DECK_SIZE ? Phase.CHARITY : Phase.END;
+    }
+
+    /**
+     * @brief Moves the turn between CHARITY and END after the hand of the current player changed.
+     */
+    private void settle() {
+        if(phase == Phase.CHARITY || phase == Phase.END){
+            phase = endPhase();
+        }
+    }
+
+    /**
+     * @brief Asks the other players for help against the monster of the fight, the turn waits for an answer.
+     * The answer is help, or a fight or a run alone.
+     */
+    public synchronized void askHelp(){
+        if(phase == Phase.FIGHT){
+            phase = Phase.HELP;
+            changed(new Player[0]);
+        }
     }
 
     /**
      * @brief Handles incidents that may occur during the game.
      * @param player The player involved in the incident.
      */
-    protected void incident(Player player){
+    protected synchronized void incident(Player player){
         if(player == null){
             return;
         }
@@ -118,20 +287,21 @@ public class Game {
                 break;
         
             case "loseObject":
-                Random rand = new Random();
-                int randNumber = rand.nextInt(player.getStuff().getSize());
-                player.getStuff().removeEquipement(randNumber);
+            case "loseEquipement": // The name used by the configuration
+                player.getStuff().removeRandomEquipement(rand); // Nothing to lose if nothing is worn
                 break;
 
             case "loseLevel":
                 if(player.getLevel() != 1){
                     player.addLevel(-1);
-                    break;
                 }
+                break;
+
             default:
                 System.out.println("Error : incident not found ");
                 break;
         }
+        changed(player);
     }
 
     /**
@@ -139,7 +309,7 @@ public class Game {
      * @param numberOfTreasure The number of treasures offered for help.
      * @return True if the player provided help, false otherwise.
      */
-    public boolean help(int numberOfTreasure){ // true == helped
+    public synchronized boolean help(int numberOfTreasure){ // true == helped
 
         //Interface to other players (return playerList)
 
@@ -154,52 +324,120 @@ public class Game {
 
             playerHelp.setTreasuresForFight(numberOfTreasure);
             currentPlayer.setTreasuresForFight(monster.getTreasure() - numberOfTreasure);
-
+            changed(currentPlayer, playerHelp);
             return true;
         }
     }
 
+    /**
+     * @brief Offers help to another player during a fight, the player being chosen by the current player.
+     * @param monster The monster to fight.
+     * @param helper The player who accepted to help.
+     * @param numberOfTreasure The number of treasures of the monster offered to the helper.
+     * @return True if the player provided help, false otherwise.
+     */
+    public synchronized boolean help(Monster monster, Player helper, int numberOfTreasure){
+        this.monster = monster;
+        this.playerHelp = helper != currentPlayer ? helper : null;
+        if(phase == Phase.HELP){
+            phase = Phase.FIGHT;
+        }
+        return help(numberOfTreasure);
+    }
+
 
     /**
      * @brief Manages the charity phase of the game.
+     * The current player keeps MAX_DECK_SIZE cards, the others are given to the players of lowest level.
      */
-    public void charity(){
-        int minLevelOtherPlayer = 11;
+    public synchronized void charity(){
+        while(currentPlayer.getDeck().getSize() > MAX_DECK_SIZE){
+            //Interface choix carte (return card)
+            Card card = currentPlayer.getDeck().getCard(0);
+            //Interface choix joueur (return player)
+            List<Player> targets = getCharityTargets();
+            give(card, targets.isEmpty() ? null : targets.get(0));
+        }
+        settle();
+        changed();
+    }
+
+    /**
+     * @brief Gives one card of the current player away during the charity phase, the choices being made by the player.
+     * @param card The card of the current player to give.
+     * @param target The player receiving it, one of getCharityTargets. If the target is not one of them the card is discarded.
+     * @return True if the card was given, false if it is not in the hand of the current player.
+     */
+    public synchronized boolean charity(Card card, Player target){
+        if(card == null || !currentPlayer.getDeck().getCards().contains(card)){
+            return false;
+        }
+        give(card, getCharityTargets().contains(target) ? target : null);
+        settle();
+        changed();
+        return true;
+    }
+
+    /**
+     * @brief Gets the players the current player can give his cards to during the charity phase.
+     * @return The other players of lowest level, empty if the current player is not above them.
+     */
+    public synchronized List<Player> getCharityTargets(){
+        int minLevelOtherPlayer = Integer.MAX_VALUE;
         for(Player player : playerList){
             if(player != currentPlayer){
-                if(player.getLevel() < minLevelOtherPlayer){
-                    minLevelOtherPlayer = player.getLevel();
-                    return;
-                }
+                minLevelOtherPlayer = Math.min(minLevelOtherPlayer, player.getLevel());
             }
         }
-        while(currentPlayer.getDeck().getSize() > 5){
-            //Interface choix carte (return card)
-            Card card = currentPlayer.getDeck().getCard(0);
-            currentPlayer.getDeck().removeCard(card);
-            if(currentPlayer.getLevel() > minLevelOtherPlayer){
-                //Interface choix joueur (return player)
-                Player player = playerList.get(0);
-                player.getDeck().addCard(card);
-                return;
-            } else {
-                if(card instanceof Equipement){
-                    treasureDiscard.addCard(card);
-                } else {
-                    donjonDiscard.addCard(card);
+        List<Player> targets = new ArrayList<Player>();
+        if(currentPlayer.getLevel() > minLevelOtherPlayer){
+            for(Player player : playerList){
+                if(player != currentPlayer && player.getLevel() == minLevelOtherPlayer){
+                    targets.add(player);
                 }
             }
+        }
+        return targets;
+    }
 
+    /**
+     * @brief Moves a card of the current player to another player, or to its discard if there is none.
+     */
+    private void give(Card card, Player target){
+        currentPlayer.getDeck().removeCard(card);
+        if(target != null){
+            target.getDeck().addCard(card);
+        } else if(card instanceof Equipement){
+            treasureDiscard.addCard(card);
+        } else {
+            donjonDiscard.addCard(card);
         }
     }
 
+    /**
+     * @brief Equips a card of the hand of a player, the equipements it replaces go to the discard.
+     * @param player The player.
+     * @param equipement The equipement, from the deck of the player.
+     */
+    public synchronized void equip(Player player, Equipement equipement){
+        player.getDeck().removeCard(equipement);
+        for(Equipement replaced : player.getStuff().addEquipement(equipement)){
+            treasureDiscard.addCard(replaced);
+        }
+        if(player == currentPlayer){
+            settle();
+        }
+        changed(player);
+    }
+
 
     /**
      * @brief Sets the player list for the game.
      * @param playerList The list of players to set.
      */
-    public void setPlayerList(ArrayList<Player> playerList) {
+    public synchronized void setPlayerList(ArrayList<Player> playerList) {
         this.playerList = playerList;
+        changed();
     }
 
     /**
@@ -255,8 +493,9 @@ public class Game {
      * @brief Sets the current player for the game.
      * @param currentPlayer The current player to set.
      */
-    public void addPlayer(Player player) {
+    public synchronized void addPlayer(Player player) {
         playerList.add(player);
+        changed(player);
     }
 
     /**
@@ -264,8 +503,9 @@ public class Game {
      * @param currentPlayer The current player to set.
      */
 
-    public void removePlayer(Player player) {
+    public synchronized void removePlayer(Player player) {
         playerList.remove(player);
+        changed(new Player[0]);
     }
 
     /**
@@ -296,30 +536,161 @@ public class Game {
      * Adds a card drawn from the treasure stack to the player's deck.
      *
      * @param player The player who will draw a card from the treasure stack.
+     * @return The card drawn.
      */
-    public void treasureDraw(Player player){
-        player.getDeck().addCard(treasureStack.draw());
+    public synchronized Card treasureDraw(Player player){
+        Card card = treasureStack.draw();
+        player.getDeck().addCard(card);
+        if(player == currentPlayer){
+            settle();
+        }
+        changed(player);
+        return card;
     }
 
     /**
      * Adds a card drawn from the donjon stack to the player's deck.
+     * The card opened by the current player in the DRAW phase is the one of the turn: a monster is
+     * fought, see fight, otherwise the turn goes on to its end.
      *
      * @param player The player who will draw a card from the donjon stack.
+     * @return The card drawn.
      */
-    public void donjonDraw(Player player){
-        player.getDeck().addCard(donjonStack.draw());
+    public synchronized Card donjonDraw(Player player){
+        Card card = donjonStack.draw();
+        player.getDeck().addCard(card);
+        if(player == currentPlayer && phase == Phase.DRAW && isGameStarted){
+            if(card instanceof Monster){
+                monster = (Monster) card;
+                phase = Phase.FIGHT;
+            } else {
+                phase = endPhase();
+            }
+        } else if(player == currentPlayer){
+            settle();
+        }
+        changed(player);
+        return card;
     }
 
     /**
      * Advances the game to the next player in the player list.
      * If the current player is the last in the list, the game advances to the first player.
      */
-    public void nextPlayer(){
+    public synchronized void nextPlayer(){
         int index = playerList.indexOf(currentPlayer);
         if(index == playerList.size() - 1){
             currentPlayer = playerList.get(0);
         } else {
             currentPlayer = playerList.get(index + 1);
         }
-    } 
-}
\ No newline at end of file
+        turn++;
+        phase = Phase.DRAW;
+        monster = null; // A fight left aside is over, the monster stays in the hand
+        playerHelp = null;
+        changed(new Player[0]); // Only the current player changes, not the players
+    }
+
+    /**
+     * Returns the number of the turn, increased by every change of player.
+     *
+     * @return The turn, 0 before the game starts.
+     */
+    public long getTurn() {
+        return turn;
+    }
+
+    /**
+     * Returns the phase of the current turn.
+     *
+     * @return The phase.
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Returns the version of the game, increased by every change.
+     * Views built from the game stay valid as long as the version does not change.
+     *
+     * @return The current version.
+     */
+    public long getVersion() {
+        return getSnapshot().getVersion();
+    }
+
+    /**
+     * Returns the state of the game after the last change, without waiting for a change in progress.
+     *
+     * @return The last snapshot.
+     */
+    public GameSnapshot getSnapshot() {
+        GameSnapshot current = snapshot;
+        return current != null ? current : buildSnapshot();
+    }
+
+    private synchronized GameSnapshot buildSnapshot() {
+        if (snapshot == null) {
+            snapshot = GameSnapshot.of(null, version, this, null);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Captures the whole state of the game, to restore it on another server.
+     * The random generators are restarted from the seeds captured, the game and its restored copy then
+     * draw the same cards. The changes made after the capture are not in the state.
+     *
+     * @return The state of the game.
+     */
+    public synchronized GameState capture() {
+        long seed = rand.nextLong();
+        rand.setSeed(seed);
+        return new GameState(this, version, seed, monster, playerHelp);
+    }
+
+    /**
+     * Copies the game, to play hypothetical moves on the copy: searches, simulations, replays.
+     * The copy shares the cards with the game, they do not change during a game, and copies the rest:
+     * the levels and stuff of the players, the arrays of cards of the hands and piles, the random
+     * generators. It takes a few microseconds, where a capture and a restore create every card again.
+     * The random generators of the game are restarted from the seeds copied, so the fork draws the
+     * same cards as the game from now on, see fork(long) for other draws.
+     * A fork is made to be used by one thread: it builds its snapshot when asked, not at every change.
+     *
+     * @return The copy.
+     */
+    public synchronized Game fork() {
+        long seed = rand.nextLong();
+        rand.setSeed(seed);
+        return new Game(this, seed, donjonStack.reseed(), treasureStack.reseed());
+    }
+
+    /**
+     * Copies the game like fork(), with other random draws. The game itself is not changed.
+     *
+     * @param seed The seed of the random generators of the copy.
+     * @return The copy.
+     */
+    public synchronized Game fork(long seed) {
+        Random seeds = new Random(seed);
+        return new Game(this, seeds.nextLong(), seeds.nextLong(), seeds.nextLong());
+    }
+
+    /**
+     * Marks the game as changed and publishes a new snapshot. Called at the end of every change made
+     * through the game, and by the code changing the cards or the players directly, holding the lock.
+     */
+    public synchronized void changed() {
+        changed((Player[]) null);
+    }
+
+    /**
+     * Publishes a new snapshot after a change touching only some players, the others are not copied again.
+     * A fork only drops its snapshot, getSnapshot builds the next one.
+     */
+    private void changed(Player... touched) {
+        version++;
+        snapshot = forked ? null : GameSnapshot.of(snapshot, version, this, touched);
+    }
+}
@@ -0,0 +1,212 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.gregsquad.gregsadventure.card.Discard;
+
+/**
+ * @class GameSnapshot
+ * @brief The state of a game after a change, for the readers.
+ * The game publishes a new snapshot at the end of every change, readers get the last one with a single
+ * read and never wait for the game. Instances are immutable: the players are copies, the hands and the
+ * discard piles are frozen copies sharing their cards with the game.
+ * A snapshot reuses the copies of the previous one for the players the change did not touch.
+ */
+public final class GameSnapshot {
+    private final long version;
+    private final boolean started;
+    private final long turn;
+    private final Game.Phase phase;
+    private final int currentPlayerId;
+    private final List<Player> players;
+    private final List<PlayerSummary> summaries;
+    private final Player[] sources; // The players of the game the copies were made from, by index
+    private final int donjonStackSize;
+    private final int treasureStackSize;
+    private final Discard donjonDiscard;
+    private final Discard treasureDiscard;
+
+    private GameSnapshot(long version, Game game, int currentPlayerId, List<Player> players,
+            List<PlayerSummary> summaries, Player[] sources, int donjonStackSize, int treasureStackSize,
+            Discard donjonDiscard, Discard treasureDiscard) {
+        this.version = version;
+        this.started = game.isGameStarted();
+        this.turn = game.getTurn();
+        this.phase = game.getPhase();
+        this.currentPlayerId = currentPlayerId;
+        this.players = players;
+        this.summaries = summaries;
+        this.sources = sources;
+        this.donjonStackSize = donjonStackSize;
+        this.treasureStackSize = treasureStackSize;
+        this.donjonDiscard = donjonDiscard;
+        this.treasureDiscard = treasureDiscard;
+    }
+
+    /**
+     * @brief Builds the snapshot of a game after a change. Called by the game, holding its lock.
+     * @param previous The previous snapshot, or null.
+     * @param version The version of the game after the change.
+     * @param game The game.
+     * @param touched The players changed, or null if any player may have changed.
+     * @return The new snapshot.
+     */
+    static GameSnapshot of(GameSnapshot previous, long version, Game game, Player[] touched) {
+        List<Player> playerList = game.getPlayerList();
+        int count = playerList.size();
+        Player currentPlayer = game.getCurrentPlayer();
+        if (touched != null && touched.length == 0 && previous != null && previous.hasSources(playerList)) {
+            // No player changed: the lists of players are shared as they are
+            return new GameSnapshot(version, game, currentPlayer != null ? currentPlayer.getId() : -1,
+                previous.players, previous.summaries, previous.sources,
+                game.getDonjonStack().getSize(), game.getTreasureStack().getSize(),
+                game.getDonjonDiscard().snapshot(), game.getTreasureDiscard().snapshot());
+        }
+        ArrayList<Player> players = new ArrayList<Player>(count);
+        ArrayList<PlayerSummary> summaries = new ArrayList<PlayerSummary>(count);
+        Player[] sources = new Player[count];
+        for (int i = 0; i < count; i++) {
+            Player player = playerList.get(i);
+            int reused = touched != null && !contains(touched, player) && previous != null ? previous.indexOf(player) : -1;
+            if (reused >= 0) {
+                players.add(previous.players.get(reused));
+                summaries.add(previous.summaries.get(reused));
+            } else {
+                players.add(player.snapshot());
+                summaries.add(PlayerSummary.of(player));
+            }
+            sources[i] = player;
+        }
+        return new GameSnapshot(version, game, currentPlayer != null ? currentPlayer.getId() : -1,
+            Collections.unmodifiableList(players), Collections.unmodifiableList(summaries), sources,
+            game.getDonjonStack().getSize(), game.getTreasureStack().getSize(),
+            game.getDonjonDiscard().snapshot(), game.getTreasureDiscard().snapshot());
+    }
+
+    private boolean hasSources(List<Player> playerList) {
+        if (playerList.size() != sources.length) {
+            return false;
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] != playerList.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(Player player) {
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == player) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(Player[] players, Player player) {
+        for (Player touched : players) {
+            if (touched == player) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @brief Gets the number of the turn.
+     * @return The turn, 0 before the game starts.
+     */
+    public long getTurn() {
+        return turn;
+    }
+
+    public Game.Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @brief Gets the id of the current player.
+     * @return The id, -1 if the game is not started.
+     */
+    public int getCurrentPlayerId() {
+        return currentPlayerId;
+    }
+
+    /**
+     * @brief Gets the copies of the players. They are shared by all the readers, never modify them.
+     * @return The players, in turn order.
+     */
+    public List<Player> getPlayers() {
+        return players;
+    }
+
+    /**
+     * @brief Gets the copy of a player.
+     * @param id The id of the player.
+     * @return The player, or null if there is none with this id.
+     */
+    public Player getPlayer(int id) {
+        for (Player player : players) {
+            if (player.getId() == id) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief Gets the summaries of the players.
+     * @return The summaries, in turn order.
+     */
+    public List<PlayerSummary> getSummaries() {
+        return summaries;
+    }
+
+    /**
+     * @brief Gets the summary of the current player.
+     * @return The summary, or null if the game is not started.
+     */
+    public PlayerSummary getCurrentPlayer() {
+        for (PlayerSummary summary : summaries) {
+            if (summary.getId() == currentPlayerId) {
+                return summary;
+            }
+        }
+        return null;
+    }
+
+    public int getDonjonStackSize() {
+        return donjonStackSize;
+    }
+
+    public int getTreasureStackSize() {
+        return treasureStackSize;
+    }
+
+    /**
+     * @brief Gets the donjon discard pile.
+     * @return A frozen copy of the pile.
+     */
+    public Discard getDonjonDiscard() {
+        return donjonDiscard;
+    }
+
+    /**
+     * @brief Gets the treasure discard pile.
+     * @return A frozen copy of the pile.
+     */
+    public Discard getTreasureDiscard() {
+        return treasureDiscard;
+    }
+}
@@ -0,0 +1,183 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.CardCatalog;
+import org.gregsquad.gregsadventure.card.Class;
+import org.gregsquad.gregsadventure.card.Discard;
+import org.gregsquad.gregsadventure.card.Equipement;
+import org.gregsquad.gregsadventure.card.Monster;
+import org.gregsquad.gregsadventure.card.Race;
+import org.gregsquad.gregsadventure.card.Stack;
+
+/**
+ * @class GameState
+ * @brief The whole state of a game, to move a running room to another server.
+ * The cards are kept as ids of the CardCatalog: the receiving server creates them again from its own
+ * catalog, which must be the same. The random generators are kept as seeds, so the restored game
+ * draws the same cards as the original would have.
+ * Built by Game.capture, turned back into a game by the Game(GameState) constructor.
+ */
+public final class GameState implements Serializable {
+    private static final long serialVersionUID = 1L; // Fixed, the servers of a move may be built apart
+    private static final int DEFAULT_CARD = 0; // The race and the class of a new player, not in the catalog
+
+    final String catalog;
+    final long version;
+    final boolean started;
+    final long turn;
+    final Game.Phase phase;
+    final int currentPlayer; // Index in the players, -1 if none
+    final int playerHelp; // Index in the players, -1 if none
+    final int monster; // Id of the monster, -1 if none
+    final long seed;
+    final PlayerState[] players;
+    final int[] donjonStack;
+    final long donjonSeed;
+    final int[] treasureStack;
+    final long treasureSeed;
+    final int[] donjonDiscard;
+    final long donjonDiscardVersion;
+    final int[] treasureDiscard;
+    final long treasureDiscardVersion;
+
+    /**
+     * @brief Captures the state of a game. Called by the game, holding its lock.
+     * The random generators of the game are restarted from the seeds captured.
+     */
+    GameState(Game game, long version, long seed, Monster monster, Player playerHelp) {
+        List<Player> playerList = game.getPlayerList();
+        this.catalog = CardCatalog.getInstance().getName();
+        this.version = version;
+        this.started = game.isGameStarted();
+        this.turn = game.getTurn();
+        this.phase = game.getPhase();
+        this.currentPlayer = playerList.indexOf(game.getCurrentPlayer());
+        this.playerHelp = playerHelp != null ? playerList.indexOf(playerHelp) : -1;
+        this.monster = monster != null ? monster.getId() : -1;
+        this.seed = seed;
+        this.players = new PlayerState[playerList.size()];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new PlayerState(playerList.get(i));
+        }
+        Stack donjon = game.getDonjonStack();
+        Stack treasure = game.getTreasureStack();
+        this.donjonStack = donjon.getCardIds();
+        this.donjonSeed = donjon.reseed();
+        this.treasureStack = treasure.getCardIds();
+        this.treasureSeed = treasure.reseed();
+        this.donjonDiscard = game.getDonjonDiscard().getCardIds();
+        this.donjonDiscardVersion = game.getDonjonDiscard().getVersion();
+        this.treasureDiscard = game.getTreasureDiscard().getCardIds();
+        this.treasureDiscardVersion = game.getTreasureDiscard().getVersion();
+    }
+
+    /**
+     * @brief Gets the version of the game captured.
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @brief Gets the number of players of the game captured.
+     * @return The number of players.
+     */
+    public int getPlayerCount() {
+        return players.length;
+    }
+
+    /**
+     * @brief Checks that the cards of this state can be created again here.
+     * @throws IllegalArgumentException If the catalog of this server is not the one of the state.
+     */
+    void checkCatalog() {
+        if (!catalog.equals(CardCatalog.getInstance().getName())) {
+            throw new IllegalArgumentException("The game was captured with the card catalog " + catalog);
+        }
+    }
+
+    Stack donjonStack() {
+        return new Stack(donjonStack, donjonSeed);
+    }
+
+    Stack treasureStack() {
+        return new Stack(treasureStack, treasureSeed);
+    }
+
+    Discard donjonDiscard() {
+        return new Discard(donjonDiscard, donjonDiscardVersion);
+    }
+
+    Discard treasureDiscard() {
+        return new Discard(treasureDiscard, treasureDiscardVersion);
+    }
+
+    static Card create(int id) {
+        Card card = CardCatalog.getInstance().create(id);
+        if (card == null) {
+            throw new IllegalArgumentException("Unknown card id: " + id);
+        }
+        return card;
+    }
+
+    /**
+     * @class PlayerState
+     * @brief The state of a player. The damage is not kept, it is computed again from the rest.
+     */
+    static final class PlayerState implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int id;
+        private final String name;
+        private final int level;
+        private final int race;
+        private final int classe;
+        private final int diceBuff;
+        private final int treasuresForFight;
+        private final int[] deck;
+        private final int[] stuff;
+
+        PlayerState(Player player) {
+            this.id = player.getId();
+            this.name = player.getName();
+            this.level = player.getLevel();
+            this.race = player.getRace().getId();
+            this.classe = player.getPlayerClass().getId();
+            this.diceBuff = player.getDiceBuff();
+            this.treasuresForFight = player.getTreasuresForFight();
+            this.deck = player.getDeck().getCardIds();
+            List<Equipement> equipements = player.getStuff().getEquipements();
+            this.stuff = new int[equipements.size()];
+            for (int i = 0; i < stuff.length; i++) {
+                stuff[i] = equipements.get(i).getId();
+            }
+        }
+
+        /**
+         * @brief Creates the player again.
+         * @return The player.
+         */
+        Player restore() {
+            Player player = new Player(id, name);
+            for (int cardId : deck) {
+                player.getDeck().addCard(create(cardId));
+            }
+            player.addLevel(level - player.getLevel());
+            if (race != DEFAULT_CARD) {
+                player.setRace((Race) create(race));
+            }
+            if (classe != DEFAULT_CARD) {
+                player.setPlayerClass((Class) create(classe));
+            }
+            player.setDiceBuff(diceBuff);
+            player.setTreasuresForFight(treasuresForFight);
+            for (int cardId : stuff) {
+                player.getStuff().addEquipement((Equipement) create(cardId));
+            }
+            return player;
+        }
+    }
+}
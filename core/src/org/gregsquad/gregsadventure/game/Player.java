@@ -47,6 +47,40 @@ public class Player implements Serializable {
         this.diceBuff = 0;
     }
 
+    /**
+     * @brief Constructor for a copy of a player, see snapshot and fork.
+     */
+    private Player(Player source, boolean frozen){
+        this.id = source.id;
+        this.name = source.name;
+        this.level = source.level;
+        this.damage = source.damage;
+        this.classe = source.classe;
+        this.race = source.race;
+        this.deck = frozen ? source.deck.snapshot() : source.deck.fork();
+        this.stuff = source.stuff.snapshot(); // A copy of six slots, it can be changed
+        this.diceBuff = source.diceBuff;
+        this.treasuresForFight = source.treasuresForFight;
+    }
+
+    /**
+     * @brief Gets a copy of the player as it is now, for the readers of a game snapshot.
+     * The deck of the copy is frozen and shares the cards of this one, the stuff is copied.
+     * @return The copy of the player.
+     */
+    public Player snapshot(){
+        return new Player(this, true);
+    }
+
+    /**
+     * @brief Gets a copy of the player for a copy of the game, see Game.fork. The copy can be changed
+     * without changing this player, the cards are shared.
+     * @return The copy of the player.
+     */
+    Player fork(){
+        return new Player(this, false);
+    }
+
 
 
     /**
@@ -104,14 +138,8 @@ public class Player implements Serializable {
      * @brief Calculates and gets the total damage of the player.
      * @return The total damage of the player.
      */
-    public int getDamage(){//We do the calcul of damage bonus here
-        damage = level;
-        for(Equipement equipement : stuff.getEquipements()){
-            damage += equipement.getBonus();
-            if(equipement.comboValid(this.race.getName())){
-                damage += equipement.getCombo();
-            }
-        }
+    public int getDamage(){//We do the calcul of damage bonus here, from the totals kept by the stuff
+        damage = level + stuff.getBonus() + stuff.getComboBonus(this.race) + stuff.getComboBonus(this.classe);
         damage += this.race.getBonusDamage();
         return this.damage;
     }
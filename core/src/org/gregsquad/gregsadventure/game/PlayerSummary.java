@@ -0,0 +1,85 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.io.Serializable;
+
+/**
+ * @class PlayerSummary
+ * @brief The public view of a player: what everybody at the table can see.
+ * The cards in hand are hidden, only their number is shown. Instances are immutable.
+ */
+public final class PlayerSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int id;
+    private final String name;
+    private final int level;
+    private final int damage;
+    private final String race;
+    private final String playerClass;
+    private final int handSize;
+    private final int equipmentCount;
+
+    /**
+     * @brief Constructor for PlayerSummary class.
+     * @param id The id of the player.
+     * @param name The name of the player.
+     * @param level The level of the player.
+     * @param damage The total damage of the player.
+     * @param race The name of the race of the player.
+     * @param playerClass The name of the class of the player.
+     * @param handSize The number of cards in the hand of the player.
+     * @param equipmentCount The number of equipements worn by the player.
+     */
+    public PlayerSummary(int id, String name, int level, int damage, String race, String playerClass, int handSize, int equipmentCount) {
+        this.id = id;
+        this.name = name;
+        this.level = level;
+        this.damage = damage;
+        this.race = race;
+        this.playerClass = playerClass;
+        this.handSize = handSize;
+        this.equipmentCount = equipmentCount;
+    }
+
+    /**
+     * @brief Builds the public view of a player.
+     * @param player The player to summarize.
+     * @return The summary of the player.
+     */
+    public static PlayerSummary of(Player player) {
+        return new PlayerSummary(player.getId(), player.getName(), player.getLevel(), player.getDamage(),
+            player.getRace().getName(), player.getPlayerClass().getName(),
+            player.getDeck().getSize(), player.getStuff().getEquipements().size());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getDamage() {
+        return damage;
+    }
+
+    public String getRace() {
+        return race;
+    }
+
+    public String getPlayerClass() {
+        return playerClass;
+    }
+
+    public int getHandSize() {
+        return handSize;
+    }
+
+    public int getEquipmentCount() {
+        return equipmentCount;
+    }
+}
@@ -0,0 +1,103 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.Discard;
+
+/**
+ * @class PublicTableState
+ * @brief The public state of a table, as streamed to the spectators.
+ * It holds nothing hidden: players are summarized, stacks are only counted and discards only show their top card.
+ * Instances are immutable, each one replaces the previous one as a whole.
+ */
+public final class PublicTableState implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public static final int NO_CARD = -1;
+
+    private final long version;
+    private final boolean started;
+    private final int currentPlayerId;
+    private final List<PlayerSummary> players;
+    private final int donjonStackSize;
+    private final int treasureStackSize;
+    private final int donjonDiscardTop;
+    private final int treasureDiscardTop;
+
+    /**
+     * @brief Constructor for PublicTableState class.
+     */
+    private PublicTableState(long version, boolean started, int currentPlayerId, List<PlayerSummary> players,
+            int donjonStackSize, int treasureStackSize, int donjonDiscardTop, int treasureDiscardTop) {
+        this.version = version;
+        this.started = started;
+        this.currentPlayerId = currentPlayerId;
+        this.players = players;
+        this.donjonStackSize = donjonStackSize;
+        this.treasureStackSize = treasureStackSize;
+        this.donjonDiscardTop = donjonDiscardTop;
+        this.treasureDiscardTop = treasureDiscardTop;
+    }
+
+    /**
+     * @brief Captures the public state of a game from one of its snapshots.
+     * @param snapshot The snapshot of the game, whose player summaries are shared.
+     * @return The public state of the game.
+     */
+    public static PublicTableState of(GameSnapshot snapshot) {
+        return new PublicTableState(snapshot.getVersion(), snapshot.isStarted(), snapshot.getCurrentPlayerId(),
+            snapshot.getSummaries(),
+            snapshot.getDonjonStackSize(), snapshot.getTreasureStackSize(),
+            topOf(snapshot.getDonjonDiscard()), topOf(snapshot.getTreasureDiscard()));
+    }
+
+    private static int topOf(Discard discard) {
+        Card top = discard.getSize() > 0 ? discard.getCard(0) : null; // Discards add on top, at the head
+        return top != null ? top.getId() : NO_CARD;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @brief Gets the id of the player whose turn it is.
+     * @return The id of the current player, or -1 before the game starts.
+     */
+    public int getCurrentPlayerId() {
+        return currentPlayerId;
+    }
+
+    public List<PlayerSummary> getPlayers() {
+        return players;
+    }
+
+    public int getDonjonStackSize() {
+        return donjonStackSize;
+    }
+
+    public int getTreasureStackSize() {
+        return treasureStackSize;
+    }
+
+    /**
+     * @brief Gets the id of the card on top of the donjon discard.
+     * @return The id of the card, or NO_CARD if the discard is empty.
+     */
+    public int getDonjonDiscardTop() {
+        return donjonDiscardTop;
+    }
+
+    /**
+     * @brief Gets the id of the card on top of the treasure discard.
+     * @return The id of the card, or NO_CARD if the discard is empty.
+     */
+    public int getTreasureDiscardTop() {
+        return treasureDiscardTop;
+    }
+}
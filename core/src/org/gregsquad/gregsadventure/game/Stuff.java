@@ -1,46 +1,136 @@
 package org.gregsquad.gregsadventure.game;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.ComboTable;
 import org.gregsquad.gregsadventure.card.Equipement;
 import java.io.Serializable;
 /**
  * @class Stuff
  * @brief Represents the equipment collection of a player in the game.
+ * Every equipement is worn in the slot of its position: head, body, legs, feet, and two hands.
+ * A small equipement held in hand takes one hand, a big one both. Equipping a slot that is taken
+ * replaces what was worn there.
+ * The total bonus and the combo bonus for each race and class of the ComboTable are kept up to date, so the damage of a player
+ * is read in constant time. An equipement must not be changed while it is worn.
  */
 public class Stuff implements Serializable {
-    protected int size;
-    protected LinkedList<Equipement> equipements;
+    public static final int HEAD = 0;
+    public static final int BODY = 1;
+    public static final int LEGS = 2;
+    public static final int FEET = 3;
+    public static final int HAND = 4;
+
+    private static final int SLOT_COUNT = 6; // The positions, the hand counting twice
+    private static final int SECOND_HAND = 5;
+
+    private final Equipement[] slots = new Equipement[SLOT_COUNT];
+    private final Equipement[] worn = new Equipement[SLOT_COUNT]; // The distinct equipements, for the random loss
+    private int size;
+    private int bonus;
+    private final int[] comboBonus; // By column of the ComboTable
+
     /**
      * @brief Default constructor for Stuff class.
-     * Initializes the size to 0 and creates an empty list of equipements.
+     * Creates an empty collection of equipements.
      */
     public Stuff() {
-        this.size = 0;
-        this.equipements = new LinkedList<Equipement>();
+        this.comboBonus = new int[ComboTable.getInstance().getColumnCount()];
     }
 
     /**
-     * @brief Constructor for Stuff class with an initial list of equipements.
-     * @param Equipements The initial list of equipements.
+     * @brief Constructor for Stuff class with initial equipements.
+     * @param equipements The initial equipements, equipped in order.
+     */
+    public Stuff(Collection<Equipement> equipements) {
+        this();
+        for (Equipement equipement : equipements) {
+            addEquipement(equipement);
+        }
+    }
+    /**
+     * @brief Constructor for a copy of a stuff, see snapshot.
      */
-    public Stuff(LinkedList<Equipement> Equipements) {
-        this.size = Equipements.size();
-        this.equipements = Equipements;
+    private Stuff(Stuff source) {
+        System.arraycopy(source.slots, 0, slots, 0, SLOT_COUNT);
+        System.arraycopy(source.worn, 0, worn, 0, SLOT_COUNT);
+        this.comboBonus = source.comboBonus.clone();
+        this.size = source.size;
+        this.bonus = source.bonus;
     }
+
     /**
-     * @brief Gets the list of equipements.
-     * @return The list of equipements.
+     * @brief Gets a copy of the stuff as it is now. At most six equipements, so it is cheap.
+     * @return The copy of the stuff.
      */
-    public LinkedList<Equipement> getEquipements() {
-        return equipements;
+    public Stuff snapshot() {
+        return new Stuff(this);
     }
 
     /**
-     * @brief Adds an equipement to the collection.
+     * @brief Gets the equipements worn.
+     * @return A read-only view of the equipements, each one once even if it takes both hands.
+     */
+    public List<Equipement> getEquipements() {
+        return new AbstractList<Equipement>() {
+            @Override
+            public Equipement get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                return worn[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @brief Gets the equipement worn at a position.
+     * @param position The position, HEAD to HAND. For the hands, the first hand.
+     * @return The equipement, or null if the position is free.
+     */
+    public Equipement getEquipement(int position) {
+        return slots[checkPosition(position)];
+    }
+
+    /**
+     * @brief Equips an equipement in the slot of its position, in constant time.
      * @param equipement The equipement to add.
+     * @return The equipements it replaces, to be discarded. Empty if the slot was free.
      */
-    public void addEquipement(Equipement equipement) {
-        equipements.add(equipement);
+    public List<Equipement> addEquipement(Equipement equipement) {
+        int position = checkPosition(equipement.getPosition());
+        unequip(equipement, null); // Worn again, maybe in the other hand
+        List<Equipement> replaced = new ArrayList<Equipement>(2);
+        if (position != HAND) {
+            unequip(slots[position], replaced);
+            slots[position] = equipement;
+        } else if (equipement.getEquipementSize()) {
+            unequip(slots[HAND], replaced);
+            unequip(slots[SECOND_HAND], replaced);
+            slots[HAND] = equipement;
+            slots[SECOND_HAND] = equipement;
+        } else {
+            int hand = slots[HAND] == null ? HAND : SECOND_HAND;
+            if (slots[hand] != null) {
+                hand = HAND; // Both hands are taken: the first one lets go
+            }
+            unequip(slots[hand], replaced);
+            slots[hand] = equipement;
+        }
+        worn[size++] = equipement;
+        bonus += equipement.getBonus();
+        ComboTable.getInstance().addCombos(equipement.getId(), comboBonus, 1);
+        return replaced;
     }
 
     /**
@@ -48,28 +138,110 @@ public class Stuff implements Serializable {
      * @param equipement The equipement to remove.
      */
     public void removeEquipement(Equipement equipement) {
-        equipements.remove(equipement);
+        unequip(equipement, null);
     }
 
     /**
-     * @brief Removes an equipement at the specified index.
+     * @brief Removes an equipement at the specified index of getEquipements.
      * Used for the loss of a random equipement.
      * @param index The index of the equipement to remove.
      */
     public void removeEquipement(int index) { // Pour la perte d'un equipement random
-        equipements.remove(index);
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        unequip(worn[index], null);
     }
+
+    /**
+     * @brief Removes a random equipement, in constant time.
+     * @param rand The random generator to use.
+     * @return The removed equipement, or null if nothing is worn.
+     */
+    public Equipement removeRandomEquipement(Random rand) {
+        if (size == 0) {
+            return null;
+        }
+        Equipement equipement = worn[rand.nextInt(size)];
+        unequip(equipement, null);
+        return equipement;
+    }
+
     /**
      * @brief Clears the entire collection of equipements.
      */
     public void clearStuff() {
-        equipements.clear();
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = null;
+            worn[i] = null;
+        }
+        size = 0;
+        bonus = 0;
+        Arrays.fill(comboBonus, 0);
     }
     /**
-     * @brief Gets the current size of the collection.
-     * @return The current size of the collection.
+     * @brief Gets the number of equipements worn.
+     * @return The number of equipements, an equipement taking both hands counting once.
      */
     public int getSize() {
         return size;
     }
+
+    /**
+     * @brief Gets the sum of the bonuses of the equipements worn.
+     * @return The total bonus.
+     */
+    public int getBonus() {
+        return bonus;
+    }
+
+    /**
+     * @brief Gets the sum of the combo bonuses of the equipements worn that apply to a race or a class.
+     * @param card The race or the class of the player.
+     * @return The combo bonus for this card, 0 if the ComboTable does not know it.
+     */
+    public int getComboBonus(Card card) {
+        int column = ComboTable.getInstance().getColumn(card.getId());
+        return column >= 0 ? comboBonus[column] : 0;
+    }
+
+    /**
+     * @brief Takes off an equipement, from all its slots, and updates the bonuses.
+     * @param equipement The equipement to take off, or null.
+     * @param replaced The list to add it to, or null.
+     */
+    private void unequip(Equipement equipement, List<Equipement> replaced) {
+        int index = indexOf(equipement);
+        if (index < 0) {
+            return;
+        }
+        worn[index] = worn[--size]; // The order of the worn equipements does not matter
+        worn[size] = null;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (slots[slot] == equipement) {
+                slots[slot] = null;
+            }
+        }
+        bonus -= equipement.getBonus();
+        ComboTable.getInstance().addCombos(equipement.getId(), comboBonus, -1);
+        if (replaced != null) {
+            replaced.add(equipement);
+        }
+    }
+
+    private int indexOf(Equipement equipement) {
+        for (int i = 0; i < size; i++) {
+            if (worn[i] == equipement) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int checkPosition(int position) {
+        if (position < HEAD || position > HAND) {
+            throw new IllegalArgumentException("Unknown equipement position: " + position);
+        }
+        return position;
+    }
 }
@@ -0,0 +1,70 @@
+package org.gregsquad.gregsadventure.game;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * @class TableView
+ * @brief The table as seen by one player.
+ * Only the owner of the view gets its full player, hand included. The others are summaries
+ * showing what is visible at a real table. Instances are shared between requests, never modify them.
+ */
+public final class TableView implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long version;
+    private final int currentPlayerId;
+    private final List<PlayerSummary> players;
+    private final Player self;
+
+    /**
+     * @brief Constructor for TableView class.
+     * @param version The version of the game the view was built from.
+     * @param currentPlayerId The id of the current player, -1 if the game is not started.
+     * @param players The summaries of all the players, in turn order.
+     * @param self The full player of the owner of the view, null for a client that is not a player.
+     */
+    public TableView(long version, int currentPlayerId, List<PlayerSummary> players, Player self) {
+        this.version = version;
+        this.currentPlayerId = currentPlayerId;
+        this.players = players;
+        this.self = self;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getCurrentPlayerId() {
+        return currentPlayerId;
+    }
+
+    /**
+     * @brief Gets the summaries of all the players, the owner included.
+     * @return The summaries, in turn order.
+     */
+    public List<PlayerSummary> getPlayers() {
+        return players;
+    }
+
+    /**
+     * @brief Gets the summary of a player.
+     * @param id The id of the player.
+     * @return The summary of the player, or null if there is no such player.
+     */
+    public PlayerSummary getPlayer(int id) {
+        for (PlayerSummary player : players) {
+            if (player.getId() == id) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief Gets the full player of the owner of the view.
+     * @return The player, or null if the view was built for somebody else.
+     */
+    public Player getSelf() {
+        return self;
+    }
+}
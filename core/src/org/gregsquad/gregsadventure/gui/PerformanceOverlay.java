@@ -0,0 +1,210 @@
+package org.gregsquad.gregsadventure.gui;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.g2d.BitmapFont;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.profiling.GLProfiler;
+
+import org.gregsquad.gregserver.Client;
+import org.gregsquad.gregserver.LatencyHistogram;
+
+/**
+ * @class PerformanceOverlay
+ * @brief Collects frame, GPU, memory and network metrics and draws them on top of a screen.
+ *
+ * Frame times are always recorded, it is a single array increment. The GL profiler is only enabled
+ * while the overlay is visible, since it wraps every GL call.
+ */
+public class PerformanceOverlay {
+    private static final float REFRESH_INTERVAL = 1f; // seconds between two refreshes of the displayed values
+    private static final int FRAME_WINDOW = 5; // refreshes covered by the frame time histogram
+    private static final float LINE_HEIGHT = 22f;
+    private static final String EXPORT_FILE = "perf-metrics.csv";
+
+    private final Client client;
+    private final GLProfiler profiler;
+    private final LatencyHistogram frameTimes;
+    private final BitmapFont font;
+
+    private boolean visible;
+    private float sinceRefresh;
+    private int refreshes;
+
+    private int drawCalls;
+    private int textureBindings;
+    private long lastBytesSent;
+    private long lastBytesReceived;
+    private long lastGcCount;
+    private long lastGcTime;
+
+    private Map<String, Number> metrics;
+    private List<String> lines;
+
+    /**
+     * @brief Constructor for PerformanceOverlay class.
+     * @param client The client whose network activity is reported, can be null.
+     */
+    public PerformanceOverlay(Client client) {
+        this.client = client;
+        this.profiler = new GLProfiler(Gdx.graphics);
+        this.frameTimes = new LatencyHistogram();
+        this.font = new BitmapFont();
+        this.font.setColor(Color.BLACK);
+        this.font.getData().setScale(1.2f);
+        this.visible = false;
+        this.metrics = new LinkedHashMap<String, Number>();
+        this.lines = new ArrayList<String>();
+    }
+
+    /**
+     * @brief Shows or hides the overlay.
+     */
+    public void toggle() {
+        visible = !visible;
+        if (visible) {
+            profiler.enable();
+        } else {
+            profiler.disable();
+        }
+    }
+
+    /**
+     * @brief Checks if the overlay is visible.
+     * @return True if the overlay is drawn.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * @brief Records the previous frame. Must be called once at the beginning of each render.
+     * @param delta The time of the previous frame in seconds.
+     */
+    public void update(float delta) {
+        frameTimes.record((long) (delta * 1_000_000_000L));
+        if (profiler.isEnabled()) {
+            drawCalls = profiler.getDrawCalls();
+            textureBindings = profiler.getTextureBindings();
+            profiler.reset();
+        }
+
+        sinceRefresh += delta;
+        if (sinceRefresh >= REFRESH_INTERVAL) {
+            refresh(sinceRefresh);
+            sinceRefresh = 0;
+            if (++refreshes % FRAME_WINDOW == 0) {
+                frameTimes.reset();
+            }
+        }
+    }
+
+    /**
+     * @brief Draws the overlay if it is visible. The batch must be begun.
+     * @param batch The batch used to draw the text.
+     * @param x The left position of the text.
+     * @param y The top position of the text.
+     */
+    public void draw(SpriteBatch batch, float x, float y) {
+        if (!visible) {
+            return;
+        }
+        for (String line : lines) {
+            font.draw(batch, line, x, y);
+            y -= LINE_HEIGHT;
+        }
+    }
+
+    /**
+     * @brief Gets the last computed metrics, for tools that want the raw values.
+     * @return The metrics by name, in display order.
+     */
+    public Map<String, Number> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @brief Appends the last computed metrics to a local CSV file, one row per metric.
+     * The long format keeps the file valid when new request purposes show up.
+     */
+    public void export() {
+        StringBuilder rows = new StringBuilder();
+        if (!Gdx.files.local(EXPORT_FILE).exists()) {
+            rows.append("timestamp,metric,value\n");
+        }
+        long timestamp = System.currentTimeMillis();
+        for (Map.Entry<String, Number> entry : metrics.entrySet()) {
+            rows.append(timestamp).append(',').append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+        }
+        Gdx.files.local(EXPORT_FILE).writeString(rows.toString(), true);
+    }
+
+    /**
+     * @brief Frees the resources of the overlay.
+     */
+    public void dispose() {
+        profiler.disable();
+        font.dispose();
+    }
+
+    /**
+     * @brief Recomputes the metrics and the displayed lines.
+     * @param elapsed The time since the last refresh in seconds.
+     */
+    private void refresh(float elapsed) {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        values.put("fps", Gdx.graphics.getFramesPerSecond());
+        values.put("frame_p50_ms", frameTimes.getPercentile(50) / 1e6);
+        values.put("frame_p99_ms", frameTimes.getPercentile(99) / 1e6);
+        values.put("draw_calls", drawCalls);
+        values.put("texture_bindings", textureBindings);
+
+        Runtime runtime = Runtime.getRuntime();
+        values.put("heap_used_mb", (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        values.put("heap_max_mb", runtime.maxMemory() >> 20);
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        values.put("gc_per_s", (gcCount - lastGcCount) / elapsed);
+        values.put("gc_ms_per_s", (gcTime - lastGcTime) / elapsed);
+        lastGcCount = gcCount;
+        lastGcTime = gcTime;
+
+        List<String> text = new ArrayList<String>();
+        text.add(String.format("Frame p50 %.1f ms  p99 %.1f ms  (%d fps)", values.get("frame_p50_ms"), values.get("frame_p99_ms"), values.get("fps")));
+        text.add("Draw calls " + drawCalls + "  Texture binds " + textureBindings);
+        text.add(String.format("Heap %d / %d MB  GC %.1f/s (%.0f ms/s)", values.get("heap_used_mb"), values.get("heap_max_mb"), values.get("gc_per_s"), values.get("gc_ms_per_s")));
+
+        if (client != null) {
+            long sent = client.getBytesSent();
+            long received = client.getBytesReceived();
+            values.put("bytes_sent_per_s", (sent - lastBytesSent) / elapsed);
+            values.put("bytes_received_per_s", (received - lastBytesReceived) / elapsed);
+            lastBytesSent = sent;
+            lastBytesReceived = received;
+            text.add(String.format("Net out %.0f B/s  in %.0f B/s", values.get("bytes_sent_per_s"), values.get("bytes_received_per_s")));
+
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(client.getRoundTrips()).entrySet()) {
+                double p50 = entry.getValue().getPercentile(50) / 1e6;
+                double p99 = entry.getValue().getPercentile(99) / 1e6;
+                values.put("rtt_" + entry.getKey() + "_p50_ms", p50);
+                values.put("rtt_" + entry.getKey() + "_p99_ms", p99);
+                text.add(String.format("%s  p50 %.1f ms  p99 %.1f ms", entry.getKey(), p50, p99));
+            }
+        }
+
+        metrics = values;
+        lines = text;
+    }
+}
@@ -0,0 +1,72 @@
+package org.gregsquad.gregsadventure.gui;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.badlogic.gdx.Gdx;
+
+/**
+ * @class StateChannel
+ * @brief Lock-free handoff of immutable snapshots from a network thread to the render thread.
+ *
+ * A single producer publishes snapshots, only the latest one is kept. The first publish after a
+ * consumption posts one runnable on the render thread, so any number of publishes between two
+ * frames results in a single update of the scene2d actors.
+ *
+ * @param <T> The type of the snapshot, which must not be mutated once published.
+ */
+public class StateChannel<T> {
+    private final AtomicReference<T> latest;
+    private final AtomicBoolean dirty;
+    private final Consumer<T> consumer;
+    private volatile boolean closed;
+
+    /**
+     * @brief Constructor for StateChannel class.
+     * @param consumer The action applied on the render thread to the latest snapshot.
+     */
+    public StateChannel(Consumer<T> consumer) {
+        this.latest = new AtomicReference<T>();
+        this.dirty = new AtomicBoolean(false);
+        this.consumer = consumer;
+        this.closed = false;
+    }
+
+    /**
+     * @brief Publishes a new snapshot. Can be called from any thread.
+     * @param snapshot The snapshot to publish.
+     */
+    public void publish(T snapshot) {
+        latest.set(snapshot);
+        if (dirty.compareAndSet(false, true)) {
+            Gdx.app.postRunnable(this::consume);
+        }
+    }
+
+    /**
+     * @brief Gets the latest published snapshot.
+     * @return The latest snapshot, or null if nothing was published yet.
+     */
+    public T get() {
+        return latest.get();
+    }
+
+    /**
+     * @brief Stops delivering snapshots, pending runnables become no-ops.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @brief Applies the latest snapshot. Runs on the render thread.
+     */
+    private void consume() {
+        dirty.set(false);
+        T snapshot = latest.get();
+        if (!closed && snapshot != null) {
+            consumer.accept(snapshot);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.gregsquad.gregsadventure.gui.screens;
 import org.gregsquad.gregsadventure.GregsAdventure;
 
 import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.Input;
 import com.badlogic.gdx.assets.AssetManager;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.OrthographicCamera;
@@ -22,12 +23,19 @@ import com.badlogic.gdx.scenes.scene2d.utils.TextureRegionDrawable;
 import com.badlogic.gdx.scenes.scene2d.utils.ChangeListener;
 import com.badlogic.gdx.utils.ScreenUtils;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import org.gregsquad.gregsadventure.GregsAdventure;
+import org.gregsquad.gregsadventure.gui.PerformanceOverlay;
+import org.gregsquad.gregsadventure.gui.StateChannel;
 
 import org.gregsquad.gregserver.Client;
+import org.gregsquad.gregserver.Log;
+import org.gregsquad.gregserver.Message;
+import org.gregsquad.gregserver.Opcode;
 import org.gregsquad.gregsadventure.game.Player;
+import org.gregsquad.gregsadventure.game.PlayerSummary;
+import org.gregsquad.gregsadventure.game.TableView;
 import org.gregsquad.gregsadventure.card.Card;
 import org.gregsquad.gregsadventure.card.Deck;
 import org.gregsquad.gregsadventure.card.ConfigLoader;
@@ -48,6 +56,8 @@ public class GameScreen extends Screen {
 
     private TooltipManager tooltipManager;
 
+    private PerformanceOverlay overlay; // F3 to show, F4 to export
+
     private SpriteBatch batch;
     private BitmapFont font;
 
@@ -60,19 +70,36 @@ public class GameScreen extends Screen {
     private Table cardTable;
 
 
-    private ArrayList<Player> players;
+    // Only read and written on the render thread, the poller goes through tableChannel
+    private List<PlayerSummary> players;
     private Player player;
 
     private int currentPlayerId;
 
+    private StateChannel<TableState> tableChannel;
+
+    /**
+     * Immutable view of the table published by the poller thread.
+     */
+    private static final class TableState {
+        private final List<PlayerSummary> players;
+        private final int currentPlayerId;
+
+        private TableState(TableView view) {
+            this.players = view.getPlayers();
+            this.currentPlayerId = view.getCurrentPlayerId();
+        }
+    }
+
     public GameScreen(GregsAdventure gui, AssetManager assets, Client client, int id) {
         super(gui, assets);
 
         this.client = client;
         this.id = id;
 
-        players = client.getPlayerList();
-        player = players.get(id);
+        TableView view = client.getTableView();
+        players = view.getPlayers();
+        player = view.getSelf();
         this.name = player.getName();
 
         // Settings of the tooltips
@@ -92,6 +119,8 @@ public class GameScreen extends Screen {
 
         skin = assets.get("skin/uiskin.json", Skin.class);
 
+        overlay = new PerformanceOverlay(client);
+
         cardTable = new Table();
         cardTable.setPosition(960, 170);
 
@@ -145,20 +174,32 @@ public class GameScreen extends Screen {
         // Load all the card textures
         int[] cardsId = ConfigLoader.getIdArray();
         for (int i = 0; i < ConfigLoader.getInt("numberOfCards"); i++) {
-            System.out.println(cardsId[i] + "chargée");
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("GUI", "Card texture loaded " + cardsId[i]);
+            }
             assets.load("cards/" + cardsId[i] + ".png", Texture.class);
             assets.finishLoading();
         }
 
         displayDeck();
 
+        tableChannel = new StateChannel<TableState>(state -> {
+            players = state.players;
+            currentPlayerId = state.currentPlayerId;
+        });
+
         new Thread(() -> {
-            while (client.getInitGame()) {
-                wait(WAITING_TIME);
-                players = client.getPlayerList();
-                wait(WAITING_TIME);
-                currentPlayerId = client.getCurrentPlayer().getId();
+            while (true) {
                 wait(WAITING_TIME);
+                // The whole table in one round trip, the view already tells whose turn it is
+                List<Message<?>> responses = client.requestBatch(Opcode.GET_INIT_GAME, Opcode.GET_PLAYER_LIST);
+                if (responses == null || responses.size() != 2 || !Boolean.TRUE.equals(responses.get(0).getContent())) {
+                    break;
+                }
+                TableView view = (TableView) responses.get(1).getContent();
+                if (view != null && view.getCurrentPlayerId() >= 0) {
+                    tableChannel.publish(new TableState(view));
+                }
             }
         }).start();
 
@@ -166,12 +207,21 @@ public class GameScreen extends Screen {
 
     @Override
     public void render(float delta) {
+        overlay.update(delta);
+        if (Gdx.input.isKeyJustPressed(Input.Keys.F3)) {
+            overlay.toggle();
+        }
+        if (Gdx.input.isKeyJustPressed(Input.Keys.F4)) {
+            overlay.export();
+        }
+
         ScreenUtils.clear(135 / 255f, 206 / 255f, 250 / 255f, 1);
         stage.act();
         batch.begin();
         font.draw(batch, "FPS: " + Gdx.graphics.getFramesPerSecond(), 5, 28);
         font.draw(batch, name + " - " + "Level : " + player.getLevel() + " - " + "Atk : " + player.getDamage(), 60, DEFAULT_HEIGHT - 40);
         font.draw(batch, "C'est le tour de " + players.get(currentPlayerId).getName() + ".", DEFAULT_WIDTH / 2 - 180, DEFAULT_HEIGHT - 40);
+        overlay.draw(batch, 60, DEFAULT_HEIGHT - 100);
 
         batch.end();
         stage.draw();
@@ -179,6 +229,12 @@ public class GameScreen extends Screen {
 
     @Override
     public void dispose() {
+        if (tableChannel != null) {
+            tableChannel.close();
+        }
+        if (overlay != null) {
+            overlay.dispose();
+        }
         super.dispose();
     }
 
@@ -194,7 +250,9 @@ public class GameScreen extends Screen {
             // small padding between cards
             cardTable.add().pad(PADDING / 2);
             
-            System.out.println("Card " + card.getName() + " added");
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("GUI", "Card " + card.getName() + " added");
+            }
             i++;
         }
     }
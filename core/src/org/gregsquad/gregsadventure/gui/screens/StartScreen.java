@@ -2,7 +2,9 @@ package org.gregsquad.gregsadventure.gui.screens;
 
 import org.gregsquad.gregsadventure.GregsAdventure;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import com.badlogic.gdx.assets.AssetManager;
 import com.badlogic.gdx.scenes.scene2d.ui.Table;
@@ -14,15 +16,17 @@ import com.badlogic.gdx.utils.ScreenUtils;
 
 import com.badlogic.gdx.Gdx;
 
-import org.gregsquad.gregsadventure.game.Player;
+import org.gregsquad.gregsadventure.gui.StateChannel;
 import org.gregsquad.gregserver.Client;
+import org.gregsquad.gregserver.Matchmaker;
+import org.gregsquad.gregserver.Opcode;
+import org.gregsquad.gregserver.RoomInfo;
 import org.gregsquad.gregserver.Server;
 
 
 public class StartScreen extends Screen {
 
-    private static final int MIN_PLAYERS = 3;
-    private static final int MAX_PLAYERS = 6;
+    private static final int MAX_PLAYERS = Matchmaker.MAX_PLAYERS;
     private static final int NAME_MAX_LENGTH = 20;
 
     private Client client;
@@ -34,7 +38,8 @@ public class StartScreen extends Screen {
     private TextButton cancelButton;
 
     private boolean wrongNameDisplayed = false; // global variable to avoid displaying the same error message multiple times
-    private boolean gameStarted = false; // global variable for the lobby loop
+
+    private StateChannel<List<String>> lobbyChannel; // player names pushed by the server
 
     
     
@@ -98,25 +103,29 @@ public class StartScreen extends Screen {
                                 server.run();
                             }).start();
 
-                            client = new Client("localhost", Integer.parseInt(port.getText()), name.getText());
-
-                            new Thread(() -> {
-                                client.run();
-                            }).start();
-
                             table.clear();
 
                             TextButton confirmButton = new TextButton("Confirmer", skin);
                             TextButton cancelButton = new TextButton("Annuler", skin);
 
+                            lobbyChannel = new StateChannel<List<String>>(names -> {
+                                displayPlayers(names, table);
+
+                                table.add(confirmButton).fillX().uniformX();
+                                table.row();
+                                table.add(cancelButton).fillX().uniformX();
+                            });
+
                             confirmButton.addListener(new ChangeListener() {
                                 @Override
                                 public void changed(ChangeEvent event, com.badlogic.gdx.scenes.scene2d.Actor actor) {
-                                    if (client.getPlayerList().size() < MIN_PLAYERS || client.getPlayerList().size() > MAX_PLAYERS) {
-                                        table.add("Il faut entre 3 et 6 joueurs pour jouer.");
+                                    List<String> names = lobbyChannel.get();
+                                    int numberOfPlayers = names != null ? names.size() : 0;
+                                    if (numberOfPlayers < 1 || numberOfPlayers > MAX_PLAYERS) { // The server fills the empty seats with bots
+                                        table.add("Il faut entre 1 et 6 joueurs pour jouer.");
                                     }
                                     else {
-                                        gameStarted = true;
+                                        lobbyChannel.close();
                                         client.initGame();
                                         gui.setScreen(new GameScreen(gui, assets, client, client.getId()));
                                     }
@@ -130,21 +139,13 @@ public class StartScreen extends Screen {
                                 }
                             });
 
-                            
-                            new Thread(() -> {
-                                while(!gameStarted) {
-                                    try {
-                                        Thread.sleep(1000);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    
-                                    displayPlayers(client, table);
 
-                                    table.add(confirmButton).fillX().uniformX();
-                                    table.row();
-                                    table.add(cancelButton).fillX().uniformX();
-                                }
+                            // The server pushes the players at every join, ours included: listen before joining
+                            client = new Client("localhost", Integer.parseInt(port.getText()), name.getText());
+                            client.<ArrayList<String>>addListener(Opcode.LOBBY_UPDATE, message -> lobbyChannel.publish(List.copyOf(message.getContent())));
+
+                            new Thread(() -> {
+                                client.run();
                             }).start();
 
 
@@ -170,6 +171,7 @@ public class StartScreen extends Screen {
                 TextField name = new TextField("", skin);
                 TextField ip = new TextField("localhost", skin);
                 TextField port = new TextField("27093", skin);
+                TextButton quickJoinButton = new TextButton("Partie rapide", skin);
                 TextButton confirmButton = new TextButton("Confirmer", skin);
                 TextButton cancelButton = new TextButton("Annuler", skin);    
 
@@ -182,10 +184,34 @@ public class StartScreen extends Screen {
                 table.add("Port : ");
                 table.add(port).fillX().uniformX();
                 table.row();
+                table.add(quickJoinButton).fillX().uniformX();
+                table.row();
                 table.add(confirmButton).fillX().uniformX();
                 table.row();
                 table.add(cancelButton).fillX().uniformX(); 
 
+                quickJoinButton.addListener(new ChangeListener() { // Ask the matchmaker of the host for a free seat
+                    @Override
+                    public void changed(ChangeEvent event, com.badlogic.gdx.scenes.scene2d.Actor actor) {
+                        String host = ip.getText();
+                        new Thread(() -> {
+                            try {
+                                RoomInfo room = Client.quickJoin(host, Matchmaker.DEFAULT_PORT);
+                                Gdx.app.postRunnable(() -> {
+                                    if (room == null) {
+                                        table.add("Aucune partie libre");
+                                    } else {
+                                        ip.setText(room.getHost());
+                                        port.setText(Integer.toString(room.getPort()));
+                                    }
+                                });
+                            } catch (IOException e) {
+                                Gdx.app.postRunnable(() -> table.add("Pas de serveur de parties"));
+                            }
+                        }).start();
+                    }
+                });
+
                 
                 confirmButton.addListener(new ChangeListener() {
                     @Override
@@ -198,43 +224,27 @@ public class StartScreen extends Screen {
                             }
                         }
                         else {
-                            client = new Client(ip.getText(), Integer.parseInt(port.getText()), name.getText());
-                            new Thread(() -> {
-                                client.run();
-                            }).start();
+                            lobbyChannel = new StateChannel<List<String>>(names -> {
+                                displayPlayers(names, table);
 
-                            //Wait 0.5s for the server to send the player list
-                            try {
-                                Thread.sleep(500);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            
-                            new Thread(() -> {
-                                // Here was a wait
-                                System.out.println(client.getInitGame());
-                                while(!client.getInitGame()) {
-                                    try {
-                                        Thread.sleep(1000);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    
-                                    displayPlayers(client, table);
-
-                                    table.row();
-                                    table.add(cancelButton).fillX().uniformX();
-                                    cancelButton.addListener(new ChangeListener() {
-                                        @Override
-                                        public void changed(ChangeEvent event, com.badlogic.gdx.scenes.scene2d.Actor actor) {
-                                            // TODO disconnect from server
-                                            gui.setScreen(new StartScreen(gui, assets));
-                                        }
+                                table.row();
+                                table.add(cancelButton).fillX().uniformX();
+                            });
+
+                            // The server pushes the players at every join, ours included, and the start of the game
+                            client = new Client(ip.getText(), Integer.parseInt(port.getText()), name.getText());
+                            client.<ArrayList<String>>addListener(Opcode.LOBBY_UPDATE, message -> lobbyChannel.publish(List.copyOf(message.getContent())));
+                            client.<Boolean>addListener(Opcode.INIT_GAME, message -> {
+                                if (Boolean.TRUE.equals(message.getContent())) {
+                                    Gdx.app.postRunnable(() -> {
+                                        lobbyChannel.close();
+                                        gui.setScreen(new GameScreen(gui, assets, client, client.getId()));
                                     });
                                 }
-                                Gdx.app.postRunnable(() -> gui.setScreen(new GameScreen(gui, assets, client, client.getId())));
+                            });
+                            new Thread(() -> {
+                                client.run();
                             }).start();
-                            /////////
                         }
                     }
                 });
@@ -265,17 +275,24 @@ public class StartScreen extends Screen {
 
     @Override
     public void dispose() {
+        if (lobbyChannel != null) {
+            lobbyChannel.close();
+        }
         super.dispose();
     }
 
-    private void displayPlayers(Client client, Table table) {
+    /**
+     * Rebuilds the lobby table from a list of player names. Must run on the render thread.
+     * @param names the names of the players in the lobby.
+     * @param table the table to fill.
+     */
+    private void displayPlayers(List<String> names, Table table) {
         table.clear();
-        ArrayList<Player> players = client.getPlayerList();
 
-        table.add("Joueurs : " + players.size() + "/6");
+        table.add("Joueurs : " + names.size() + "/" + MAX_PLAYERS);
         table.row();
-        for (Player player : players) {
-            table.add("- " + player.getName() + '\n');
+        for (String name : names) {
+            table.add("- " + name + '\n');
         }
         table.row();
     }
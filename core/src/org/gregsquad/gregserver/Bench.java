@@ -0,0 +1,486 @@
+package org.gregsquad.gregserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.CardCatalog;
+import org.gregsquad.gregsadventure.card.CardList;
+import org.gregsquad.gregsadventure.card.ComboTable;
+import org.gregsquad.gregsadventure.card.Deck;
+import org.gregsquad.gregsadventure.card.Discard;
+import org.gregsquad.gregsadventure.card.Equipement;
+import org.gregsquad.gregsadventure.card.Race;
+import org.gregsquad.gregsadventure.card.Stack;
+import org.gregsquad.gregsadventure.game.Bot;
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.GameSnapshot;
+import org.gregsquad.gregsadventure.game.Player;
+
+/**
+ * The Bench class measures the hot paths of the server and of the game one at a time, where
+ * LoadTester measures a whole server. A benchmark runs its operations on one thread or more for a
+ * warmup, then for the measure, and prints the number of operations per second and the time of one.
+ * The operations of a benchmark are measured one after the other. Each thread works on its own data,
+ * except what a benchmark shares on purpose. The operations measured last run on code the JIT compiled
+ * with the profile of the first ones, a shared call site may be slower than in a process of its own.
+ *
+ * Usage: Bench <benchmark> [--seconds 5] [--warmup 2] [--threads 1]
+ * Benchmarks:
+ *   dispatch  routes messages built from their type and purpose to their handler
+ *   ids       builds requests with their correlation id, use --threads to share a connection
+ *   cardlist  iterates, reads by index and removes the cards of a hand, a discard pile and a stack
+ *   combo     reads the combo of every equipement with every race and class
+ *   snapshot  reads the state of a game while another thread changes it, use --threads for more readers
+ *   fork      copies a game in the middle of its play
+ *   timers    re-arms the deadline of a room among many timers
+ */
+public class Bench {
+    private static final int BATCH = 1024; // Operations between two looks at the clock
+    private static final int HAND_SIZE = 6; // A hand at the charity, one card over the limit
+    private static final int DISCARD_SIZE = 60;
+    private static final int PLAYERS = 6;
+    private static final int TURNS_PLAYED = 60; // Before a game is forked, to fill its piles and hands
+    private static final int LIVE_TIMERS = 50000; // Armed by each thread, the deadlines of as many rooms
+    private static final long TIMER_DELAY_MS = 120000; // The default time of a turn, see TurnScheduler
+
+    private static volatile long sink; // Keeps the results of the operations alive
+
+    private final int seconds;
+    private final int warmupSeconds;
+    private final int threads;
+
+    /**
+     * Constructs a new Bench.
+     * @param seconds the duration of the measure of each operation.
+     * @param warmupSeconds the duration of the warmup of each operation, not measured.
+     * @param threads the number of threads running each operation at once.
+     */
+    public Bench(int seconds, int warmupSeconds, int threads) {
+        this.seconds = seconds;
+        this.warmupSeconds = warmupSeconds;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.err.println("Usage: Bench <benchmark> [--seconds 5] [--warmup 2] [--threads 1]");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                return;
+            }
+        }
+        Bench bench = new Bench(
+            Integer.parseInt(options.getOrDefault("seconds", "5")),
+            Integer.parseInt(options.getOrDefault("warmup", "2")),
+            Integer.parseInt(options.getOrDefault("threads", "1")));
+        switch (args[0]) {
+            case "dispatch":
+                bench.dispatch();
+                break;
+            case "ids":
+                bench.ids();
+                break;
+            case "cardlist":
+                bench.cardList();
+                break;
+            case "combo":
+                bench.combo();
+                break;
+            case "snapshot":
+                bench.snapshot();
+                break;
+            case "fork":
+                bench.fork();
+                break;
+            case "timers":
+                bench.timers();
+                break;
+            default:
+                System.err.println("Unknown benchmark: " + args[0]);
+                return;
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Routes messages received as a (type, purpose) pair to their handler, every kind of message in
+     * turn: through the opcode of the pair and the table of handlers by opcode, like ClientHandler,
+     * then through a chain of string comparisons for reference.
+     */
+    public void dispatch() throws InterruptedException {
+        Opcode[] opcodes = Opcode.values();
+        String[] types = new String[opcodes.length];
+        String[] purposes = new String[opcodes.length];
+        EnumMap<Opcode, LongUnaryOperator> handlers = new EnumMap<>(Opcode.class);
+        for (int i = 0; i < opcodes.length; i++) {
+            // Copies, like the strings read from a socket, which are not the constants of the enum
+            types[i] = new String(opcodes[i].getType());
+            purposes[i] = new String(opcodes[i].getPurpose());
+            int ordinal = i;
+            handlers.put(opcodes[i], n -> n + ordinal);
+        }
+        measure("dispatch by opcode", () -> n -> {
+            int i = (int) (n % opcodes.length);
+            return handlers.get(Opcode.of(types[i], purposes[i])).applyAsLong(n);
+        });
+        measure("dispatch by string chain", () -> n -> {
+            int i = (int) (n % opcodes.length);
+            for (Opcode opcode : opcodes) {
+                if (opcode.getType().equals(types[i]) && opcode.getPurpose().equals(purposes[i])) {
+                    return handlers.get(opcode).applyAsLong(n);
+                }
+            }
+            return -1;
+        });
+    }
+
+    /**
+     * Builds requests with their correlation id: the next id of the sequence of the connection, like
+     * Client, then a random UUID for reference. The threads share the sequence, like the threads of a
+     * client sharing its connection, and the generator of the UUIDs.
+     */
+    public void ids() throws InterruptedException {
+        AtomicLong lastRequestId = new AtomicLong();
+        measure("request with sequence id", () -> n -> {
+            Message<String> request = new Message<String>(lastRequestId.incrementAndGet(), "bench", Opcode.GET_CURRENT_PLAYER, "", String.class);
+            return request.getId();
+        });
+        measure("request with random UUID", () -> n -> {
+            UUID id = UUID.randomUUID();
+            Message<String> request = new Message<String>(id.getLeastSignificantBits(), "bench", Opcode.GET_CURRENT_PLAYER, "", String.class);
+            return request.getId();
+        });
+    }
+
+    /**
+     * Iterates, reads by index and removes then adds back the cards of the lists of the game at their
+     * usual sizes: a hand, a discard pile and a full stack. The same cards in a LinkedList, the former
+     * backing of CardList, are measured for reference. An iteration goes through the whole list.
+     */
+    public void cardList() throws InterruptedException {
+        measureCardList("hand", () -> {
+            Deck hand = new Deck();
+            Stack stack = new Stack();
+            for (int i = 0; i < HAND_SIZE; i++) {
+                hand.addCard(stack.getCard(i));
+            }
+            return hand;
+        });
+        measureCardList("discard", () -> {
+            Discard discard = new Discard();
+            Stack stack = new Stack();
+            for (int i = 0; i < DISCARD_SIZE; i++) {
+                discard.addCard(stack.getCard(i));
+            }
+            return discard;
+        });
+        measureCardList("stack", Stack::new);
+    }
+
+    private void measureCardList(String name, Supplier<CardList> lists) throws InterruptedException {
+        measure(name + " iterate", () -> {
+            CardList list = lists.get();
+            return n -> {
+                long ids = 0;
+                for (Card card : list) {
+                    ids += card.getId();
+                }
+                return ids;
+            };
+        });
+        measure(name + " iterate, LinkedList", () -> {
+            List<Card> list = new LinkedList<>(lists.get().getCards());
+            return n -> {
+                long ids = 0;
+                for (Card card : list) {
+                    ids += card.getId();
+                }
+                return ids;
+            };
+        });
+        measure(name + " get(index)", () -> {
+            CardList list = lists.get();
+            return n -> list.getCard((int) (n % list.getSize())).getId();
+        });
+        measure(name + " get(index), LinkedList", () -> {
+            List<Card> list = new LinkedList<>(lists.get().getCards());
+            return n -> list.get((int) (n % list.size())).getId();
+        });
+        measure(name + " remove(index) + add", () -> {
+            CardList list = lists.get();
+            return n -> {
+                int index = (int) (n % list.getSize());
+                Card card = list.getCard(index);
+                list.removeCard(index);
+                list.addCard(card);
+                return card.getId();
+            };
+        });
+        measure(name + " remove(index) + add, LinkedList", () -> {
+            List<Card> list = new LinkedList<>(lists.get().getCards());
+            return n -> {
+                Card card = list.remove((int) (n % list.size()));
+                list.add(card);
+                return card.getId();
+            };
+        });
+    }
+
+    /**
+     * Reads the combo bonus of every equipement of the catalog with a race or a class, each in turn:
+     * from the ComboTable, like Stuff, then by comparing the names, for reference. An operation reads
+     * the combos of every equipement.
+     */
+    public void combo() throws InterruptedException {
+        CardCatalog catalog = CardCatalog.getInstance();
+        List<Equipement> equipements = new ArrayList<>();
+        List<Card> conditions = new ArrayList<>();
+        for (int id : catalog.getIds()) {
+            Card card = catalog.create(id);
+            if (card instanceof Equipement) {
+                equipements.add((Equipement) card);
+            } else if (card instanceof Race || card instanceof org.gregsquad.gregsadventure.card.Class) {
+                conditions.add(card);
+            }
+        }
+        int[] equipementIds = new int[equipements.size()];
+        for (int i = 0; i < equipementIds.length; i++) {
+            equipementIds[i] = equipements.get(i).getId();
+        }
+        int[] conditionIds = new int[conditions.size()];
+        String[] conditionNames = new String[conditions.size()];
+        for (int i = 0; i < conditionIds.length; i++) {
+            conditionIds[i] = conditions.get(i).getId();
+            conditionNames[i] = new String(conditions.get(i).getName()); // Not the string of the equipement
+        }
+        System.out.println(equipementIds.length + " equipements x " + conditionIds.length + " races and classes");
+        ComboTable table = ComboTable.getInstance();
+        measure("combos from table", () -> n -> {
+            int condition = conditionIds[(int) (n % conditionIds.length)];
+            long combos = 0;
+            for (int equipement : equipementIds) {
+                combos += table.getCombo(equipement, condition);
+            }
+            return combos;
+        });
+        measure("combos by name", () -> n -> {
+            String condition = conditionNames[(int) (n % conditionNames.length)];
+            long combos = 0;
+            for (Equipement equipement : equipements) {
+                combos += equipement.comboValid(condition) ? equipement.getCombo() : 0;
+            }
+            return combos;
+        });
+    }
+
+    /**
+     * Reads what a view of the table shows while another thread keeps changing the game, drawing cards
+     * and passing turns: from the last snapshot of the game, like ProjectionCache, then under the lock of
+     * the game, the way the readers waited for the changes before, for reference.
+     */
+    public void snapshot() throws InterruptedException {
+        Game game = new Game();
+        for (int id = 0; id < PLAYERS; id++) {
+            game.addPlayer(new Player(id, "Player " + (id + 1)));
+        }
+        game.init();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (long n = 0; writing.get(); n++) {
+                synchronized (game) {
+                    Player player = game.getCurrentPlayer();
+                    game.donjonDraw(player);
+                    if (player.getDeck().getSize() > HAND_SIZE) {
+                        // Back to the size of a hand, through the discard pile
+                        Card card = player.getDeck().getCard(0);
+                        player.getDeck().removeCard(0);
+                        game.getDonjonDiscard().addCard(card);
+                        game.changed();
+                    }
+                    if (n % 4 == 3) {
+                        game.nextPlayer();
+                    }
+                }
+            }
+        }, "bench-writer");
+        writer.setDaemon(true);
+        writer.start();
+        measure("read snapshot", () -> n -> {
+            GameSnapshot snapshot = game.getSnapshot();
+            return snapshot.getVersion() + snapshot.getCurrentPlayerId()
+                + snapshot.getSummaries().get((int) (n % PLAYERS)).getHandSize() + snapshot.getDonjonDiscard().getSize();
+        });
+        measure("read under the game lock", () -> n -> {
+            synchronized (game) {
+                return game.getVersion() + game.getCurrentPlayer().getId()
+                    + game.getPlayer((int) (n % PLAYERS)).getDeck().getSize() + game.getDonjonDiscard().getSize();
+            }
+        });
+        writing.set(false);
+        writer.join();
+    }
+
+    /**
+     * Copies a game of PLAYERS bots after TURNS_PLAYED turns: with Game.fork, like the search of the
+     * bots, with capture and restore, like a room moved to another server, then with a round trip
+     * through java serialization of its players and piles, for reference.
+     */
+    public void fork() throws InterruptedException {
+        measure("fork", () -> {
+            Game game = playedGame();
+            return n -> game.fork(n).getCurrentPlayer().getId();
+        });
+        measure("capture + restore", () -> {
+            Game game = playedGame();
+            return n -> new Game(game.capture()).getCurrentPlayer().getId();
+        });
+        measure("java serialization", () -> {
+            Game game = playedGame();
+            return n -> serializedCopy(game).length;
+        });
+    }
+
+    private static Game playedGame() {
+        Game game = new Game();
+        Map<Integer, Bot> bots = new HashMap<>();
+        for (int id = 0; id < PLAYERS; id++) {
+            game.addPlayer(new Player(id, "Bot " + (id + 1)));
+            bots.put(id, new Bot(id, 0)); // No search, the default choices
+        }
+        game.init();
+        for (int turn = 0; turn < TURNS_PLAYED; turn++) {
+            bots.get(game.getCurrentPlayer().getId()).playTurn(game, bots);
+        }
+        return game;
+    }
+
+    /**
+     * Copies the players and the piles of a game through java serialization.
+     * @return the copies.
+     */
+    private static Object[] serializedCopy(Game game) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(game.getPlayerList());
+                out.writeObject(game.getDonjonStack());
+                out.writeObject(game.getTreasureStack());
+                out.writeObject(game.getDonjonDiscard());
+                out.writeObject(game.getTreasureDiscard());
+            }
+            Object[] copies = new Object[5];
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                for (int i = 0; i < copies.length; i++) {
+                    copies[i] = in.readObject();
+                }
+            }
+            return copies;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Re-arms the deadline of a room, cancelling its timer then scheduling it again, among LIVE_TIMERS
+     * armed timers: on the TimerWheel shared by the rooms, like TurnScheduler, then on a
+     * ScheduledThreadPoolExecutor, for reference. Each thread re-arms its own timers in turn, the wheel
+     * and the executor are shared. No timer expires during the measure.
+     */
+    public void timers() throws InterruptedException {
+        Runnable expired = () -> { };
+        TimerWheel wheel = TimerWheel.getInstance();
+        measure("re-arm on timer wheel", () -> {
+            TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[LIVE_TIMERS];
+            for (int i = 0; i < timeouts.length; i++) {
+                timeouts[i] = wheel.schedule(expired, TIMER_DELAY_MS + i % 1000, TimeUnit.MILLISECONDS);
+            }
+            return n -> {
+                int i = (int) (n % timeouts.length);
+                timeouts[i].cancel();
+                timeouts[i] = wheel.schedule(expired, TIMER_DELAY_MS + i % 1000, TimeUnit.MILLISECONDS);
+                return i;
+            };
+        });
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true); // Or the cancelled timers stay queued until their deadline
+        measure("re-arm on ScheduledThreadPoolExecutor", () -> {
+            ScheduledFuture<?>[] futures = new ScheduledFuture<?>[LIVE_TIMERS];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.schedule(expired, TIMER_DELAY_MS + i % 1000, TimeUnit.MILLISECONDS);
+            }
+            return n -> {
+                int i = (int) (n % futures.length);
+                futures[i].cancel(false);
+                futures[i] = executor.schedule(expired, TIMER_DELAY_MS + i % 1000, TimeUnit.MILLISECONDS);
+                return i;
+            };
+        });
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs an operation on every thread for the warmup, then for the measure, and prints its rate.
+     * @param label the name of the operation.
+     * @param operations makes the operation of a thread, given its index on the thread; its result is kept alive.
+     */
+    private void measure(String label, Supplier<LongUnaryOperator> operations) throws InterruptedException {
+        LongAdder done = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            LongUnaryOperator operation = operations.get();
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                long kept = 0;
+                while (running.get()) {
+                    for (int i = 0; i < BATCH; i++) {
+                        kept += operation.applyAsLong(n++);
+                    }
+                    done.add(BATCH);
+                }
+                sink += kept;
+            }, "bench-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        long start = System.nanoTime();
+        long before = done.sum();
+        Thread.sleep(seconds * 1000L);
+        long measured = done.sum() - before;
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("%-40s %,14.0f ops/s %10.1f ns/op%n", label, measured * 1e9 / elapsed, (double) elapsed * threads / measured);
+    }
+}
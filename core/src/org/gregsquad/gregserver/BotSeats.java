@@ -0,0 +1,132 @@
+package org.gregsquad.gregserver;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gregsquad.gregsadventure.game.Bot;
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.Player;
+
+/**
+ * The BotSeats class fills the empty seats of a room with bots played by the server.
+ * The bots of every room play on one pool of worker threads shared by the process, one thread per
+ * processor: a bot only takes a thread while it plays its turn, and each of its choices is bounded by
+ * the budget of the bots, so a table never waits long for a bot.
+ *
+ * System properties: gregs.bot.seats, the number of players a game is filled to when it starts
+ * (Matchmaker.MIN_PLAYERS by default, 0 for no bot), and gregs.bot.budget.ms, the time of a choice.
+ */
+class BotSeats {
+    private static final int SEATS = Integer.getInteger("gregs.bot.seats", Matchmaker.MIN_PLAYERS);
+    private static final long BUDGET_MILLIS = Long.getLong("gregs.bot.budget.ms", Bot.DEFAULT_BUDGET_MILLIS);
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+        Thread thread = new Thread(task, "bot-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Server server;
+    private final Map<Integer, Bot> bots = new ConcurrentHashMap<>(); // By player id
+    private final AtomicBoolean playing = new AtomicBoolean(); // A room plays one bot turn at a time
+    private volatile boolean stopped;
+
+    /**
+     * Constructs the seats of a room, empty.
+     * @param server the room.
+     */
+    BotSeats(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Adds bots to a game about to start until it has gregs.bot.seats players.
+     * @return the number of bots added.
+     */
+    int fill() {
+        Game game = server.game;
+        int added = 0;
+        synchronized (game) { // Like the joins of the clients, see ClientHandler.connect
+            if (game.isGameStarted()) {
+                return 0;
+            }
+            while (game.getPlayerList().size() < SEATS) {
+                int playerId = game.getPlayerList().size();
+                game.addPlayer(new Player(playerId, "Bot " + (bots.size() + 1)));
+                bots.put(playerId, new Bot(playerId, BUDGET_MILLIS));
+                added++;
+            }
+        }
+        if (added > 0) {
+            Log.info("SERVER", added + " bots joined", server.getRoomName(), null, null, Message.NO_ID);
+        }
+        return added;
+    }
+
+    /**
+     * Returns the ids of the players played by bots, to move them with the room, see Server.migrate.
+     * @return the ids.
+     */
+    Set<Integer> getIds() {
+        return bots.keySet();
+    }
+
+    /**
+     * Plays again the players of a room moved here that were played by bots.
+     * @param ids the ids of the players.
+     */
+    void adopt(Collection<Integer> ids) {
+        for (int playerId : ids) {
+            bots.put(playerId, new Bot(playerId, BUDGET_MILLIS));
+        }
+    }
+
+    /**
+     * Stops playing, when the room stops or moves away. A turn being played is finished.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Plays the turns of the bots, on the shared pool, if the current player is one of them.
+     * Called after every change of the current player.
+     */
+    void turnChanged() {
+        if (stopped || bots.isEmpty() || !isBotTurn() || !playing.compareAndSet(false, true)) {
+            return;
+        }
+        POOL.execute(() -> {
+            boolean failed = false;
+            try {
+                Game game = server.game;
+                while (!stopped) {
+                    Bot bot = bots.get(game.getSnapshot().getCurrentPlayerId()); // One snapshot, the turn may change meanwhile
+                    if (bot == null || !bot.playTurn(game, bots)) {
+                        break;
+                    }
+                    server.publishPublicState();
+                    server.turns.update();
+                }
+            } catch (RuntimeException e) {
+                failed = true; // The table goes on without this bot, not in a loop of failures
+                Log.error("SERVER", "Bot turn failed: " + e, server.getRoomName(), null, null, Message.NO_ID);
+            } finally {
+                playing.set(false);
+            }
+            if (!failed) {
+                turnChanged(); // A turn may have changed while the flag was still set
+            }
+        });
+    }
+
+    private boolean isBotTurn() {
+        return bots.containsKey(server.game.getSnapshot().getCurrentPlayerId());
+    }
+}
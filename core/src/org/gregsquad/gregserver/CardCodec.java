@@ -0,0 +1,149 @@
+package org.gregsquad.gregserver;
+
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.CardCatalog;
+import org.gregsquad.gregsadventure.card.DiscardPage;
+
+/**
+ * The CardCodec class sends cards as their ids, for the connections that agreed on the CardCatalog.
+ * A drawn card travels as an Integer, a list of cards as a byte array, also inside the discard
+ * pages: the number of cards then
+ * each id, all as unsigned varints (7 bits per byte, the high bit set on every byte but the last).
+ * Our ids take 1 or 2 bytes, instead of the whole serialized card with its texts.
+ *
+ * The client expands the messages as soon as they are read, so the listeners and the callers of
+ * the requests only ever see cards.
+ */
+public final class CardCodec {
+    private static final int MAX_CARDS = 1 << 16;
+
+    private CardCodec() {
+    }
+
+    /**
+     * Encodes the ids of a list of cards.
+     * @param cards the cards to encode.
+     * @return the varints of the number of cards and of their ids.
+     */
+    public static byte[] encode(List<Card> cards) {
+        byte[] bytes = new byte[5 * (cards.size() + 1)];
+        int position = writeVarint(bytes, 0, cards.size());
+        for (Card card : cards) {
+            position = writeVarint(bytes, position, card.getId());
+        }
+        return Arrays.copyOf(bytes, position);
+    }
+
+    /**
+     * Encodes a list of card ids, as read from a CardList.
+     * @param ids the ids to encode.
+     * @return the varints of the number of ids and of the ids.
+     */
+    public static byte[] encode(int[] ids) {
+        byte[] bytes = new byte[5 * (ids.length + 1)];
+        int position = writeVarint(bytes, 0, ids.length);
+        for (int id : ids) {
+            position = writeVarint(bytes, position, id);
+        }
+        return Arrays.copyOf(bytes, position);
+    }
+
+    /**
+     * Decodes a list of cards encoded by encode, creating the cards from the local catalog.
+     * @param bytes the encoded ids.
+     * @return the cards, in the same order.
+     * @throws StreamCorruptedException if the bytes are not a valid list or hold an unknown id.
+     */
+    public static LinkedList<Card> decode(byte[] bytes) throws StreamCorruptedException {
+        int[] cursor = {0};
+        int count = readVarint(bytes, cursor);
+        if (count > MAX_CARDS) {
+            throw new StreamCorruptedException("[CARDS] Too many cards: " + count);
+        }
+        LinkedList<Card> cards = new LinkedList<Card>();
+        for (int i = 0; i < count; i++) {
+            cards.add(resolve(readVarint(bytes, cursor)));
+        }
+        if (cursor[0] != bytes.length) {
+            throw new StreamCorruptedException("[CARDS] Trailing bytes after " + count + " cards");
+        }
+        return cards;
+    }
+
+    /**
+     * Creates the card of an id from the local catalog.
+     * @param id the id of the card.
+     * @return a new card.
+     * @throws StreamCorruptedException if the catalog does not know the id.
+     */
+    public static Card resolve(int id) throws StreamCorruptedException {
+        Card card = CardCatalog.getInstance().create(id);
+        if (card == null) {
+            throw new StreamCorruptedException("[CARDS] Unknown card id: " + id);
+        }
+        return card;
+    }
+
+    /**
+     * Replaces the card ids of a received message with the cards, for the messages that carry cards.
+     * Messages sent with full cards, or not about cards, are returned as they are.
+     * @param message the message read from the server.
+     * @return the message with its cards.
+     * @throws StreamCorruptedException if the ids cannot be resolved.
+     */
+    public static Message<?> expand(Message<?> message) throws StreamCorruptedException {
+        Object content = message.getContent();
+        switch (message.getOpcode()) {
+            case DRAW_DONJON_CARD:
+            case DRAW_TREASURE_CARD:
+                if (content instanceof Integer) {
+                    return new Message<Card>(message.getId(), message.getSender(), message.getOpcode(), resolve((Integer) content), Card.class);
+                }
+                return message;
+            case GET_DONJON_DISCARD:
+            case GET_TREASURE_DISCARD:
+                if (content instanceof byte[]) {
+                    return new Message<LinkedList<Card>>(message.getId(), message.getSender(), message.getOpcode(), decode((byte[]) content), LinkedList.class);
+                }
+                return message;
+            case GET_DONJON_DISCARD_PAGE:
+            case GET_TREASURE_DISCARD_PAGE:
+                if (content instanceof DiscardPage && ((DiscardPage) content).getCardIds() != null) {
+                    DiscardPage page = (DiscardPage) content;
+                    return new Message<DiscardPage>(message.getId(), message.getSender(), message.getOpcode(), page.withCards(decode(page.getCardIds())), DiscardPage.class);
+                }
+                return message;
+            default:
+                return message;
+        }
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarint(byte[] bytes, int[] cursor) throws StreamCorruptedException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (cursor[0] >= bytes.length) {
+                throw new StreamCorruptedException("[CARDS] Truncated varint");
+            }
+            byte b = bytes[cursor[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("[CARDS] Varint too long");
+    }
+}
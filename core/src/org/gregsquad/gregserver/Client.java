@@ -6,7 +6,15 @@ import org.gregsquad.gregsadventure.game.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * The Client class is responsible for managing the client-side logic of the game.
@@ -18,12 +26,36 @@ public class Client {
     private String name; // Client name
     private int clientId; // Client ID
     private Socket echoSocket; // Socket for communication
-    private ObjectOutputStream out; // Output stream
-    private ObjectInputStream in; // Input stream
+    private OutputStream out; // Output stream, one frame per message
+    private DataInputStream in; // Input stream, one frame per message
     private GlobalListener globalListener; // Thread for listening to the server
+    private boolean compression = true; // Offer the compression of big responses when connecting
+    private boolean cardIds = true; // Offer to receive the cards as ids of the catalog when connecting
+
+    private final LongAdder bytesSent = new LongAdder(); // Bytes written on the socket
+    private final LongAdder bytesReceived = new LongAdder(); // Bytes read from the socket
+    private final AtomicLong lastRequestId = new AtomicLong(); // Sequence of the request ids of this connection
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>(); // Requests awaiting a response, by id
+    private final Map<String, LatencyHistogram> roundTrips = new ConcurrentHashMap<>(); // Round-trip times per purpose
+    private final EnumMap<Opcode, List<Consumer<Message<?>>>> listeners = new EnumMap<>(Opcode.class); // Listeners of the messages received, by opcode
 
     private static final int MAX_RECONNECT_ATTEMPTS = 5; // Maximum number of reconnection attempts
     private static final int RECONNECT_DELAY_MS = 5000; // Delay between reconnection attempts
+    private static final int REQUEST_ATTEMPTS = 5; // Number of times a request is sent before giving up
+    private static final int RESPONSE_TIMEOUT_MS = 500; // Time to wait for a response before sending the request again
+
+    /**
+     * A request sent to the server and not answered yet.
+     */
+    private static class PendingRequest {
+        private final String purpose;
+        private final long sentAt = System.nanoTime();
+        private final CompletableFuture<Message<?>> response = new CompletableFuture<>();
+
+        PendingRequest(String purpose) {
+            this.purpose = purpose;
+        }
+    }
 
     /**
      * Constructs a new Client with the given server IP, server port, and client name.
@@ -36,6 +68,9 @@ public class Client {
         this.serverPort = serverPort;
         this.name = name;
 
+        for (Opcode opcode : Opcode.values()) {
+            listeners.put(opcode, new CopyOnWriteArrayList<>());
+        }
         globalListener = new GlobalListener();
     }
 
@@ -52,12 +87,13 @@ public class Client {
             try {
                 // Connect to the server
                 echoSocket = new Socket(serverIp, serverPort);
+                echoSocket.setTcpNoDelay(true); // Small requests, possibly pipelined, must not wait for the previous ACK
                 System.out.println("["+name+"] " + "Connected to " + serverIp + ":" + serverPort);
 
                 // Create input and output streams
                 System.out.println("["+name+"] " + "Creating streams");
-                out = new ObjectOutputStream(echoSocket.getOutputStream());
-                in = new ObjectInputStream(echoSocket.getInputStream());
+                out = new CountingOutputStream(echoSocket.getOutputStream(), bytesSent);
+                in = new DataInputStream(new BufferedInputStream(new CountingInputStream(echoSocket.getInputStream(), bytesReceived)));
                 System.out.println("["+name+"] " + "Streams created");
 
                 // Connection successful, break the loop
@@ -73,6 +109,66 @@ public class Client {
         }
     }
 
+    /**
+     * Asks a matchmaker for a room with a free seat, see Matchmaker. The seat is kept for a while only:
+     * the room must be joined right after.
+     *
+     * @param host The host of the matchmaker.
+     * @param port The port of the matchmaker.
+     * @return The room, or null if no room is open.
+     * @throws IOException If the matchmaker cannot be reached.
+     */
+    public static RoomInfo quickJoin(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            FrameCodec.write(new Message<String>(1, "LOBBY", Opcode.LOBBY_QUICK_JOIN, "", String.class), socket.getOutputStream());
+            Message<?> answer = FrameCodec.read(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            return answer.getContent() instanceof RoomInfo ? (RoomInfo) answer.getContent() : null;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unexpected answer of the matchmaker", e);
+        }
+    }
+
+    /**
+     * Enables or disables the compression of the big responses of the server. Enabled by default.
+     * Must be called before run, the compression is negotiated when connecting.
+     *
+     * @param compression true to offer the compression to the server.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Enables or disables receiving the cards as ids of the CardCatalog. Enabled by default.
+     * Must be called before run, it is negotiated when connecting.
+     *
+     * @param cardIds true to offer the catalog to the server.
+     */
+    public void setCardIds(boolean cardIds) {
+        this.cardIds = cardIds;
+    }
+
+    /**
+     * Offers our card catalog to the server. If the server has the same, it sends the drawn cards and
+     * the discards as card ids, expanded back into cards by the listener thread.
+     */
+    private void offerCatalog() {
+        if (cardIds) {
+            sendRequest(new Message<String>(nextRequestId(), name, Opcode.CONNEXION_CATALOG, CardCatalog.getInstance().getName(), String.class));
+        }
+    }
+
+    /**
+     * Offers our compression dictionary to the server. The responses sent after its answer are
+     * compressed when they are big enough, FrameCodec.read decodes them transparently.
+     */
+    private void offerCompression() {
+        if (compression) {
+            sendRequest(new Message<String>(nextRequestId(), name, Opcode.CONNEXION_COMPRESSION, FrameDictionary.getInstance().getName(), String.class));
+        }
+    }
+
     /**
      * The main execution method for the client. It attempts to connect to the server, sends the client's name,
      * and starts a listener thread to handle incoming messages. If an error occurs during execution, it will be caught
@@ -84,6 +180,8 @@ public class Client {
     public void run() {
         try {
             connect();
+            offerCompression();
+            offerCatalog();
 
             System.out.println("["+name+"] " + "Sending name: " + name);
         
@@ -108,6 +206,60 @@ public class Client {
         }
     }
 
+    /**
+     * Joins the room as a spectator instead of a player. The server then streams the public state of the
+     * game, delivered to the listeners of Opcode.PUBLIC_STATE, until the connection is closed.
+     * A spectator sees no hand and cannot act on the game.
+     */
+    public void spectate() {
+        try {
+            connect();
+
+            Log.info("CLIENT", "Spectating", null, name, Opcode.CONNEXION_SPECTATE.getPurpose(), Message.NO_ID);
+            sendRequest(new Message<String>(nextRequestId(), name, Opcode.CONNEXION_SPECTATE, "", String.class));
+
+            Thread globalListenerThread = new Thread(globalListener);
+            globalListenerThread.start();
+            globalListenerThread.join();
+
+            stop();
+        } catch (IOException e) {
+            Log.error("CLIENT", "IOException while spectating: " + e.getMessage(), null, name, null, Message.NO_ID);
+        } catch (InterruptedException e) {
+            Log.warn("CLIENT", "InterruptedException while spectating: " + e.getMessage(), null, name, null, Message.NO_ID);
+        }
+    }
+
+    /**
+     * Follows the room to the server it was moved to, see Server.migrate.
+     * Called by the listener thread, which then reads the new connection. The negotiations are made
+     * again and the player is taken back with the reconnect token, before any other request can be
+     * sent. The requests the previous server did not answer fail, their senders send them again.
+     *
+     * @param target "host:port/token" of the room.
+     * @throws IOException If the new server cannot be reached.
+     * @throws InterruptedException If the thread is interrupted while connecting.
+     */
+    private synchronized void redirect(String target) throws IOException, InterruptedException {
+        int slash = target.lastIndexOf('/');
+        int colon = target.lastIndexOf(':', slash);
+        String token = target.substring(slash + 1);
+        Log.info("CLIENT", "Room moved to " + target.substring(0, slash), null, name, Opcode.CONNEXION_REDIRECT.getPurpose(), Message.NO_ID);
+        echoSocket.close();
+        serverIp = target.substring(0, colon);
+        serverPort = Integer.parseInt(target.substring(colon + 1, slash));
+        connect();
+        offerCompression();
+        offerCatalog();
+        if (!token.isEmpty()) {
+            sendRequest(new Message<String>(nextRequestId(), name, Opcode.CONNEXION_RESUME, token, String.class));
+        }
+        for (PendingRequest pending : pendingRequests.values()) {
+            pending.response.completeExceptionally(new IOException("Room moved"));
+        }
+        pendingRequests.clear();
+    }
+
     /**
      * Closes the streams and the connection. If an I/O error occurs while closing the streams or the connection,
      * an error message will be printed to the error stream.
@@ -125,15 +277,70 @@ public class Client {
         }
     }
 
+    /**
+     * Registers a listener called by the listener thread for every message of a given opcode.
+     * Listeners must be quick, they run before the next message is read.
+     *
+     * @param <T> The type of the content of the messages.
+     * @param opcode The kind of messages to listen to.
+     * @param listener The listener to call.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void addListener(Opcode opcode, Consumer<Message<T>> listener) {
+        listeners.get(opcode).add((Consumer<Message<?>>) (Consumer<?>) listener);
+    }
+
+    /**
+     * Removes a listener previously registered with addListener.
+     *
+     * @param opcode The kind of messages the listener was registered for.
+     * @param listener The listener to remove.
+     */
+    public void removeListener(Opcode opcode, Consumer<?> listener) {
+        listeners.get(opcode).remove(listener);
+    }
+
     class GlobalListener implements Runnable {
 
-        private Message<Card> lastDonjonCard;
-        private Message<Card> lastTreasureCard;
-        private Message<LinkedList<Card>> lastDonjonDiscard;
-        private Message<LinkedList<Card>> lastTreasureDiscard;
-        private Message<Player> lastCurrentPlayer;
-        private Message<ArrayList<Player>> lastPlayerList;
-        private Message<Boolean> lastInitGame;       
+        private volatile Message<Card> lastDonjonCard;
+        private volatile Message<Card> lastTreasureCard;
+        private volatile Message<LinkedList<Card>> lastDonjonDiscard;
+        private volatile Message<LinkedList<Card>> lastTreasureDiscard;
+        private volatile Message<PlayerSummary> lastCurrentPlayer;
+        private volatile Message<TableView> lastTableView;
+        private volatile Message<Boolean> lastInitGame;
+
+        /**
+         * Registers the listeners keeping the last response of each request.
+         */
+        GlobalListener() {
+            Client.this.<Serializable>addListener(Opcode.CONNEXION_NAME, message -> {
+                Log.info("CLIENT", "Received player id " + message.getContent(), null, name, message.getPurpose(), message.getId());
+                if (message.getContent() instanceof Integer) {
+                    clientId = (Integer) message.getContent();
+                }
+            });
+            Client.this.<Serializable>addListener(Opcode.CONNEXION_RESUME, message -> {
+                Log.info("CLIENT", "Resumed as player " + message.getContent(), null, name, message.getPurpose(), message.getId());
+                if (message.getContent() instanceof Integer) {
+                    clientId = (Integer) message.getContent();
+                }
+            });
+            Client.this.<ArrayList<String>>addListener(Opcode.LOBBY_UPDATE, message ->
+                Log.debug("CLIENT", "Players in the lobby: " + message.getContent(), null, name, message.getPurpose(), message.getId()));
+            Client.this.<String>addListener(Opcode.CONNEXION_COMPRESSION, message ->
+                Log.info("CLIENT", "Compression: " + message.getContent(), null, name, message.getPurpose(), message.getId()));
+            Client.this.<String>addListener(Opcode.CONNEXION_CATALOG, message ->
+                Log.info("CLIENT", "Card catalog: " + message.getContent(), null, name, message.getPurpose(), message.getId()));
+            Client.this.<Card>addListener(Opcode.DRAW_DONJON_CARD, message -> lastDonjonCard = message);
+            Client.this.<Card>addListener(Opcode.DRAW_TREASURE_CARD, message -> lastTreasureCard = message);
+            Client.this.<LinkedList<Card>>addListener(Opcode.GET_DONJON_DISCARD, message -> lastDonjonDiscard = message);
+            Client.this.<LinkedList<Card>>addListener(Opcode.GET_TREASURE_DISCARD, message -> lastTreasureDiscard = message);
+            Client.this.<PlayerSummary>addListener(Opcode.GET_CURRENT_PLAYER, message -> lastCurrentPlayer = message);
+            Client.this.<TableView>addListener(Opcode.GET_PLAYER_LIST, message -> lastTableView = message);
+            Client.this.<Boolean>addListener(Opcode.INIT_GAME, message -> lastInitGame = message);
+            Client.this.<Boolean>addListener(Opcode.GET_INIT_GAME, message -> lastInitGame = message);
+        }
 
         /**
          * Closes the streams and the connection. If an I/O error occurs while closing the streams or the connection,
@@ -143,68 +350,57 @@ public class Client {
          */
         public void run() {
             try {
-                Object inputObject;
-                while ((inputObject = in.readObject()) != null) {
-
-                    if (inputObject instanceof Message) {
-                        Message<?> inputMessage = (Message<?>) inputObject;
-                        System.out.println("["+name+"] " + "Received message: " + inputMessage.getType() + " " + inputMessage.getPurpose());
-                        switch (inputMessage.getType()) {
-                            case "CONNEXION":
-                                switch (inputMessage.getPurpose()) {
-                                    case "NAME":
-                                        System.out.println("["+name+"] " + "Received id: " + inputMessage.getContent());
-                                        clientId = (int) inputMessage.getContent();
-                                        break;
-                                    default:
-                                        System.err.println("Unknown message purpose: " + inputMessage.getPurpose());
-                                        break;
-                                }
-                                break;
-                            case "GAME":
-                                switch (inputMessage.getPurpose()) {
-                                    case "DRAW_DONJON_CARD":
-                                        lastDonjonCard = (Message<Card>) inputMessage;
-                                        break;
-                                    case "DRAW_TREASURE_CARD":
-                                        lastTreasureCard = (Message<Card>) inputMessage;
-                                        break;
-                                    case "GET_DONJON_DISCARD":
-                                        lastDonjonDiscard = (Message<LinkedList<Card>>) inputMessage;
-                                        break;
-                                    case "GET_TREASURE_DISCARD":
-                                        lastTreasureDiscard = (Message<LinkedList<Card>>) inputMessage;
-                                        break;
-                                    case "GET_CURRENT_PLAYER":
-                                        lastCurrentPlayer = (Message<Player>) inputMessage;
-                                        break;
-                                    case "GET_PLAYER_LIST":
-                                        lastPlayerList = (Message<ArrayList<Player>>) inputMessage;
-                                        break;
-                                    case "INIT_GAME":
-                                        lastInitGame = (Message<Boolean>) inputMessage;
-                                        break;
-                                    case "GET_INIT_GAME":
-                                        lastInitGame = (Message<Boolean>) inputMessage;
-                                        break;
-                                    default:
-                                        System.err.println("Unknown message purpose: " + inputMessage.getPurpose());
-                                        break;
-                                }
-                                break;
-
-                            default:
-                                System.err.println("Unknown message type: " + inputMessage.getType());
-                                break;
+                while (true) {
+                    Message<?> inputMessage = CardCodec.expand(FrameCodec.read(in));
+                    Log.debug("CLIENT", "Received message", null, name, inputMessage.getPurpose(), inputMessage.getId());
+                    if (inputMessage.getOpcode() == Opcode.CONNEXION_REDIRECT) {
+                        redirect((String) inputMessage.getContent());
+                        continue;
+                    }
+                    if (inputMessage.getOpcode() == Opcode.BATCH) {
+                        // The listeners see the responses of a batch as if they came one by one
+                        @SuppressWarnings("unchecked")
+                        List<Message<?>> responses = (List<Message<?>>) inputMessage.getContent();
+                        for (int i = 0; i < responses.size(); i++) {
+                            responses.set(i, CardCodec.expand(responses.get(i)));
+                            dispatch(responses.get(i));
                         }
-
+                        completeRequest(inputMessage);
+                    } else {
+                        dispatch(inputMessage);
+                        completeRequest(inputMessage);
                     }
-                    inputObject = null;
                 }
+            } catch (EOFException e) {
+                Log.info("CLIENT", "Disconnected from the server", null, name, null, Message.NO_ID);
             } catch (IOException e) {
-                System.err.println("IOException in GlobalListener: " + e.getMessage());
+                Log.error("CLIENT", "IOException in GlobalListener: " + e.getMessage(), null, name, null, Message.NO_ID);
             } catch (ClassNotFoundException e) {
-                System.err.println("ClassNotFoundException in GlobalListener: " + e.getMessage());
+                Log.error("CLIENT", "ClassNotFoundException in GlobalListener: " + e.getMessage(), null, name, null, Message.NO_ID);
+            } catch (InterruptedException e) {
+                Log.warn("CLIENT", "InterruptedException in GlobalListener: " + e.getMessage(), null, name, null, Message.NO_ID);
+                Thread.currentThread().interrupt();
+            } finally {
+                // Nobody will answer the requests still in flight
+                for (PendingRequest pending : pendingRequests.values()) {
+                    pending.response.completeExceptionally(new IOException("Connection lost"));
+                }
+                pendingRequests.clear();
+            }
+        }
+
+        /**
+         * Calls the listeners registered for the opcode of a message.
+         *
+         * @param message The message received.
+         */
+        private void dispatch(Message<?> message) {
+            List<Consumer<Message<?>>> handlers = listeners.get(message.getOpcode());
+            if (handlers.isEmpty() && !pendingRequests.containsKey(message.getId())) { // A response is awaited, see completeRequest
+                Log.warn("CLIENT", "No listener for message", null, name, message.getPurpose(), message.getId());
+            }
+            for (Consumer<Message<?>> handler : handlers) {
+                handler.accept(message);
             }
         }
 
@@ -249,17 +445,17 @@ public class Client {
          *
          * @return The last current player message.
          */
-        public Message<Player> getLastCurrentPlayer() {
+        public Message<PlayerSummary> getLastCurrentPlayer() {
             return lastCurrentPlayer;
         }
 
         /**
-         * Returns the last player list message.
+         * Returns the last table view message.
          *
-         * @return The last player list message.
+         * @return The last table view message.
          */
-        public Message<ArrayList<Player>> getLastPlayerList() {
-            return lastPlayerList;
+        public Message<TableView> getLastTableView() {
+            return lastTableView;
         }
 
         /**
@@ -281,21 +477,76 @@ public class Client {
         return clientId;
     }
 
+    // METRICS SECTION
+
+    /**
+     * Returns the total number of bytes sent to the server.
+     *
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Returns the total number of bytes received from the server.
+     *
+     * @return The number of bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Returns the round-trip time histograms of the requests, by purpose.
+     *
+     * @return A live view of the histograms, keyed by request purpose.
+     */
+    public Map<String, LatencyHistogram> getRoundTrips() {
+        return Collections.unmodifiableMap(roundTrips);
+    }
+
+    /**
+     * Completes the pending request answered by a response and records its round-trip time.
+     * Called by the listener thread as soon as the message is read, so the measure does not include the waiting threads.
+     *
+     * @param response The message received from the server.
+     */
+    private void completeRequest(Message<?> response) {
+        PendingRequest pending = pendingRequests.remove(response.getId());
+        if (pending != null) {
+            roundTrips.computeIfAbsent(pending.purpose, purpose -> new LatencyHistogram())
+                .record(System.nanoTime() - pending.sentAt);
+            pending.response.complete(response);
+        }
+    }
+
     // REQUESTS SECTION
 
+    /**
+     * Returns a new id to correlate a request with its response.
+     * Ids are a sequence starting at 1, unique for the lifetime of this client. They do not need to be
+     * unique across clients, the server answers each connection separately.
+     *
+     * @return The next request id.
+     */
+    public long nextRequestId() {
+        return lastRequestId.incrementAndGet();
+    }
+
     /**
      * Sends a request to the server.
+     * Several threads can send requests at the same time, the messages are written one after the other.
      *
      * @param <T> The type of content in the request message.
      * @param request The request message to be sent.
      */
-    public <T extends Serializable> void sendRequest(Message<T> request) {
+    public synchronized <T extends Serializable> void sendRequest(Message<T> request) {
         try {
-            System.out.println("["+name+"] " + "Sending request: " + request.getType() + " " + request.getPurpose());
-            out.reset();
-            out.writeObject(request);
+            Log.debug("CLIENT", "Sending request", null, name, request.getPurpose(), request.getId());
+            FrameCodec.write(request, out);
         } catch (IOException e) {
-            System.err.println("["+name+"] " + "Error sending message: " + e.getMessage());
+            Log.error("CLIENT", "Error sending message: " + e.getMessage(), null, name, request.getPurpose(), request.getId());
         }
     }
 
@@ -307,43 +558,126 @@ public class Client {
      * @return The request that was sent.
      */
     public Message<String> request(String type, String purpose) {
-        Message<String> request_locale = new Message<String>(name, type, purpose,"",String.class);
-        System.out.println("["+name+"] " + "Sending request. Name: " + request_locale.getSender() + " Type: " + request_locale.getType() + " Purpose: " + request_locale.getPurpose());
+        Message<String> request_locale = new Message<String>(nextRequestId(), name, type, purpose,"",String.class);
         sendRequest(request_locale);
         return request_locale;
     }
 
     /**
-     * Sends a request of a specific category and action, and waits for a response.
+     * Sends a request without waiting for its response.
+     * Requests sent this way are pipelined: several of them can be in flight on the connection at the same time,
+     * the server answers them in order and each response completes its own future.
+     *
+     * @param <T> The type of the content in the response message.
+     * @param opcode The kind of the request.
+     * @return A future completed by the listener thread when the response arrives.
+     */
+    public <T> CompletableFuture<Message<T>> requestAsync(Opcode opcode) {
+        return send(new Message<String>(nextRequestId(), name, opcode, "", String.class));
+    }
+
+    /**
+     * Sends several requests in a single message, answered by a single message.
+     * The server handles them in order, so one round trip refreshes as many values as needed.
+     *
+     * @param opcodes The kinds of the requests.
+     * @return A future completed with the responses, in the order of the requests.
+     */
+    public CompletableFuture<List<Message<?>>> requestBatchAsync(Opcode... opcodes) {
+        CompletableFuture<Message<List<Message<?>>>> batch = send(batch(opcodes));
+        return batch.thenApply(Message::getContent);
+    }
+
+    /**
+     * Builds a batch message, each request of the batch having its own id.
+     */
+    private Message<ArrayList<Message<String>>> batch(Opcode... opcodes) {
+        ArrayList<Message<String>> requests = new ArrayList<>(opcodes.length);
+        for (Opcode opcode : opcodes) {
+            requests.add(new Message<String>(nextRequestId(), name, opcode, "", String.class));
+        }
+        return new Message<ArrayList<Message<String>>>(nextRequestId(), name, Opcode.BATCH, requests, ArrayList.class);
+    }
+
+    /**
+     * Registers a request as pending, then sends it.
+     * Registered before sending, the listener may get the response before this thread goes on.
+     */
+    @SuppressWarnings("unchecked")
+    private <T, R extends Serializable> CompletableFuture<Message<T>> send(Message<R> request) {
+        PendingRequest pending = new PendingRequest(request.getPurpose());
+        pendingRequests.put(request.getId(), pending);
+        sendRequest(request);
+        return (CompletableFuture<Message<T>>) (CompletableFuture<?>) pending.response;
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     * The request is sent again with the same id if no response arrives in time, up to 5 attempts: the
+     * server plays a command once, and answers its repeats with the same response.
      *
      * @param <T> The type of the content in the response message.
-     * @param category The category of the request.
-     * @param action The action of the request.
-     * @param messageRetriever A function that retrieves the last message of a specific type.
+     * @param opcode The kind of the request.
      * @return The response message, or null if no response was received after 5 attempts.
      */
-    public <T> Message<T> requestAndAwaitResponse(String category, String action, Function<GlobalListener, Message<T>> messageRetriever) {
-        
-        for (int j = 0; j < 5; j++) {
-            
-            Message<String> request_locale = request(category, action);
+    public <T> Message<T> requestAndAwaitResponse(Opcode opcode) {
+        return requestAndAwaitResponse(opcode, "");
+    }
 
-            for (int i = 0; i < 5; i++) {
-                Message<T> lastMessage = messageRetriever.apply(globalListener);
+    /**
+     * Sends a request with parameters and waits for its response.
+     * The request is sent again with the same id if no response arrives in time, up to 5 attempts.
+     *
+     * @param <T> The type of the content in the response message.
+     * @param opcode The kind of the request.
+     * @param content The parameters of the request.
+     * @return The response message, or null if no response was received after 5 attempts.
+     */
+    public <T> Message<T> requestAndAwaitResponse(Opcode opcode, String content) {
+        Message<String> request = new Message<String>(nextRequestId(), name, opcode, content, String.class);
+        return await(this.<T, String>send(request), request);
+    }
 
-                if (lastMessage != null && request_locale.getId().equals(lastMessage.getId())) {
-                    System.out.println("["+name+"] " + name + " got the " + action + ": " + lastMessage.getContent());
-                    return lastMessage;
-                }
+    /**
+     * Sends several requests in one batch and waits for the responses.
+     * The batch is sent again with the same ids if no response arrives in time, up to 5 attempts.
+     *
+     * @param opcodes The kinds of the requests.
+     * @return The responses in the order of the requests, or null if no response was received after 5 attempts.
+     */
+    public List<Message<?>> requestBatch(Opcode... opcodes) {
+        Message<ArrayList<Message<String>>> request = batch(opcodes);
+        Message<List<Message<?>>> response = await(this.<List<Message<?>>, ArrayList<Message<String>>>send(request), request);
+        return response != null ? response.getContent() : null;
+    }
 
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    System.err.println("InterruptedException: " + e.getMessage());
+    /**
+     * Waits for the response of a request sent, sending it again every RESPONSE_TIMEOUT_MS, up to
+     * REQUEST_ATTEMPTS times. The request keeps its id: a late response to any attempt completes it.
+     *
+     * @return The response, or null if it did not arrive in time.
+     */
+    private <T, R extends Serializable> Message<T> await(CompletableFuture<Message<T>> response, Message<R> request) {
+        String purpose = request.getPurpose();
+        for (int attempt = 1; attempt <= REQUEST_ATTEMPTS; attempt++) {
+            try {
+                return response.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.debug("CLIENT", "Response timed out", null, name, purpose, request.getId());
+                if (attempt < REQUEST_ATTEMPTS) {
+                    sendRequest(request);
                 }
+            } catch (InterruptedException e) {
+                Log.warn("CLIENT", "InterruptedException: " + e.getMessage(), null, name, purpose, Message.NO_ID);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.warn("CLIENT", "Request failed: " + e.getCause().getMessage(), null, name, purpose, Message.NO_ID);
+                break;
             }
         }
-        System.out.println("["+name+"] " + name + " did not get the " + action);
+        Log.warn("CLIENT", "No response after " + REQUEST_ATTEMPTS + " attempts", null, name, purpose, request.getId());
+        pendingRequests.remove(request.getId()); // A late response is not worth a leak
         return null;
     }
 
@@ -364,34 +698,41 @@ public class Client {
     /**
      * Sends a request to draw a Donjon card and waits for the response.
      *
-     * @return The drawn Donjon card, or null if no response was received.
+     * @return The drawn Donjon card, or null if no response was received or the draw was refused.
      */
     public Card drawDonjonCard() {
 
-        Message<Card> message = requestAndAwaitResponse("GAME", "DRAW_DONJON_CARD", GlobalListener::getLastDonjonCard);
-        return message != null ? message.getContent() : null;
+        Message<Object> message = requestAndAwaitResponse(Opcode.DRAW_DONJON_CARD);
+        if (message != null && message.getContent() instanceof String) {
+            Log.info("CLIENT", "Draw refused: " + message.getContent(), null, name, message.getPurpose(), message.getId());
+        }
+        return message != null && message.getContent() instanceof Card ? (Card) message.getContent() : null;
     }
 
     /**
      * Sends a request to draw a Treasure card and waits for the response.
      *
-     * @return The drawn Treasure card, or null if no response was received.
+     * @return The drawn Treasure card, or null if no response was received or the draw was refused.
      */
     public Card drawTreasureCard() {
 
-        Message<Card> message = requestAndAwaitResponse("GAME", "DRAW_TREASURE_CARD", GlobalListener::getLastTreasureCard);
-        return message != null ? message.getContent() : null;
+        Message<Object> message = requestAndAwaitResponse(Opcode.DRAW_TREASURE_CARD);
+        if (message != null && message.getContent() instanceof String) {
+            Log.info("CLIENT", "Draw refused: " + message.getContent(), null, name, message.getPurpose(), message.getId());
+        }
+        return message != null && message.getContent() instanceof Card ? (Card) message.getContent() : null;
 
     }
 
     /**
-     * Sends a request to get the list of players and waits for the response.
+     * Sends a request to get the table as seen by this client and waits for the response.
+     * The view holds the full player of this client and only a summary of the others.
      *
-     * @return The list of players, or null if no response was received.
+     * @return The view of the table, or null if no response was received.
      */
-    public ArrayList<Player> getPlayerList() {
+    public TableView getTableView() {
 
-        Message<ArrayList<Player>> message = requestAndAwaitResponse("GAME", "GET_PLAYER_LIST", GlobalListener::getLastPlayerList);
+        Message<TableView> message = requestAndAwaitResponse(Opcode.GET_PLAYER_LIST);
         return message != null ? message.getContent() : null;
     }
 
@@ -402,18 +743,18 @@ public class Client {
      */
     public boolean getInitGame() {
 
-        Message<Boolean> message = requestAndAwaitResponse("GAME", "GET_INIT_GAME", GlobalListener::getLastInitGame);
+        Message<Boolean> message = requestAndAwaitResponse(Opcode.GET_INIT_GAME);
         return message != null ? message.getContent() : false;
     }
 
     /**
      * Sends a request to get the current player and waits for the response.
      *
-     * @return The current player, or null if no response was received.
+     * @return The public summary of the current player, or null if no response was received.
      */
-    public Player getCurrentPlayer() {
+    public PlayerSummary getCurrentPlayer() {
 
-        Message<Player> message = requestAndAwaitResponse("GAME", "GET_CURRENT_PLAYER", GlobalListener::getLastCurrentPlayer);
+        Message<PlayerSummary> message = requestAndAwaitResponse(Opcode.GET_CURRENT_PLAYER);
         return message != null ? message.getContent() : null;
 
     }
@@ -425,7 +766,7 @@ public class Client {
      */
     public LinkedList<Card> getDonjonDiscard() {
 
-        Message<LinkedList<Card>> message = requestAndAwaitResponse("GAME", "GET_DONJON_DISCARD", GlobalListener::getLastDonjonDiscard);
+        Message<LinkedList<Card>> message = requestAndAwaitResponse(Opcode.GET_DONJON_DISCARD);
         return message != null ? message.getContent() : null;
 
     }
@@ -437,10 +778,38 @@ public class Client {
      */
     public LinkedList<Card> getTreasureDiscard() {
 
-        Message<LinkedList<Card>> message = requestAndAwaitResponse("GAME", "GET_TREASURE_DISCARD", GlobalListener::getLastTreasureDiscard);
+        Message<LinkedList<Card>> message = requestAndAwaitResponse(Opcode.GET_TREASURE_DISCARD);
         return message != null ? message.getContent() : null;
 
     }
 
+    /**
+     * Sends a request to get the Donjon discard cards added since a version and waits for the response.
+     * Give 0 to get the top of the pile, then the version of the last page to follow the pile.
+     *
+     * @param since The version of the last page received, or 0.
+     * @param limit The maximum number of cards to receive.
+     * @return The page of the pile, or null if no response was received.
+     */
+    public DiscardPage getDonjonDiscardPage(long since, int limit) {
+
+        Message<DiscardPage> message = requestAndAwaitResponse(Opcode.GET_DONJON_DISCARD_PAGE, since + "/" + limit);
+        return message != null ? message.getContent() : null;
+    }
+
+    /**
+     * Sends a request to get the Treasure discard cards added since a version and waits for the response.
+     * Give 0 to get the top of the pile, then the version of the last page to follow the pile.
+     *
+     * @param since The version of the last page received, or 0.
+     * @param limit The maximum number of cards to receive.
+     * @return The page of the pile, or null if no response was received.
+     */
+    public DiscardPage getTreasureDiscardPage(long since, int limit) {
+
+        Message<DiscardPage> message = requestAndAwaitResponse(Opcode.GET_TREASURE_DISCARD_PAGE, since + "/" + limit);
+        return message != null ? message.getContent() : null;
+    }
+
 
 }
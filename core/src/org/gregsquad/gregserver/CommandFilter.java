@@ -0,0 +1,117 @@
+package org.gregsquad.gregserver;
+
+import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.GameSnapshot;
+import org.gregsquad.gregsadventure.game.Player;
+
+/**
+ * The CommandFilter class stands between a connection and the game: it lets through the commands that
+ * change the game only once, and only when the rules allow them.
+ *
+ * A client sends a request again with the same id when the response is late, see
+ * Client.requestAndAwaitResponse. The filter keeps the last RECENT_IDS commands of the connection with
+ * their response: a command seen again is answered with the same response, without being played again.
+ * The ids are unique for a connection, the cache only has to outlive the retries.
+ *
+ * A command is checked against the snapshot of the game, without taking its lock: an illegal command is
+ * refused before it reaches the game. The handlers check again under the lock of the game, since the
+ * turn may end between the two.
+ * One filter per connection, used by the thread reading it only.
+ */
+final class CommandFilter {
+    static final int RECENT_IDS = 64;
+
+    private static final EnumSet<Opcode> COMMANDS = EnumSet.of(
+        Opcode.DRAW_DONJON_CARD, Opcode.DRAW_TREASURE_CARD, Opcode.END_TURN, Opcode.INIT_GAME);
+    private static final EnumSet<Opcode> ANSWERED = EnumSet.of(Opcode.DRAW_DONJON_CARD, Opcode.DRAW_TREASURE_CARD);
+
+    private final Map<Long, Message<? extends Serializable>> recent = new LinkedHashMap<Long, Message<? extends Serializable>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Message<? extends Serializable>> eldest) {
+            return size() > RECENT_IDS;
+        }
+    };
+
+    /**
+     * Tells whether a request changes the game, the only ones filtered.
+     * @param opcode the kind of the request.
+     * @return true for a command.
+     */
+    static boolean isCommand(Opcode opcode) {
+        return COMMANDS.contains(opcode);
+    }
+
+    /**
+     * Tells whether the client waits for a response to a command, even a refusal.
+     * @param opcode the kind of the command.
+     * @return true if a refusal is answered.
+     */
+    static boolean isAnswered(Opcode opcode) {
+        return ANSWERED.contains(opcode);
+    }
+
+    /**
+     * Checks that a player can play a command now.
+     * @param opcode the kind of the command.
+     * @param player the player of the connection, null for a client that did not join.
+     * @param snapshot the game.
+     * @return null if the command is allowed, the reason of the refusal otherwise.
+     */
+    static String check(Opcode opcode, Player player, GameSnapshot snapshot) {
+        if (player == null) {
+            return "NOT_A_PLAYER";
+        }
+        if (opcode == Opcode.INIT_GAME) {
+            return snapshot.isStarted() ? "STARTED" : null;
+        }
+        if (!snapshot.isStarted()) {
+            return "NOT_STARTED";
+        }
+        if (snapshot.getCurrentPlayerId() != player.getId()) {
+            return "NOT_YOUR_TURN";
+        }
+        Game.Phase phase = snapshot.getPhase();
+        switch (opcode) {
+            case DRAW_DONJON_CARD: // One door a turn
+                return phase == Game.Phase.DRAW ? null : "WRONG_PHASE";
+            case DRAW_TREASURE_CARD: // Once the fight is over
+                return phase == Game.Phase.CHARITY || phase == Game.Phase.END ? null : "WRONG_PHASE";
+            default: // A turn can be ended at any time, the monster of a fight left aside stays in the hand
+                return null;
+        }
+    }
+
+    /**
+     * Tells whether a command with this id was already handled on the connection.
+     * @param id the id of the request.
+     * @return true for a repeated command.
+     */
+    boolean isDuplicate(long id) {
+        return id != Message.NO_ID && recent.containsKey(id);
+    }
+
+    /**
+     * Returns the response of a command already handled.
+     * @param id the id of the request.
+     * @return the response, or null if the command had none.
+     */
+    Message<? extends Serializable> getResponse(long id) {
+        return recent.get(id);
+    }
+
+    /**
+     * Remembers a command handled, the oldest one is forgotten past RECENT_IDS.
+     * @param id the id of the request.
+     * @param response the response sent, refusals included, or null.
+     */
+    void remember(long id, Message<? extends Serializable> response) {
+        if (id != Message.NO_ID) {
+            recent.put(id, response);
+        }
+    }
+}
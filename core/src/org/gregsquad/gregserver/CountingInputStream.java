@@ -0,0 +1,51 @@
+package org.gregsquad.gregserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CountingInputStream class adds the number of bytes read to a shared counter.
+ * It is placed under the frame streams to measure what really comes from the socket.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private final LongAdder counter;
+
+    /**
+     * Constructs a new CountingInputStream.
+     * @param in the stream to read from.
+     * @param counter the counter incremented with every byte read.
+     */
+    public CountingInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            counter.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            counter.add(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        if (skipped > 0) {
+            counter.add(skipped);
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,36 @@
+package org.gregsquad.gregserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CountingOutputStream class adds the number of bytes written to a shared counter.
+ * It is placed under the frame streams to measure what really goes on the socket.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private final LongAdder counter;
+
+    /**
+     * Constructs a new CountingOutputStream.
+     * @param out the stream to write to.
+     * @param counter the counter incremented with every byte written.
+     */
+    public CountingOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
@@ -0,0 +1,228 @@
+package org.gregsquad.gregserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The FrameCodec class turns messages into length-prefixed frames and back.
+ * A frame is a 4 bytes big-endian length followed by a complete serialization stream holding one message.
+ * Unlike a long-lived ObjectOutputStream, a frame does not depend on what was written before it,
+ * so the same bytes can be sent to every connection.
+ *
+ * A frame can be compressed with deflate and the preset FrameDictionary, once the connection negotiated it.
+ * The high bit of the length then flags the frame, and the payload is the uncompressed length followed by
+ * the deflate stream. Frames smaller than COMPRESSION_THRESHOLD are never compressed: their class
+ * descriptors are already mostly back-references and the gain does not pay for the CPU.
+ */
+public final class FrameCodec {
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int COMPRESSED = 0x80000000; // Flag of the length of a compressed frame
+    private static final int KEPT_BUFFER_SIZE = 1024 * 1024; // Bigger scratch buffers are not kept between encodings
+
+    private static final ThreadLocal<ScratchBuffer> scratch = ThreadLocal.withInitial(ScratchBuffer::new);
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> compressed = new ThreadLocal<>();
+
+    /**
+     * A ByteArrayOutputStream giving access to its array, to avoid a copy.
+     */
+    private static final class ScratchBuffer extends ByteArrayOutputStream {
+        ScratchBuffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a message once into a shared frame.
+     * @param message the message to encode.
+     * @return the frame, holding one reference owned by the caller.
+     * @throws IOException if the message cannot be serialized.
+     */
+    public static SharedFrame encode(Message<?> message) throws IOException {
+        return encode(message, false);
+    }
+
+    /**
+     * Encodes a message once into a shared frame, compressed if asked and worth it.
+     * @param message the message to encode.
+     * @param compress true if the frame goes to connections that negotiated the compression.
+     * @return the frame, holding one reference owned by the caller.
+     * @throws IOException if the message cannot be serialized.
+     */
+    public static SharedFrame encode(Message<?> message, boolean compress) throws IOException {
+        ScratchBuffer bytes = serialize(message);
+        try {
+            int length = bytes.size() - HEADER_SIZE;
+            if (compress && length >= COMPRESSION_THRESHOLD) {
+                SharedFrame frame = deflate(bytes.array(), length, message);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            ByteBuffer buffer = FramePool.getInstance().acquire(bytes.size());
+            buffer.put(bytes.array(), 0, bytes.size());
+            buffer.flip();
+            return new SharedFrame(buffer, message.getPurpose(), message.getId(), bytes.size());
+        } finally {
+            recycle(bytes);
+        }
+    }
+
+    /**
+     * Encodes a message and writes the frame on a stream, for the connections that do not share frames.
+     * @param message the message to write.
+     * @param out the stream to write to. It is flushed.
+     * @throws IOException if the message cannot be serialized or written.
+     */
+    public static void write(Message<?> message, OutputStream out) throws IOException {
+        ScratchBuffer bytes = serialize(message);
+        try {
+            out.write(bytes.array(), 0, bytes.size());
+            out.flush();
+        } finally {
+            recycle(bytes);
+        }
+    }
+
+    /**
+     * Reads the next frame of a stream and decodes its message.
+     * @param in the stream to read from.
+     * @return the message of the frame.
+     * @throws java.io.EOFException if the stream ends before the next frame.
+     * @throws IOException if the frame cannot be read or is corrupted.
+     * @throws ClassNotFoundException if the message holds an unknown class.
+     */
+    public static Message<?> read(DataInputStream in) throws IOException, ClassNotFoundException {
+        int header = in.readInt();
+        int length = header & ~COMPRESSED;
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("[FRAME] Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if ((header & COMPRESSED) != 0) {
+            payload = inflate(payload);
+        }
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            Object object = objects.readObject();
+            if (!(object instanceof Message)) {
+                throw new StreamCorruptedException("[FRAME] Not a message: " + object.getClass().getName());
+            }
+            return (Message<?>) object;
+        }
+    }
+
+    /**
+     * Serializes a message into the scratch buffer of the thread, length prefix included.
+     */
+    private static ScratchBuffer serialize(Message<?> message) throws IOException {
+        ScratchBuffer bytes = scratch.get();
+        bytes.reset();
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            bytes.write(0); // Length, written once known
+        }
+        try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+            objects.writeObject(message);
+        }
+        int length = bytes.size() - HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("[FRAME] Message too big: " + length + " bytes");
+        }
+        byte[] array = bytes.array();
+        array[0] = (byte) (length >>> 24);
+        array[1] = (byte) (length >>> 16);
+        array[2] = (byte) (length >>> 8);
+        array[3] = (byte) length;
+        return bytes;
+    }
+
+    /**
+     * Compresses a serialized message into a pooled frame.
+     * @return the frame, or null if the compressed message is not smaller.
+     */
+    private static SharedFrame deflate(byte[] serialized, int length, Message<?> message) {
+        byte[] output = compressed.get();
+        if (output == null || output.length < length) {
+            output = new byte[Math.max(length, 4096)];
+            if (output.length <= KEPT_BUFFER_SIZE) {
+                compressed.set(output);
+            }
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(FrameDictionary.getInstance().getBytes());
+        deflater.setInput(serialized, HEADER_SIZE, length);
+        deflater.finish();
+        int size = deflater.deflate(output, 0, length - HEADER_SIZE); // Leaves room for the uncompressed length
+        if (!deflater.finished()) {
+            return null; // Would not be smaller
+        }
+        int frameLength = HEADER_SIZE + size;
+        ByteBuffer buffer = FramePool.getInstance().acquire(HEADER_SIZE + frameLength);
+        buffer.putInt(frameLength | COMPRESSED);
+        buffer.putInt(length);
+        buffer.put(output, 0, size);
+        buffer.flip();
+        return new SharedFrame(buffer, message.getPurpose(), message.getId(), HEADER_SIZE + length);
+    }
+
+    /**
+     * Decompresses the payload of a compressed frame.
+     */
+    private static byte[] inflate(byte[] payload) throws IOException {
+        if (payload.length < HEADER_SIZE) {
+            throw new StreamCorruptedException("[FRAME] Truncated compressed frame");
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("[FRAME] Invalid uncompressed length: " + length);
+        }
+        byte[] message = new byte[length];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload, HEADER_SIZE, payload.length - HEADER_SIZE);
+        try {
+            int size = inflater.inflate(message);
+            if (size == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(FrameDictionary.getInstance().getBytes());
+                size = inflater.inflate(message);
+            }
+            if (size != length || !inflater.finished()) {
+                throw new StreamCorruptedException("[FRAME] Compressed frame does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("[FRAME] Invalid compressed frame: " + e.getMessage());
+        }
+        return message;
+    }
+
+    /**
+     * Drops the scratch buffer of the thread if a big message made it grow.
+     */
+    private static void recycle(ScratchBuffer bytes) {
+        if (bytes.array().length > KEPT_BUFFER_SIZE) {
+            scratch.remove();
+        }
+    }
+}
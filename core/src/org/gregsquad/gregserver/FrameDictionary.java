@@ -0,0 +1,103 @@
+package org.gregsquad.gregserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.gregsquad.gregsadventure.card.Card;
+import org.gregsquad.gregsadventure.card.CardCatalog;
+import org.gregsquad.gregsadventure.game.Player;
+import org.gregsquad.gregsadventure.game.PlayerSummary;
+import org.gregsquad.gregsadventure.game.TableView;
+
+/**
+ * The FrameDictionary class is a singleton holding the preset dictionary of the compressed frames.
+ * The dictionary is a serialized table view whose player holds one card of each kind, so it contains
+ * the class descriptors and the card texts of config.properties, which is what big frames repeat.
+ *
+ * Both sides build it from their own classes and configuration. Its name carries a checksum of the
+ * bytes: a client and a server compress only if their names match, so they never decode with a
+ * different dictionary.
+ */
+public class FrameDictionary {
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024; // Deflate does not look further back
+    private static final String ALGORITHM = "deflate";
+
+    private static FrameDictionary instance;
+
+    private final byte[] bytes;
+    private final String name;
+
+    /**
+     * Private constructor for the FrameDictionary class.
+     */
+    private FrameDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length);
+        this.name = ALGORITHM + "/" + Long.toHexString(checksum.getValue());
+    }
+
+    /**
+     * Returns the singleton instance of the FrameDictionary class, building it on the first call.
+     * @return the singleton instance of the FrameDictionary class.
+     */
+    public static synchronized FrameDictionary getInstance() {
+        if (instance == null) {
+            instance = new FrameDictionary(build());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the dictionary, to be given to a Deflater or an Inflater. It must not be modified.
+     * @return the bytes of the dictionary.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the name of the dictionary, exchanged to negotiate the compression.
+     * @return the algorithm and the checksum of the dictionary.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Serializes a sample table view holding every kind of card, in the order of the catalog so both sides get the same bytes.
+     */
+    private static byte[] build() {
+        CardCatalog catalog = CardCatalog.getInstance();
+        Player player = new Player(0, "");
+        for (int id : catalog.getIds()) {
+            Card card = catalog.create(id);
+            if (card != null) {
+                player.getDeck().addCard(card);
+            }
+        }
+        List<PlayerSummary> players = new ArrayList<>();
+        players.add(PlayerSummary.of(player));
+        TableView view = new TableView(0, 0, Collections.unmodifiableList(players), player);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(out)) {
+            objects.writeObject(new Message<TableView>(Message.NO_ID, "SERVER", Opcode.GET_PLAYER_LIST, view, TableView.class));
+        } catch (IOException e) {
+            throw new IllegalStateException("[FRAME] Cannot build the compression dictionary", e);
+        }
+        byte[] bytes = out.toByteArray();
+        if (bytes.length <= MAX_DICTIONARY_SIZE) {
+            return bytes;
+        }
+        // Deflate favours the end of the dictionary, keep the last bytes
+        byte[] tail = new byte[MAX_DICTIONARY_SIZE];
+        System.arraycopy(bytes, bytes.length - MAX_DICTIONARY_SIZE, tail, 0, MAX_DICTIONARY_SIZE);
+        return tail;
+    }
+}
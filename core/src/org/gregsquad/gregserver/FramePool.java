@@ -0,0 +1,93 @@
+package org.gregsquad.gregserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The FramePool class is a singleton that recycles the direct buffers holding encoded frames.
+ * Buffers are grouped by power of two sizes, from 1 KiB to 1 MiB. Bigger frames get a buffer of
+ * their own that is left to the garbage collector. Each size keeps a bounded number of idle buffers,
+ * so a burst of big broadcasts does not pin memory forever.
+ */
+public class FramePool {
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 20;
+    private static final int MAX_IDLE_PER_SIZE = 64;
+
+    private static FramePool instance;
+
+    private final List<Queue<ByteBuffer>> idle; // By size
+    private final AtomicInteger[] idleCounts;
+
+    /**
+     * Private constructor for the FramePool class.
+     */
+    private FramePool() {
+        int sizes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.idle = new ArrayList<>(sizes);
+        this.idleCounts = new AtomicInteger[sizes];
+        for (int i = 0; i < sizes; i++) {
+            idle.add(new ConcurrentLinkedQueue<>());
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the singleton instance of the FramePool class.
+     * @return the singleton instance of the FramePool class.
+     */
+    public static synchronized FramePool getInstance() {
+        if (instance == null) {
+            instance = new FramePool();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a cleared direct buffer of at least the given capacity.
+     * @param size the number of bytes needed.
+     * @return a buffer to give back with release once written.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = indexOf(size);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = idle.get(index).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        }
+        idleCounts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer obtained with acquire. It must not be used afterwards.
+     * @param buffer the buffer to recycle.
+     */
+    public void release(ByteBuffer buffer) {
+        int index = indexOf(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SHIFT)) {
+            return; // Oversized buffer, not pooled
+        }
+        if (idleCounts[index].incrementAndGet() > MAX_IDLE_PER_SIZE) {
+            idleCounts[index].decrementAndGet();
+            return;
+        }
+        idle.get(index).offer(buffer);
+    }
+
+    /**
+     * Returns the index of the smallest pooled size holding the given number of bytes.
+     * @return the index, or -1 if the size is above the biggest pooled size.
+     */
+    private static int indexOf(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+}
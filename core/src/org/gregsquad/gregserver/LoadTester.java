@@ -0,0 +1,587 @@
+package org.gregsquad.gregserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gregsquad.gregsadventure.card.CardCatalog;
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.PlayerSummary;
+
+/**
+ * The LoadTester class measures how much load a server can take.
+ * It starts rooms on loopback (or targets running servers) and fills them with bots speaking the
+ * game protocol directly over framed sockets. Each bot connects, waits for its room to start, then
+ * plays a mix of draws, reads and end of turns at a fixed rate.
+ *
+ * Latencies are measured from the time a request was scheduled, not from the time it was sent,
+ * so a server that falls behind shows up in the percentiles instead of slowing the bots down.
+ *
+ * Spectators can be added to every room, to measure what streaming the game to them costs the players.
+ * They are plain sockets read by a single selector thread, which only counts the frames it receives.
+ *
+ * With --drain, the rooms are drained at the end of the test while the bots are still playing, and the
+ * time the shutdown takes is reported.
+ *
+ * With --migrate, every room is moved in the middle of the test to the room of the same rank of another
+ * process, started with --standby on the given port. The time each room is frozen is reported, and the
+ * requests that had to follow their room are measured as MIGRATED.
+ *
+ * Usage: LoadTester [--rooms 10] [--players 6] [--rate 2] [--duration 30] [--warmup 5]
+ *                   [--spectators 0] [--compress] [--card-ids] [--drain 0] [--migrate 0]
+ *                   [--port 40000] [--host localhost --external]
+ *        LoadTester --standby [--rooms 10] [--port 41000]
+ */
+public class LoadTester {
+    private static final int SOCKET_TIMEOUT_MS = 10000;
+    private static final int START_TIMEOUT_S = 60;
+    private static final int REPORT_INTERVAL_S = 5;
+    private static final int MIGRATION_TIMEOUT_MS = 5000;
+
+    // Weighted mix of the requests played by a bot once the game is started
+    private static final String[] ACTIONS = {
+        "GET_CURRENT_PLAYER", "GET_CURRENT_PLAYER", "GET_CURRENT_PLAYER",
+        "GET_PLAYER_LIST", "GET_PLAYER_LIST",
+        "GET_INIT_GAME",
+        "GET_DONJON_DISCARD", "GET_TREASURE_DISCARD",
+        "DRAW_DONJON_CARD", "DRAW_TREASURE_CARD",
+        "END_TURN"
+    };
+
+    private final String host;
+    private final int basePort;
+    private final int rooms;
+    private final int playersPerRoom;
+    private final double rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int spectatorsPerRoom;
+    private final boolean compress;
+    private final boolean cardIds;
+    private final boolean external;
+    private final long drainMillis;
+    private final int migratePort;
+    private final List<Server> servers = new ArrayList<>();
+
+    private final Map<String, LatencyHistogram> latencies = new TreeMap<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder spectatorFrames = new LongAdder();
+    private final LongAdder spectatorBytes = new LongAdder();
+    private final LongAdder spectatorsConnected = new LongAdder();
+    private final AtomicBoolean recording = new AtomicBoolean(false);
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private volatile boolean draining; // The bots losing their connection are expected to
+
+    /**
+     * Constructs a new LoadTester.
+     * @param host the host of the servers.
+     * @param basePort the port of the first room, the other rooms use the following ports.
+     * @param rooms the number of rooms.
+     * @param playersPerRoom the number of bots in each room.
+     * @param rate the number of requests per second sent by each bot.
+     * @param durationSeconds the duration of the measure.
+     * @param warmupSeconds the duration of the warmup, not recorded.
+     * @param spectatorsPerRoom the number of spectators in each room.
+     * @param compress true if the bots negotiate the compression of the responses.
+     * @param cardIds true if the bots negotiate receiving the cards as ids.
+     * @param external true to target servers that are already running instead of starting them.
+     * @param drainMillis the time given to the rooms to drain at the end of the test, 0 to not drain them.
+     * @param migratePort the port of the first room to move the rooms to in the middle of the test, 0 to not move them.
+     */
+    public LoadTester(String host, int basePort, int rooms, int playersPerRoom, double rate, int durationSeconds, int warmupSeconds, int spectatorsPerRoom, boolean compress, boolean cardIds, boolean external, long drainMillis, int migratePort) {
+        this.host = host;
+        this.basePort = basePort;
+        this.rooms = rooms;
+        this.playersPerRoom = playersPerRoom;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.spectatorsPerRoom = spectatorsPerRoom;
+        this.compress = compress;
+        this.cardIds = cardIds;
+        this.external = external;
+        this.drainMillis = drainMillis;
+        this.migratePort = migratePort;
+        for (String action : ACTIONS) {
+            latencies.putIfAbsent(action, new LatencyHistogram());
+        }
+        latencies.put("NAME", new LatencyHistogram());
+        latencies.put("MIGRATED", new LatencyHistogram());
+    }
+
+    /**
+     * Parses the command line and runs the test.
+     * @param args the options, see the class documentation.
+     * @throws InterruptedException if the main thread is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--external") || args[i].equals("--compress") || args[i].equals("--card-ids") || args[i].equals("--standby")) {
+                options.put(args[i].substring(2), "true");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                return;
+            }
+        }
+        LoadTester tester = new LoadTester(
+            options.getOrDefault("host", "localhost"),
+            Integer.parseInt(options.getOrDefault("port", "40000")),
+            Integer.parseInt(options.getOrDefault("rooms", "10")),
+            Integer.parseInt(options.getOrDefault("players", "6")),
+            Double.parseDouble(options.getOrDefault("rate", "2")),
+            Integer.parseInt(options.getOrDefault("duration", "30")),
+            Integer.parseInt(options.getOrDefault("warmup", "5")),
+            Integer.parseInt(options.getOrDefault("spectators", "0")),
+            Boolean.parseBoolean(options.getOrDefault("compress", "false")),
+            Boolean.parseBoolean(options.getOrDefault("card-ids", "false")),
+            Boolean.parseBoolean(options.getOrDefault("external", "false")),
+            Long.parseLong(options.getOrDefault("drain", "0")),
+            Integer.parseInt(options.getOrDefault("migrate", "0")));
+        if (Boolean.parseBoolean(options.getOrDefault("standby", "false"))) {
+            tester.standby();
+        }
+        tester.run();
+        System.exit(0);
+    }
+
+    /**
+     * Runs the whole test and prints the report.
+     * @throws InterruptedException if the main thread is interrupted.
+     */
+    public void run() throws InterruptedException {
+        if (!external) {
+            startRooms();
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int room = 0; room < rooms; room++) {
+            CountDownLatch joined = new CountDownLatch(playersPerRoom);
+            for (int seat = 0; seat < playersPerRoom; seat++) {
+                Bot bot = new Bot(basePort + room, "bot-" + room + "-" + seat, seat == 0, joined);
+                Thread thread = new Thread(bot, "bot-" + room + "-" + seat);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        System.out.println("[LOAD] " + threads.size() + " bots in " + rooms + " rooms, " + rate + " req/s each");
+        if (spectatorsPerRoom > 0) {
+            Thread thread = new Thread(this::watch, "spectators");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        if (migratePort > 0 && !external) {
+            Thread thread = new Thread(this::migrate, "migration");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        recording.set(true);
+        long start = System.nanoTime();
+        long lastCompleted = 0;
+        long startSent = ServerMetrics.getInstance().getBytesOut().sum();
+        long startFrames = spectatorFrames.sum();
+        long startBytes = spectatorBytes.sum();
+        for (int elapsed = 0; elapsed < durationSeconds; elapsed += REPORT_INTERVAL_S) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(REPORT_INTERVAL_S, durationSeconds - elapsed)));
+            long done = completed.sum();
+            System.out.println("[LOAD] " + (done - lastCompleted) / Math.min(REPORT_INTERVAL_S, durationSeconds - elapsed) + " req/s, "
+                + errors.sum() + " errors, " + timeouts.sum() + " timeouts");
+            lastCompleted = done;
+        }
+        recording.set(false);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (drainMillis > 0 && !external) {
+            drain();
+        }
+        running.set(false);
+
+        report(seconds);
+        if (!external) {
+            System.out.println(String.format("[LOAD] Server sent %.1f KiB/s, %.0f B per request",
+                (ServerMetrics.getInstance().getBytesOut().sum() - startSent) / seconds / 1024,
+                (double) (ServerMetrics.getInstance().getBytesOut().sum() - startSent) / Math.max(1, completed.sum())));
+        }
+        if (spectatorsPerRoom > 0) {
+            System.out.println(String.format("[LOAD] Spectators: %d connected, %.1f states/s, %.1f KiB/s received",
+                spectatorsConnected.sum(), (spectatorFrames.sum() - startFrames) / seconds, (spectatorBytes.sum() - startBytes) / seconds / 1024));
+        }
+    }
+
+    /**
+     * Hosts empty rooms waiting for the rooms of another process to be moved to them, until killed.
+     * @throws InterruptedException if the main thread is interrupted.
+     */
+    public void standby() throws InterruptedException {
+        startRooms();
+        System.out.println("[LOAD] " + rooms + " empty rooms waiting from port " + basePort);
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL_S));
+        }
+    }
+
+    /**
+     * Moves every room, one after the other, in the middle of the test and prints how long they were frozen.
+     */
+    private void migrate() {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds) + TimeUnit.SECONDS.toMillis(durationSeconds) / 2);
+        } catch (InterruptedException e) {
+            return;
+        }
+        LatencyHistogram pauses = new LatencyHistogram();
+        int moved = 0;
+        for (int room = 0; room < servers.size(); room++) {
+            long start = System.nanoTime();
+            if (servers.get(room).migrate(host, migratePort + room, MIGRATION_TIMEOUT_MS)) {
+                moved++;
+            }
+            pauses.record(System.nanoTime() - start);
+        }
+        System.out.println(String.format("[LOAD] Moved %d/%d rooms, frozen p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+            moved, servers.size(), pauses.getPercentile(50) / 1e6, pauses.getPercentile(99) / 1e6, pauses.getPercentile(100) / 1e6));
+    }
+
+    /**
+     * Drains all the rooms while the bots are playing and prints how long it took.
+     */
+    private void drain() {
+        draining = true;
+        long start = System.nanoTime();
+        int forced = Server.drainAll(servers, drainMillis);
+        System.out.println(String.format("[LOAD] Drained %d rooms in %.1f ms, %d clients stopped at the deadline",
+            servers.size(), (System.nanoTime() - start) / 1e6, forced));
+    }
+
+    /**
+     * Starts one server per room in this process, each with its own game.
+     */
+    private void startRooms() {
+        for (int room = 0; room < rooms; room++) {
+            Server server = new Server();
+            server.init(basePort + room, new Game());
+            servers.add(server);
+            Thread thread = new Thread(server::run, "room-" + room);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Connects the spectators of every room and reads them all from this thread until the end of the test.
+     */
+    private void watch() {
+        try (Selector selector = Selector.open()) {
+            for (int room = 0; room < rooms; room++) {
+                for (int i = 0; i < spectatorsPerRoom && running.get(); i++) {
+                    try {
+                        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, basePort + room));
+                        FrameCodec.write(new Message<String>(1, "spectator-" + room + "-" + i, Opcode.CONNEXION_SPECTATE, "", String.class),
+                            channel.socket().getOutputStream());
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ, new FrameCounter());
+                        spectatorsConnected.increment();
+                    } catch (IOException e) {
+                        connectErrors.increment();
+                    }
+                    selector.selectNow();
+                    readSpectators(selector);
+                }
+            }
+            while (running.get()) {
+                selector.select(100);
+                readSpectators(selector);
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            System.err.println("[LOAD] spectators: " + e);
+        }
+    }
+
+    /**
+     * Reads every spectator with pending data and counts the frames.
+     */
+    private void readSpectators(Selector selector) throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            FrameCounter counter = (FrameCounter) key.attachment();
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (!counter.read(channel)) {
+                    key.cancel();
+                    channel.close();
+                    errors.increment();
+                }
+            } catch (IOException e) {
+                key.cancel();
+                channel.close();
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Follows the frame boundaries of a spectator connection without decoding the messages.
+     */
+    private class FrameCounter {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private int remaining; // Bytes of the current frame not read yet
+
+        /**
+         * Reads what is available.
+         * @return false if the server closed the connection.
+         */
+        boolean read(SocketChannel channel) throws IOException {
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                spectatorBytes.add(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (remaining == 0) {
+                        while (header.hasRemaining() && buffer.hasRemaining()) {
+                            header.put(buffer.get());
+                        }
+                        if (header.hasRemaining()) {
+                            break;
+                        }
+                        remaining = header.getInt(0);
+                        header.clear();
+                    }
+                    int skipped = Math.min(remaining, buffer.remaining());
+                    buffer.position(buffer.position() + skipped);
+                    remaining -= skipped;
+                    if (remaining == 0) {
+                        spectatorFrames.increment();
+                    }
+                }
+                buffer.clear();
+            }
+            return read >= 0;
+        }
+    }
+
+    /**
+     * Prints the throughput, the latency percentiles per request and the error counts.
+     * @param seconds the duration of the recorded period.
+     */
+    private void report(double seconds) {
+        System.out.println();
+        System.out.println(String.format("[LOAD] Throughput: %.1f req/s over %.1f s", completed.sum() / seconds, seconds));
+        System.out.println(String.format("[LOAD] %-22s %9s %9s %9s %9s %9s", "request", "count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("[LOAD] %-22s %9d %9.2f %9.2f %9.2f %9.2f", entry.getKey(), histogram.getCount(),
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+                histogram.getPercentile(99) / 1e6, histogram.getPercentile(100) / 1e6));
+        }
+        System.out.println("[LOAD] Errors: " + errors.sum() + ", timeouts: " + timeouts.sum() + ", failed connections: " + connectErrors.sum());
+    }
+
+    /**
+     * A headless player speaking the protocol of the Client class, one request at a time.
+     */
+    private class Bot implements Runnable {
+        private final int port;
+        private final String name;
+        private final boolean host;
+        private final CountDownLatch joined;
+        private Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        private int playerId;
+        private long lastRequestId;
+
+        Bot(int port, String name, boolean host, CountDownLatch joined) {
+            this.port = port;
+            this.name = name;
+            this.host = host;
+            this.joined = joined;
+        }
+
+        @Override
+        public void run() {
+            try {
+                connect(LoadTester.this.host, port);
+                Message<?> answer = call("CONNEXION", "NAME", System.nanoTime());
+                playerId = (Integer) answer.getContent();
+                joined.countDown();
+
+                // The first bot of the room starts the game once everybody is in
+                if (!joined.await(START_TIMEOUT_S, TimeUnit.SECONDS)) {
+                    throw new IOException("room on port " + port + " did not fill up");
+                }
+                if (host) {
+                    send("GAME", "INIT_GAME");
+                }
+                while (!Boolean.TRUE.equals(call("GAME", "GET_INIT_GAME", System.nanoTime()).getContent())) {
+                    Thread.sleep(100);
+                }
+
+                long interval = (long) (1e9 / rate);
+                long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval); // Spread the bots
+                while (running.get()) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    play(next);
+                    next += interval;
+                }
+            } catch (SocketTimeoutException e) {
+                timeouts.increment();
+            } catch (ConnectException e) {
+                connectErrors.increment();
+            } catch (Exception e) {
+                if (running.get() && !draining) {
+                    errors.increment();
+                    System.err.println("[LOAD] " + name + ": " + e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Opens the connection and makes the negotiations asked for.
+         */
+        private void connect(String host, int port) throws IOException, ClassNotFoundException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            if (compress) {
+                offer(Opcode.CONNEXION_COMPRESSION, FrameDictionary.getInstance().getName());
+            }
+            if (cardIds) {
+                offer(Opcode.CONNEXION_CATALOG, CardCatalog.getInstance().getName());
+            }
+        }
+
+        private void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+
+        /**
+         * Follows the room to the server it was moved to, and takes the player back with the token.
+         * @param target "host:port/token" of the room.
+         */
+        private void redirect(String target) throws IOException, ClassNotFoundException {
+            int slash = target.lastIndexOf('/');
+            int colon = target.lastIndexOf(':', slash);
+            close();
+            connect(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1, slash)));
+            FrameCodec.write(new Message<String>(++lastRequestId, name, Opcode.CONNEXION_RESUME, target.substring(slash + 1), String.class), out);
+            if (!Integer.valueOf(playerId).equals(read().getContent())) {
+                throw new IOException("resume refused");
+            }
+        }
+
+        /**
+         * Plays one random action of the mix.
+         * @param scheduledAt the time the action was scheduled.
+         */
+        private void play(long scheduledAt) throws IOException, ClassNotFoundException {
+            String action = ACTIONS[ThreadLocalRandom.current().nextInt(ACTIONS.length)];
+            if (action.equals("END_TURN")) {
+                // Only the current player ends its turn, like the GUI
+                Message<?> current = call("GAME", "GET_CURRENT_PLAYER", scheduledAt);
+                if (((PlayerSummary) current.getContent()).getId() == playerId) {
+                    send("GAME", "END_TURN");
+                }
+                return;
+            }
+            call("GAME", action, scheduledAt);
+        }
+
+        /**
+         * Negotiates an option of the connection.
+         * @param opcode the negotiation request.
+         * @param offered what the bot offers, the server must accept it as it is.
+         */
+        private void offer(Opcode opcode, String offered) throws IOException, ClassNotFoundException {
+            FrameCodec.write(new Message<String>(++lastRequestId, name, opcode, offered, String.class), out);
+            if (!offered.equals(read().getContent())) {
+                throw new IOException(opcode.getPurpose() + " refused");
+            }
+        }
+
+        /**
+         * Reads the next response, skipping the lobby updates pushed by the server.
+         * @return the response.
+         */
+        private Message<?> read() throws IOException, ClassNotFoundException {
+            Message<?> message = FrameCodec.read(in);
+            while (message.getOpcode() == Opcode.LOBBY_UPDATE || message.getOpcode() == Opcode.INIT_GAME) {
+                message = FrameCodec.read(in);
+            }
+            return message;
+        }
+
+        /**
+         * Sends a request without a response.
+         */
+        private void send(String type, String purpose) throws IOException {
+            FrameCodec.write(new Message<String>(name, type, purpose, "", String.class), out);
+        }
+
+        /**
+         * Sends a request and reads its response.
+         * @param scheduledAt the time the request was scheduled, latencies are measured from it.
+         * @return the response.
+         */
+        private Message<?> call(String type, String purpose, long scheduledAt) throws IOException, ClassNotFoundException {
+            Message<String> request = new Message<String>(++lastRequestId, name, type, purpose, "", String.class);
+            FrameCodec.write(request, out);
+            Message<?> response = read();
+            if (response.getOpcode() == Opcode.CONNEXION_REDIRECT) {
+                // The room moved before handling the request: it is sent again to the new server
+                redirect((String) response.getContent());
+                request = new Message<String>(++lastRequestId, name, type, purpose, "", String.class);
+                FrameCodec.write(request, out);
+                response = read();
+                purpose = "MIGRATED";
+            }
+            long latency = System.nanoTime() - scheduledAt;
+            if (request.getId() != response.getId()) {
+                errors.increment();
+            } else if (recording.get()) {
+                completed.increment();
+                latencies.get(purpose).record(latency);
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package org.gregsquad.gregserver;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Log class is an asynchronous logger for the hot paths of the client and the server.
+ * Callers only copy references into a preallocated ring buffer, a background thread formats the
+ * events and writes them in batches. When the buffer is full, events are dropped and counted
+ * instead of blocking the caller.
+ *
+ * Disabled levels cost a single comparison, as long as the message is a constant and the
+ * variable parts are given as fields. The level is read from the gregs.log.level system property
+ * (DEBUG, INFO, WARN, ERROR or OFF, INFO by default).
+ */
+public final class Log {
+
+    /**
+     * The severity of an event.
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 1 << 14; // must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(); // next slot claimed by a producer
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile int threshold = parseLevel(System.getProperty("gregs.log.level", "INFO")).ordinal();
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static long head; // next slot read by the writer, only touched by the writer thread
+
+    /**
+     * A slot of the ring buffer. The sequence tells who owns the slot:
+     * index for a producer, index + 1 for the writer.
+     */
+    private static final class Event {
+        private volatile long sequence;
+        private long timestamp;
+        private Level level;
+        private String source;
+        private String message;
+        private String room;
+        private String player;
+        private String purpose;
+        private long correlationId;
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+            ring[i].sequence = i;
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets the minimum level of the events that are kept.
+     * @param level the new minimum level.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Checks if a level is enabled, to guard messages that are expensive to build.
+     * @param level the level to check.
+     * @return true if events of this level are kept.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     * @return the number of dropped events.
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs a DEBUG event.
+     * @param source the component emitting the event, like SERVER or the client name.
+     * @param message the message, a constant to keep disabled levels free.
+     */
+    public static void debug(String source, String message) {
+        log(Level.DEBUG, source, message, null, null, null, Message.NO_ID);
+    }
+
+    /**
+     * Logs a DEBUG event with structured fields. String fields can be null.
+     * @param source the component emitting the event.
+     * @param message the message, a constant to keep disabled levels free.
+     * @param room the room concerned.
+     * @param player the player concerned.
+     * @param purpose the purpose of the message being handled.
+     * @param correlationId the id of the message being handled, or Message.NO_ID.
+     */
+    public static void debug(String source, String message, String room, String player, String purpose, long correlationId) {
+        log(Level.DEBUG, source, message, room, player, purpose, correlationId);
+    }
+
+    /**
+     * Logs an INFO event.
+     * @param source the component emitting the event, like SERVER or the client name.
+     * @param message the message, a constant to keep disabled levels free.
+     */
+    public static void info(String source, String message) {
+        log(Level.INFO, source, message, null, null, null, Message.NO_ID);
+    }
+
+    /**
+     * Logs an INFO event with structured fields. Fields can be null.
+     * @param source the component emitting the event.
+     * @param message the message, a constant to keep disabled levels free.
+     * @param room the room concerned.
+     * @param player the player concerned.
+     * @param purpose the purpose of the message being handled.
+     * @param correlationId the id of the message being handled, or Message.NO_ID.
+     */
+    public static void info(String source, String message, String room, String player, String purpose, long correlationId) {
+        log(Level.INFO, source, message, room, player, purpose, correlationId);
+    }
+
+    /**
+     * Logs a WARN event.
+     * @param source the component emitting the event, like SERVER or the client name.
+     * @param message the message, a constant to keep disabled levels free.
+     */
+    public static void warn(String source, String message) {
+        log(Level.WARN, source, message, null, null, null, Message.NO_ID);
+    }
+
+    /**
+     * Logs a WARN event with structured fields. String fields can be null.
+     * @param source the component emitting the event.
+     * @param message the message, a constant to keep disabled levels free.
+     * @param room the room concerned.
+     * @param player the player concerned.
+     * @param purpose the purpose of the message being handled.
+     * @param correlationId the id of the message being handled, or Message.NO_ID.
+     */
+    public static void warn(String source, String message, String room, String player, String purpose, long correlationId) {
+        log(Level.WARN, source, message, room, player, purpose, correlationId);
+    }
+
+    /**
+     * Logs an ERROR event.
+     * @param source the component emitting the event, like SERVER or the client name.
+     * @param message the message, a constant to keep disabled levels free.
+     */
+    public static void error(String source, String message) {
+        log(Level.ERROR, source, message, null, null, null, Message.NO_ID);
+    }
+
+    /**
+     * Logs an ERROR event with structured fields. Fields can be null.
+     * @param source the component emitting the event.
+     * @param message the message, a constant to keep disabled levels free.
+     * @param room the room concerned.
+     * @param player the player concerned.
+     * @param purpose the purpose of the message being handled.
+     * @param correlationId the id of the message being handled, or Message.NO_ID.
+     */
+    public static void error(String source, String message, String room, String player, String purpose, long correlationId) {
+        log(Level.ERROR, source, message, room, player, purpose, correlationId);
+    }
+
+    /**
+     * Publishes an event in the ring buffer. String fields can be null.
+     */
+    private static void log(Level level, String source, String message, String room, String player, String purpose, long correlationId) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        long position = tail.get();
+        Event event;
+        while (true) {
+            event = ring[(int) (position & MASK)];
+            long difference = event.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment(); // The writer is a full lap behind
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.source = source;
+        event.message = message;
+        event.room = room;
+        event.player = player;
+        event.purpose = purpose;
+        event.correlationId = correlationId;
+        event.sequence = position + 1; // Hands the slot to the writer
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes every published event, then flushes the streams.
+     * @return true if at least one event was written.
+     */
+    private static synchronized boolean drain() {
+        StringBuilder normal = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        boolean written = false;
+        while (true) {
+            Event event = ring[(int) (head & MASK)];
+            if (event.sequence != head + 1) {
+                break;
+            }
+            format(event, event.level.ordinal() >= Level.WARN.ordinal() ? errors : normal);
+            event.source = null;
+            event.message = null;
+            event.room = null;
+            event.player = null;
+            event.purpose = null;
+            event.sequence = head + CAPACITY; // Hands the slot back to the producers
+            head++;
+            written = true;
+        }
+        if (normal.length() > 0) {
+            out.print(normal);
+            out.flush();
+        }
+        if (errors.length() > 0) {
+            err.print(errors);
+            err.flush();
+        }
+        return written;
+    }
+
+    private static void format(Event event, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(event.timestamp)).append(' ')
+            .append(event.level).append(" [").append(event.source).append("] ")
+            .append(event.message);
+        appendField(line, "room", event.room);
+        appendField(line, "player", event.player);
+        appendField(line, "purpose", event.purpose);
+        if (event.correlationId != Message.NO_ID) {
+            line.append(" id=").append(event.correlationId);
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private static void appendField(StringBuilder line, String name, String value) {
+        if (value != null) {
+            line.append(' ').append(name).append('=').append(value);
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
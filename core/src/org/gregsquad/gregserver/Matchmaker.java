@@ -0,0 +1,338 @@
+package org.gregsquad.gregserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.GameSnapshot;
+
+/**
+ * The Matchmaker class finds a room for the players who do not know where to play.
+ * The rooms of the process register with it and tell it about every join. The open rooms are indexed
+ * by number of seats taken and by latency class, in one linked list per pair: registering a room,
+ * updating it and taking a seat are constant time, and a quick join only looks at the heads of the
+ * lists, the fullest rooms first so their games start sooner, the fastest rooms first among equals.
+ *
+ * A quick join reserves the seat it hands out, so concurrent quick joins never overfill a room. The
+ * reservation is used by the next player joining the room, or given back after RESERVATION_TIMEOUT_MS.
+ *
+ * Clients reach it on its own port with LOBBY_QUICK_JOIN and LOBBY_LIST requests, see Client.quickJoin.
+ *
+ * Usage: Matchmaker [--rooms 10] [--port 27093] [--lobby 27092] [--host localhost]
+ */
+public class Matchmaker {
+    public static final int MIN_PLAYERS = 3;
+    public static final int MAX_PLAYERS = 6;
+    public static final int DEFAULT_PORT = 27092;
+
+    private static final long[] LATENCY_BOUNDS = { // Upper bounds of the latency classes, the last class is unbounded
+        TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(100)
+    };
+    private static final long RESERVATION_TIMEOUT_MS = 10000;
+    private static final long REFRESH_MS = 1000;
+
+    private final String host;
+    private final Entry[][] heads = new Entry[MAX_PLAYERS][LATENCY_BOUNDS.length + 1]; // By seats taken, then latency class
+    private final Map<Server, Entry> entries = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * A registered room, linked in the list of its seats and latency class while it is open.
+     */
+    private static class Entry {
+        private final Server server;
+        private int players;
+        private int reserved;
+        private long reservedAt;
+        private boolean started;
+        private long latency;
+        private boolean linked;
+        private int linkedSeats; // The list the room is linked in
+        private int linkedClass;
+        private Entry previous;
+        private Entry next;
+
+        Entry(Server server) {
+            this.server = server;
+        }
+
+        int seats() {
+            return players + reserved;
+        }
+
+        boolean isOpen() {
+            return !started && seats() < MAX_PLAYERS;
+        }
+    }
+
+    /**
+     * Constructs a new Matchmaker.
+     * @param host the host the clients use to reach the rooms.
+     */
+    public Matchmaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Adds a room to the index. The room then reports its changes itself.
+     * @param server the room.
+     */
+    public synchronized void register(Server server) {
+        if (!entries.containsKey(server)) {
+            entries.put(server, new Entry(server));
+            server.setMatchmaker(this);
+        }
+        update(server);
+    }
+
+    /**
+     * Removes a room from the index, when it is stopped or moved.
+     * @param server the room.
+     */
+    public synchronized void unregister(Server server) {
+        Entry entry = entries.remove(server);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Reads the players and the status of a room again. Called by the room after every join and when its game starts.
+     * The players who joined since the last update use the seats reserved for them.
+     * @param server the room.
+     */
+    public synchronized void update(Server server) {
+        Entry entry = entries.get(server);
+        if (entry == null) {
+            return;
+        }
+        GameSnapshot snapshot = server.game.getSnapshot();
+        int players = snapshot.getPlayers().size();
+        if (players > entry.players) {
+            entry.reserved = Math.max(0, entry.reserved - (players - entry.players));
+        }
+        entry.players = players;
+        entry.started = snapshot.isStarted();
+        index(entry);
+    }
+
+    /**
+     * Reserves a seat in the best open room: the fullest one, and the fastest among the fullest.
+     * @return the room, or null if no room is open.
+     */
+    public synchronized RoomInfo quickJoin() {
+        for (int seats = MAX_PLAYERS - 1; seats >= 0; seats--) {
+            for (Entry entry : heads[seats]) {
+                if (entry != null) {
+                    entry.reserved++;
+                    entry.reservedAt = System.nanoTime();
+                    index(entry);
+                    return info(entry);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists every room, for a lobby browser.
+     * @return the rooms, open or not.
+     */
+    public synchronized ArrayList<RoomInfo> list() {
+        ArrayList<RoomInfo> rooms = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            rooms.add(info(entry));
+        }
+        return rooms;
+    }
+
+    /**
+     * Reads the latency of every room again and gives back the reservations that were not used in time.
+     * Called every REFRESH_MS by the thread of the matchmaker.
+     */
+    synchronized void refresh() {
+        long expired = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(RESERVATION_TIMEOUT_MS);
+        for (Entry entry : entries.values()) {
+            entry.latency = entry.server.getLatency();
+            if (entry.reserved > 0 && entry.reservedAt - expired < 0) {
+                entry.reserved = 0;
+            }
+            index(entry);
+        }
+    }
+
+    /**
+     * Moves a room to the list of its seats and latency class, or out of the lists if it is not open.
+     */
+    private void index(Entry entry) {
+        unlink(entry);
+        if (!entry.isOpen()) {
+            return;
+        }
+        entry.linkedSeats = entry.seats();
+        entry.linkedClass = latencyClass(entry.latency);
+        Entry head = heads[entry.linkedSeats][entry.linkedClass];
+        entry.previous = null;
+        entry.next = head;
+        if (head != null) {
+            head.previous = entry;
+        }
+        heads[entry.linkedSeats][entry.linkedClass] = entry;
+        entry.linked = true;
+    }
+
+    /**
+     * Removes a room from the list it was linked in.
+     */
+    private void unlink(Entry entry) {
+        if (!entry.linked) {
+            return;
+        }
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else {
+            heads[entry.linkedSeats][entry.linkedClass] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        entry.linked = false;
+    }
+
+    private static int latencyClass(long latency) {
+        int latencyClass = 0;
+        while (latencyClass < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[latencyClass]) {
+            latencyClass++;
+        }
+        return latencyClass;
+    }
+
+    private RoomInfo info(Entry entry) {
+        RoomInfo.Status status = entry.started ? RoomInfo.Status.STARTED
+            : entry.seats() >= MAX_PLAYERS ? RoomInfo.Status.FULL : RoomInfo.Status.OPEN;
+        return new RoomInfo(host, entry.server.getPort(), entry.seats(), status, TimeUnit.NANOSECONDS.toMicros(entry.latency));
+    }
+
+    /**
+     * Starts answering the clients on a port, and refreshing the rooms.
+     * @param port the port of the matchmaker.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        Thread acceptor = new Thread(this::accept, "matchmaker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread refresher = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(REFRESH_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                refresh();
+            }
+        }, "matchmaker-refresh");
+        refresher.setDaemon(true);
+        refresher.start();
+        Log.info("LOBBY", "Matchmaker is listening on port " + port, null, null, null, Message.NO_ID);
+    }
+
+    /**
+     * Stops answering the clients. The rooms stay registered.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.warn("LOBBY", "Error stopping the matchmaker: " + e.getMessage(), null, null, null, Message.NO_ID);
+        }
+    }
+
+    private void accept() {
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                Thread thread = new Thread(() -> serve(channel), "matchmaker-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (ClosedChannelException e) {
+            Log.info("LOBBY", "Matchmaker stopped listening", null, null, null, Message.NO_ID);
+        } catch (IOException e) {
+            Log.error("LOBBY", "Matchmaker exception: " + e.getMessage(), null, null, null, Message.NO_ID);
+        }
+    }
+
+    /**
+     * Answers the requests of one client until it disconnects. A client may send several quick joins on
+     * the same connection.
+     */
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            channel.socket().setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            OutputStream out = channel.socket().getOutputStream();
+            while (true) {
+                Message<?> request = FrameCodec.read(in);
+                if (request.getOpcode() == Opcode.LOBBY_QUICK_JOIN) {
+                    RoomInfo room = quickJoin();
+                    if (room != null) {
+                        FrameCodec.write(new Message<RoomInfo>(request.getId(), "LOBBY", Opcode.LOBBY_QUICK_JOIN, room, RoomInfo.class), out);
+                    } else {
+                        FrameCodec.write(new Message<String>(request.getId(), "LOBBY", Opcode.LOBBY_QUICK_JOIN, "NONE", String.class), out);
+                    }
+                } else if (request.getOpcode() == Opcode.LOBBY_LIST) {
+                    FrameCodec.write(new Message<ArrayList<RoomInfo>>(request.getId(), "LOBBY", Opcode.LOBBY_LIST, list(), ArrayList.class), out);
+                } else {
+                    Log.warn("LOBBY", "No handler for message", null, request.getSender(), request.getPurpose(), request.getId());
+                }
+            }
+        } catch (EOFException e) {
+            // The client is done
+        } catch (IOException | ClassNotFoundException e) {
+            Log.warn("LOBBY", "Error handling lobby client: " + e.getMessage(), null, null, null, Message.NO_ID);
+        }
+    }
+
+    /**
+     * Hosts rooms in this process and the matchmaker that fills them.
+     * @param args the options, see the class documentation.
+     * @throws IOException if a port cannot be bound.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int rooms = Integer.parseInt(options.getOrDefault("rooms", "10"));
+        int basePort = Integer.parseInt(options.getOrDefault("port", "27093"));
+        Matchmaker matchmaker = new Matchmaker(options.getOrDefault("host", "localhost"));
+        for (int room = 0; room < rooms; room++) {
+            Server server = new Server();
+            server.init(basePort + room, new Game());
+            matchmaker.register(server);
+            new Thread(server::run, "room-" + room).start();
+        }
+        matchmaker.start(Integer.parseInt(options.getOrDefault("lobby", Integer.toString(DEFAULT_PORT))));
+    }
+}
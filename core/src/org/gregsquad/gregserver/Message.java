@@ -1,50 +1,56 @@
 package org.gregsquad.gregserver;
 
 import java.io.Serializable;
-import java.util.Arrays;
-import java.util.List;
-import java.util.UUID;
 
 public class Message<T> implements Serializable {
 
-    private static final List<String> VALID_TYPES = Arrays.asList("CONNEXION", "CHAT", "ANSWER","GAME","PING","PONG");
-    private static final List<String> VALID_PURPOSES = Arrays.asList("","NAME","DRAW_DONJON_CARD","DRAW_TREASURE_CARD","GET_DONJON_DISCARD","GET_TREASURE_DISCARD","GET_CURRENT_PLAYER","GET_PLAYER_LIST","INIT_GAME","GET_INIT_GAME","GET_PLAYER","END_TURN");
+    /**
+     * The id of the messages that do not answer a request, like pushes or fire-and-forget requests.
+     * Sequence ids start at 1, so it never matches a pending request.
+     */
+    public static final long NO_ID = 0;
 
-    private UUID id;
+    private long id;
     private String sender;
-    private String type;
-    private String purpose;
+    private Opcode opcode;
     private T content;
     private Class<? extends Serializable> typeOfContent;
 
     public Message(String sender, String type, String purpose,T content, Class<? extends Serializable> typeOfContent) {
-        if (!isValidType(type)) {
-            throw new IllegalArgumentException("[MESSAGE] Invalid type: " + type);
-        }
-        if (!isValidPurpose(purpose)) {
-            throw new IllegalArgumentException("[MESSAGE] Invalid purpose: " + purpose);
+        this(NO_ID, sender, opcodeOf(type, purpose), content, typeOfContent);
+    }
+
+    public Message(long id, String sender, String type, String purpose,T content, Class<? extends Serializable> typeOfContent) {
+        this(id, sender, opcodeOf(type, purpose), content, typeOfContent);
+    }
+
+    public Message(String sender, Opcode opcode, T content, Class<? extends Serializable> typeOfContent) {
+        this(NO_ID, sender, opcode, content, typeOfContent);
+    }
+
+    public Message(long id, String sender, Opcode opcode, T content, Class<? extends Serializable> typeOfContent) {
+        if (opcode == null) {
+            throw new IllegalArgumentException("[MESSAGE] Missing opcode");
         }
-        this.id = UUID.randomUUID();
+        this.id = id;
         this.sender = sender;
-        this.type = type;
-        this.purpose = purpose;
+        this.opcode = opcode;
         this.content = content;
         this.typeOfContent = typeOfContent;
     }
 
-    public Message(UUID id, String sender, String type, String purpose,T content, Class<? extends Serializable> typeOfContent) {
+    private static Opcode opcodeOf(String type, String purpose) {
         if (!isValidType(type)) {
             throw new IllegalArgumentException("[MESSAGE] Invalid type: " + type);
         }
         if (!isValidPurpose(purpose)) {
             throw new IllegalArgumentException("[MESSAGE] Invalid purpose: " + purpose);
         }
-        this.id = id;
-        this.sender = sender;
-        this.type = type;
-        this.purpose = purpose;
-        this.content = content;
-        this.typeOfContent = typeOfContent;
+        Opcode opcode = Opcode.of(type, purpose);
+        if (opcode == null) {
+            throw new IllegalArgumentException("[MESSAGE] Invalid purpose for type " + type + ": " + purpose);
+        }
+        return opcode;
     }
 
     public boolean isOfType(Class<?> typeOfContent) {
@@ -55,28 +61,32 @@ public class Message<T> implements Serializable {
         return sender;
     }
 
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
     public String getType() {
-        return type;
+        return opcode.getType();
     }
 
     public String getPurpose() {
-        return purpose;
+        return opcode.getPurpose();
     }
 
     public T getContent() {
         return content;
     }
 
-    public UUID getId() {
+    public long getId() {
         return id;
     }
 
     public static boolean isValidType(String type) {
-        return VALID_TYPES.contains(type);
+        return Opcode.isValidType(type);
     }
 
     public static boolean isValidPurpose(String purpose) {
-        return VALID_PURPOSES.contains(purpose);
+        return Opcode.isValidPurpose(purpose);
     }
 
-}
\ No newline at end of file
+}
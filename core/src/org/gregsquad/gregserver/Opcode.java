@@ -0,0 +1,99 @@
+package org.gregsquad.gregserver;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Opcode enum lists every kind of message of the protocol, as a (type, purpose) pair.
+ * Messages carry their opcode so both sides route them with an array index instead of string
+ * comparisons. Adding a message kind means adding a constant here and registering its handler.
+ */
+public enum Opcode {
+    PING("PING", ""),
+    PONG("PONG", ""),
+    CHAT("CHAT", ""),
+    ANSWER("ANSWER", ""),
+    CONNEXION_NAME("CONNEXION", "NAME"),
+    CONNEXION_SPECTATE("CONNEXION", "SPECTATE"),
+    CONNEXION_COMPRESSION("CONNEXION", "COMPRESSION"),
+    CONNEXION_CATALOG("CONNEXION", "CATALOG"),
+    CONNEXION_REDIRECT("CONNEXION", "REDIRECT"),
+    CONNEXION_RESUME("CONNEXION", "RESUME"),
+    ROOM_MIGRATE("ROOM", "MIGRATE"),
+    LOBBY_UPDATE("LOBBY", "UPDATE"),
+    LOBBY_QUICK_JOIN("LOBBY", "QUICK_JOIN"),
+    LOBBY_LIST("LOBBY", "LIST"),
+    PUBLIC_STATE("SPECTATE", "PUBLIC_STATE"),
+    DRAW_DONJON_CARD("GAME", "DRAW_DONJON_CARD"),
+    DRAW_TREASURE_CARD("GAME", "DRAW_TREASURE_CARD"),
+    GET_DONJON_DISCARD("GAME", "GET_DONJON_DISCARD"),
+    GET_TREASURE_DISCARD("GAME", "GET_TREASURE_DISCARD"),
+    GET_DONJON_DISCARD_PAGE("GAME", "GET_DONJON_DISCARD_PAGE"),
+    GET_TREASURE_DISCARD_PAGE("GAME", "GET_TREASURE_DISCARD_PAGE"),
+    GET_CURRENT_PLAYER("GAME", "GET_CURRENT_PLAYER"),
+    GET_PLAYER_LIST("GAME", "GET_PLAYER_LIST"),
+    GET_PLAYER("GAME", "GET_PLAYER"),
+    INIT_GAME("GAME", "INIT_GAME"),
+    GET_INIT_GAME("GAME", "GET_INIT_GAME"),
+    END_TURN("GAME", "END_TURN"),
+    BATCH("GAME", "BATCH");
+
+    private static final Map<String, Map<String, Opcode>> BY_NAME = new HashMap<>();
+    private static final Set<String> TYPES = new HashSet<>();
+    private static final Set<String> PURPOSES = new HashSet<>();
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_NAME.computeIfAbsent(opcode.type, type -> new HashMap<>()).put(opcode.purpose, opcode);
+            TYPES.add(opcode.type);
+            PURPOSES.add(opcode.purpose);
+        }
+    }
+
+    private final String type;
+    private final String purpose;
+
+    Opcode(String type, String purpose) {
+        this.type = type;
+        this.purpose = purpose;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPurpose() {
+        return purpose;
+    }
+
+    /**
+     * Returns the opcode of a (type, purpose) pair.
+     * @param type the type of the message.
+     * @param purpose the purpose of the message.
+     * @return the opcode, or null if the pair is not part of the protocol.
+     */
+    public static Opcode of(String type, String purpose) {
+        Map<String, Opcode> byPurpose = BY_NAME.get(type);
+        return byPurpose != null ? byPurpose.get(purpose) : null;
+    }
+
+    /**
+     * Checks if a type is used by at least one opcode.
+     * @param type the type to check.
+     * @return true if the type is valid.
+     */
+    public static boolean isValidType(String type) {
+        return TYPES.contains(type);
+    }
+
+    /**
+     * Checks if a purpose is used by at least one opcode.
+     * @param purpose the purpose to check.
+     * @return true if the purpose is valid.
+     */
+    public static boolean isValidPurpose(String purpose) {
+        return PURPOSES.contains(purpose);
+    }
+}
@@ -0,0 +1,187 @@
+package org.gregsquad.gregserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The OutboundQueue class writes the frames of one connection from a dedicated thread.
+ * Producers (the handler of the connection, a broadcast) only retain the frame and queue it, so a
+ * slow connection never blocks them. The writer takes every queued frame at once and writes their
+ * views with a single gathering write, then releases them.
+ *
+ * A connection that lets MAX_PENDING_FRAMES frames pile up is considered dead and is closed.
+ * Before a graceful close, flush waits until every queued frame is written.
+ */
+public class OutboundQueue implements Runnable {
+    private static final int MAX_PENDING_FRAMES = 1024;
+    private static final int MAX_FRAMES_PER_WRITE = 64;
+
+    private final SocketChannel channel;
+    private final String room;
+    private final LongAdder bytesOut;
+    private final LinkedBlockingQueue<SharedFrame> frames = new LinkedBlockingQueue<>(MAX_PENDING_FRAMES);
+    private final AtomicInteger unwritten = new AtomicInteger(); // Queued or being written
+    private volatile boolean closed;
+    private Thread writer;
+
+    /**
+     * Constructs a new OutboundQueue for a connection.
+     * @param channel the channel of the connection, in blocking mode.
+     * @param room the room of the connection, for the logs.
+     * @param bytesOut the counter of the bytes written.
+     */
+    public OutboundQueue(SocketChannel channel, String room, LongAdder bytesOut) {
+        this.channel = channel;
+        this.room = room;
+        this.bytesOut = bytesOut;
+    }
+
+    /**
+     * Starts the writer thread.
+     * @param name the name of the thread.
+     */
+    public void start(String name) {
+        writer = new Thread(this, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a frame to be written. The frame is retained until it is written or dropped.
+     * @param frame the frame to write.
+     * @return false if the connection is closed or too far behind, the frame is then not queued.
+     */
+    public boolean send(SharedFrame frame) {
+        if (closed) {
+            return false;
+        }
+        frame.retain();
+        unwritten.incrementAndGet();
+        if (!frames.offer(frame)) {
+            frame.release();
+            written(1);
+            Log.warn("SERVER", "Slow connection, closing it", room, null, frame.getPurpose(), frame.getId());
+            close();
+            return false;
+        }
+        if (closed) {
+            releaseAll(); // Closed while queuing, nobody will write it
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of frames waiting to be written.
+     * @return the number of queued frames.
+     */
+    public int getPending() {
+        return frames.size();
+    }
+
+    /**
+     * Waits until every frame queued so far is written, or the connection is closed.
+     * @param deadline the System.nanoTime after which to stop waiting.
+     * @return true if every frame was written, false if the deadline passed or the connection closed first.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean flush(long deadline) throws InterruptedException {
+        synchronized (unwritten) {
+            while (unwritten.get() > 0 && !closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(unwritten, remaining);
+            }
+        }
+        return unwritten.get() == 0;
+    }
+
+    /**
+     * Stops the writer and closes the channel. The frames not written yet are released.
+     */
+    public void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("SERVER", "Error closing connection: " + e.getMessage(), room, null, null, Message.NO_ID);
+        }
+        releaseAll();
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    @Override
+    public void run() {
+        List<SharedFrame> batch = new ArrayList<>(MAX_FRAMES_PER_WRITE);
+        ByteBuffer[] views = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+        try {
+            while (!closed) {
+                batch.add(frames.take());
+                frames.drainTo(batch, MAX_FRAMES_PER_WRITE - 1);
+                long size = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    views[i] = batch.get(i).view();
+                    size += views[i].remaining();
+                }
+                for (long written = 0; written < size; ) {
+                    written += channel.write(views, 0, batch.size());
+                }
+                bytesOut.add(size);
+                for (SharedFrame frame : batch) {
+                    frame.release();
+                }
+                written(batch.size());
+                batch.clear();
+                Arrays.fill(views, null);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (IOException e) {
+            if (!closed) {
+                Log.warn("SERVER", "Error sending message: " + e.getMessage(), room, null, null, Message.NO_ID);
+            }
+        } finally {
+            for (SharedFrame frame : batch) {
+                frame.release();
+            }
+            written(batch.size());
+            closed = true;
+            releaseAll();
+        }
+    }
+
+    private void releaseAll() {
+        SharedFrame frame;
+        int released = 0;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+            released++;
+        }
+        written(released);
+    }
+
+    /**
+     * Counts frames as done, written or dropped, and wakes up flush when there are none left.
+     */
+    private void written(int count) {
+        if (count > 0 && unwritten.addAndGet(-count) == 0 || closed) {
+            synchronized (unwritten) {
+                unwritten.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.gregsquad.gregserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.GameSnapshot;
+import org.gregsquad.gregsadventure.game.Player;
+import org.gregsquad.gregsadventure.game.PlayerSummary;
+import org.gregsquad.gregsadventure.game.PublicTableState;
+import org.gregsquad.gregsadventure.game.TableView;
+
+/**
+ * The ProjectionCache class builds what each client is allowed to see of a game, once per version.
+ * The players are summarized once for everybody, then each recipient gets a view holding its own
+ * full player next to the summaries of the others. Opponents' hands never leave the server.
+ *
+ * Projections are made from the last GameSnapshot, never from the live game: the summaries and the
+ * copies of the players come with the snapshot, the views are built lazily on the first request of
+ * each recipient and reused until the next change.
+ */
+public class ProjectionCache {
+    private static final int NO_RECIPIENT = -1;
+
+    private final Game game;
+    private volatile Projection projection;
+
+    /**
+     * The projections of one snapshot of the game.
+     */
+    private static final class Projection {
+        private final GameSnapshot snapshot;
+        private final ConcurrentHashMap<Integer, TableView> views = new ConcurrentHashMap<>();
+        private volatile PublicTableState publicState;
+
+        Projection(GameSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Constructs a new ProjectionCache for a game.
+     * @param game the game to project.
+     */
+    public ProjectionCache(Game game) {
+        this.game = game;
+    }
+
+    /**
+     * Returns the table as seen by a player.
+     * @param player the player asking, or null for a client that did not join as a player.
+     * @return the view, shared with the other requests of the same version.
+     */
+    public TableView viewFor(Player player) {
+        Projection current = current();
+        GameSnapshot snapshot = current.snapshot;
+        int recipient = player != null ? player.getId() : NO_RECIPIENT;
+        return current.views.computeIfAbsent(recipient,
+            id -> new TableView(snapshot.getVersion(), snapshot.getCurrentPlayerId(), snapshot.getSummaries(),
+                id != NO_RECIPIENT ? snapshot.getPlayer(id) : null));
+    }
+
+    /**
+     * Returns the public summary of the player whose turn it is.
+     * @return the summary, or null if the game is not started.
+     */
+    public PlayerSummary currentPlayer() {
+        return current().snapshot.getCurrentPlayer();
+    }
+
+    /**
+     * Returns the public state of the table, as streamed to the spectators.
+     * @return the state, shared with the other requests of the same version.
+     */
+    public PublicTableState publicState() {
+        Projection current = current();
+        PublicTableState state = current.publicState;
+        if (state == null) {
+            state = PublicTableState.of(current.snapshot);
+            current.publicState = state;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the projection of the last snapshot of the game, starting a new one if the game changed.
+     */
+    private Projection current() {
+        GameSnapshot snapshot = game.getSnapshot();
+        Projection current = projection;
+        if (current != null && current.snapshot == snapshot) {
+            return current;
+        }
+        current = new Projection(snapshot);
+        projection = current;
+        return current;
+    }
+}
@@ -0,0 +1,66 @@
+package org.gregsquad.gregserver;
+
+import java.io.Serializable;
+
+/**
+ * The RoomInfo class describes a room to the players looking for one, see Matchmaker.
+ */
+public class RoomInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether a room can be joined.
+     */
+    public enum Status {
+        OPEN, // Waiting for players
+        FULL, // Every seat is taken or reserved
+        STARTED // The game is started, only spectators can join
+    }
+
+    private final String host;
+    private final int port;
+    private final int players;
+    private final Status status;
+    private final long latencyMicros;
+
+    /**
+     * Constructs a new RoomInfo.
+     * @param host the host of the room.
+     * @param port the port of the room.
+     * @param players the number of seats taken or reserved.
+     * @param status whether the room can be joined.
+     * @param latencyMicros the average time the room takes to handle a command, in microseconds.
+     */
+    public RoomInfo(String host, int port, int players, Status status, long latencyMicros) {
+        this.host = host;
+        this.port = port;
+        this.players = players;
+        this.status = status;
+        this.latencyMicros = latencyMicros;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getPlayers() {
+        return players;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + " " + status + " " + players + "/" + Matchmaker.MAX_PLAYERS + " " + latencyMicros + " us";
+    }
+}
@@ -0,0 +1,47 @@
+package org.gregsquad.gregserver;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gregsquad.gregsadventure.game.GameState;
+
+/**
+ * The RoomTransfer class is what a server sends to another one to move a running room to it.
+ * It holds the state of the game and the reconnect token of each player: the clients are redirected
+ * to the new server with their token, and get their player back by presenting it. The players played
+ * by bots are played by bots on the new server too.
+ */
+public class RoomTransfer implements Serializable {
+    private static final long serialVersionUID = 1L; // Fixed, the servers of a move may be built apart
+    private final GameState state;
+    private final HashMap<String, Integer> tokens;
+    private final ArrayList<Integer> bots;
+
+    /**
+     * Constructs a new RoomTransfer.
+     * @param state the state of the game.
+     * @param tokens the id of the player of each reconnect token.
+     * @param bots the ids of the players played by bots.
+     */
+    public RoomTransfer(GameState state, Map<String, Integer> tokens, Collection<Integer> bots) {
+        this.state = state;
+        this.tokens = new HashMap<>(tokens);
+        this.bots = new ArrayList<>(bots);
+    }
+
+    public GameState getState() {
+        return state;
+    }
+
+    public Map<String, Integer> getTokens() {
+        return tokens;
+    }
+
+    public List<Integer> getBots() {
+        return bots;
+    }
+}
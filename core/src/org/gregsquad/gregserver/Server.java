@@ -2,28 +2,48 @@ package org.gregsquad.gregserver;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.gregsquad.gregsadventure.game.*;
 import org.gregsquad.gregsadventure.card.*;
 
 /**
- * The Server class is a singleton that manages the server-side logic of the game.
+ * The Server class manages the server-side logic of one room of the game.
  * It accepts new clients, handles their requests, and manages the game state.
+ * The GUI uses the singleton instance, tools hosting several rooms create one Server per room.
  */
 public class Server {
     private static Server instance;
-    private ServerSocket serverSocket;
+    private static final SecureRandom TOKENS = new SecureRandom();
+    private static final int TOKEN_BYTES = 16;
+    private ServerSocketChannel serverChannel;
     private int port;
+    private String roomName;
     protected List<ClientHandler> clients;
-    protected Game game;
+    protected volatile Game game; // Replaced when the room is moved here from another server
+    private SpectatorRelay spectators;
+    protected volatile ProjectionCache projections;
+    private final Map<String, Integer> resumeTokens = new ConcurrentHashMap<>(); // Player id of each reconnect token
+    private volatile Matchmaker matchmaker; // The matchmaker this room is registered with, or null
+    private volatile long latency; // Moving average of the time taken by a command, in nanoseconds
+    private volatile ClientHandler reservedBy; // The connection moving a room here, see reserve
+    final BotSeats bots = new BotSeats(this);
+    final TurnScheduler turns = new TurnScheduler(this);
 
     /**
-     * Private constructor for the Server class.
+     * Constructor for the Server class.
      * Initializes the list of clients.
      */
-    private Server() {
-        this.clients = new ArrayList<>();
+    public Server() {
+        this.clients = new CopyOnWriteArrayList<>(); // Iterated by broadcasts while clients join
     }
 
     /**
@@ -41,30 +61,54 @@ public class Server {
     /**
      * Initializes the server with the given port and the game instance.
      * Prints all the cards in the donjon stack.
+     * If the gregs.metrics.port system property is set, the metrics endpoint is started on that port.
      * @param port the port number on which the server will listen for connections.
      */
     public void init(int port) {
+        init(port, Game.getInstance());
+    }
+
+    /**
+     * Initializes the server with the given port and the game of its room.
+     * @param port the port number on which the server will listen for connections.
+     * @param game the game played in this room.
+     */
+    public void init(int port, Game game) {
         this.port = port;
-        this.game = Game.getInstance();
+        this.roomName = Integer.toString(port);
+        this.game = game;
+        this.spectators = new SpectatorRelay(roomName);
+        this.projections = new ProjectionCache(game);
+        int metricsPort = Integer.getInteger("gregs.metrics.port", -1);
+        if (metricsPort > 0) {
+            try {
+                ServerMetrics.getInstance().expose(metricsPort);
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint exception: " + e.getMessage());
+            }
+        }
         // Print all the cards in the donjon stack
-        System.out.println("[SERVER] Donjon stack:");
-        for (Card card : Game.getInstance().getDonjonStack().getCards()) {
-            System.out.println("[SERVER] " + card.getId() + " " + card.getName());
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            for (Card card : game.getDonjonStack().getCards()) {
+                Log.debug("SERVER", "Donjon stack: " + card.getId() + " " + card.getName(), roomName, null, null, Message.NO_ID);
+            }
         }
     } 
 
     /**
      * Starts the server and accepts new clients in a new thread.
-     * Continues to accept new clients until the game is started.
+     * Continues to accept new clients until the server is stopped: players can only join before the game
+     * starts, spectators can join at any time.
      */
     public void run() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("[INFO] Server is listening on port " + port);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("SERVER", "Server is listening", roomName, null, null, Message.NO_ID);
 
-            while (Game.getInstance().isGameStarted() == false) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("[CLIENT] New client connected.");
+            while (true) {
+                SocketChannel clientSocket = serverChannel.accept();
+                Log.info("SERVER", "New client connected", roomName, null, null, Message.NO_ID);
 
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
                 clients.add(clientHandler);
@@ -72,6 +116,8 @@ public class Server {
                 Thread thread = new Thread(clientHandler);
                 thread.start();
             }
+        } catch (ClosedChannelException e) {
+            Log.info("SERVER", "Server stopped listening", roomName, null, null, Message.NO_ID);
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
             e.printStackTrace();
@@ -84,12 +130,18 @@ public class Server {
      * If an error occurs while stopping the server, it is caught and printed.
      */
     public void stop() {
+        leaveMatchmaker();
+        turns.stop();
+        bots.stop();
         try {
             for (ClientHandler client : clients) {
                 client.stop();
             }
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (spectators != null) {
+                spectators.stop();
             }
             System.out.println("Server stopped.");
         } catch (IOException e) {
@@ -97,18 +149,378 @@ public class Server {
         }
     }   
 
+    /**
+     * Stops the server gracefully: no new connection is accepted, every client finishes the command it
+     * is handling and gets the responses already queued, then its connection is closed.
+     * The clients still busy at the deadline are stopped.
+     * @param timeoutMillis the time given to the clients to finish.
+     * @return the number of clients that had to be stopped.
+     */
+    public int drain(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        beginDrain(deadline);
+        return awaitDrain(deadline);
+    }
+
+    /**
+     * Drains several rooms at once: all of them stop accepting and reading before any is waited for,
+     * so the clients of every room finish concurrently and the whole shutdown takes about as long as
+     * the slowest room, not the sum of the rooms.
+     * @param servers the rooms to drain.
+     * @param timeoutMillis the time given to all the clients to finish.
+     * @return the number of clients that had to be stopped.
+     */
+    public static int drainAll(Collection<Server> servers, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Server server : servers) {
+            server.beginDrain(deadline);
+        }
+        int forced = 0;
+        for (Server server : servers) {
+            forced += server.awaitDrain(deadline);
+        }
+        return forced;
+    }
+
+    /**
+     * Moves the room to another server, which must host an empty room. The clients are redirected to it
+     * with a reconnect token and play on from where they were.
+     * The target is connected first and reserves its room, after checking that it is empty and has the
+     * same card catalog: a target that cannot be reached or refuses leaves the room untouched. Then the
+     * clients stop being read: each one finishes the command it is handling, the game no longer changes
+     * and is captured. Once the target has the room, every client gets its responses, then a redirect,
+     * and its connection is closed. Only a target lost after the reservation leaves the clients
+     * disconnected.
+     * @param host the host of the target server.
+     * @param port the port of the target room.
+     * @param timeoutMillis the time given to the clients to finish their command and to the target to answer.
+     * @return true if the room was moved.
+     */
+    public boolean migrate(String host, int port, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean moved = false;
+        boolean drained = false;
+        Map<ClientHandler, String> clientTokens = new HashMap<>();
+        try (Socket target = new Socket(host, port)) {
+            target.setTcpNoDelay(true);
+            target.setSoTimeout((int) Math.max(1, timeoutMillis));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(target.getInputStream()));
+
+            // Nothing changes here before the target holds its room for us
+            FrameCodec.write(new Message<String>(roomName, Opcode.ROOM_MIGRATE, CardCatalog.getInstance().getName(), String.class), target.getOutputStream());
+            Message<?> reservation = FrameCodec.read(in);
+            if (!"OK".equals(reservation.getContent())) {
+                Log.error("SERVER", "Room refused by " + host + ":" + port + ": " + reservation.getContent(), roomName, null, null, Message.NO_ID);
+                return false;
+            }
+
+            beginDrain(deadline, true);
+            drained = true;
+            Map<String, Integer> tokens = new HashMap<>();
+            for (ClientHandler client : clients) {
+                if (!client.awaitStopped(deadline)) {
+                    client.stop(); // Still busy, the game may change under it: dropped
+                } else if (client.getPlayer() != null) {
+                    String token = newToken();
+                    tokens.put(token, client.getPlayer().getId());
+                    clientTokens.put(client, token);
+                }
+            }
+            RoomTransfer transfer = new RoomTransfer(game.capture(), tokens, bots.getIds());
+            FrameCodec.write(new Message<RoomTransfer>(roomName, Opcode.ROOM_MIGRATE, transfer, RoomTransfer.class), target.getOutputStream());
+            Message<?> answer = FrameCodec.read(in);
+            moved = "OK".equals(answer.getContent());
+            if (!moved) {
+                Log.error("SERVER", "Room refused by " + host + ":" + port + ": " + answer.getContent(), roomName, null, null, Message.NO_ID);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            Log.error("SERVER", "Error moving the room to " + host + ":" + port + ": " + e.getMessage(), roomName, null, null, Message.NO_ID);
+        }
+        if (!drained) {
+            return false; // The clients were not told anything, the room goes on here
+        }
+        for (ClientHandler client : clients) {
+            String token = clientTokens.get(client);
+            client.redirect(moved ? host + ":" + port + "/" + (token != null ? token : "") : null);
+        }
+        awaitDrain(deadline);
+        if (moved) {
+            Log.info("SERVER", "Room moved to " + host + ":" + port, roomName, null, null, Message.NO_ID);
+        }
+        return moved;
+    }
+
+    /**
+     * Holds this room for a room about to be moved here: no player can join it until the move is over
+     * or the connection of the mover closes. Only an empty room that has not started can be held.
+     * @param mover the connection of the server moving its room.
+     * @param catalog the name of the card catalog of the moving server.
+     * @return null if the room is held, the reason of the refusal otherwise.
+     */
+    synchronized String reserve(ClientHandler mover, String catalog) {
+        if (!CardCatalog.getInstance().getName().equals(catalog)) {
+            return "CATALOG";
+        }
+        synchronized (game) {
+            if ((reservedBy != null && reservedBy != mover) || !game.getPlayerList().isEmpty() || game.isGameStarted()) {
+                return "BUSY";
+            }
+            reservedBy = mover;
+        }
+        return null;
+    }
+
+    /**
+     * Lets the players join again if the connection held the room, see reserve.
+     * @param mover the connection.
+     */
+    synchronized void release(ClientHandler mover) {
+        if (reservedBy == mover) {
+            reservedBy = null;
+        }
+    }
+
+    /**
+     * Tells whether the room is held for a room being moved here. A player joining meanwhile makes the
+     * move refused, see adopt.
+     * @return true if no player can join.
+     */
+    boolean isReserved() {
+        return reservedBy != null;
+    }
+
+    /**
+     * Takes over a room moved here from another server. Only an empty room that has not started, and
+     * is not held for another move, can take it.
+     * @param mover the connection of the server moving its room.
+     * @param transfer the state of the game and the reconnect tokens of its players.
+     * @return null if the room was taken, the reason of the refusal otherwise.
+     */
+    synchronized String adopt(ClientHandler mover, RoomTransfer transfer) {
+        Game restored;
+        synchronized (game) {
+            if ((reservedBy != null && reservedBy != mover) || !game.getPlayerList().isEmpty() || game.isGameStarted()) {
+                return "BUSY";
+            }
+            try {
+                restored = new Game(transfer.getState());
+            } catch (IllegalArgumentException e) {
+                return "CATALOG";
+            }
+            resumeTokens.putAll(transfer.getTokens());
+            if (transfer.getBots() != null) { // Sent by a server without bot seats
+                bots.adopt(transfer.getBots());
+            }
+            projections = new ProjectionCache(restored);
+            game = restored;
+            reservedBy = null;
+        }
+        lobbyChanged();
+        turns.update(); // The turn of a moved game starts again here
+        bots.turnChanged();
+        Log.info("SERVER", "Room moved here with " + transfer.getState().getPlayerCount() + " players", roomName, null, null, Message.NO_ID);
+        return null;
+    }
+
+    /**
+     * Takes the reconnect token of a player of a room moved here. A token can only be used once.
+     * @param token the token given by the previous server.
+     * @return the id of the player, or null if the token is unknown.
+     */
+    Integer resume(String token) {
+        return resumeTokens.remove(token);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        TOKENS.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Closes the listening channel and asks every client to finish, without waiting.
+     * @param deadline the System.nanoTime at which the clients are stopped anyway.
+     */
+    private void beginDrain(long deadline) {
+        beginDrain(deadline, false);
+    }
+
+    /**
+     * Closes the listening channel and asks every client to finish, without waiting.
+     * @param deadline the System.nanoTime at which the clients are stopped anyway.
+     * @param redirecting true if the clients wait for a redirect before closing, see migrate.
+     */
+    private void beginDrain(long deadline, boolean redirecting) {
+        leaveMatchmaker();
+        turns.stop(); // The game no longer changes, or changes on the server it moves to
+        bots.stop();
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.warn("SERVER", "Error closing server channel: " + e.getMessage(), roomName, null, null, Message.NO_ID);
+        }
+        if (spectators != null) {
+            spectators.stop();
+        }
+        for (ClientHandler client : clients) {
+            client.beginDrain(deadline, redirecting);
+        }
+    }
+
+    /**
+     * Waits for the clients to finish and stops the ones still running at the deadline.
+     * @param deadline the System.nanoTime at which the clients are stopped.
+     * @return the number of clients that had to be stopped.
+     */
+    private int awaitDrain(long deadline) {
+        int forced = 0;
+        for (ClientHandler client : clients) {
+            if (!client.awaitFinished(deadline)) {
+                client.stop();
+                forced++;
+            }
+        }
+        Log.info("SERVER", "Server drained, " + forced + " clients stopped", roomName, null, null, Message.NO_ID);
+        return forced;
+    }
+
     /**
      * Sends a message to all connected clients, excluding a specific client.
+     * The message is serialized once, every client queues the same frame. Clients that negotiated the
+     * compression share a second, compressed frame.
      * @param message the message to be sent to the clients.
      * @param excludeClient the client to be excluded from the broadcast.
      */
-    public void broadcast(Message<String> message, ClientHandler excludeClient) {
-        for (ClientHandler client : clients) {
-            if (client != excludeClient) {
-                client.sendMessage(message);
+    public void broadcast(Message<?> message, ClientHandler excludeClient) {
+        SharedFrame frame = null;
+        SharedFrame compressedFrame = null;
+        try {
+            for (ClientHandler client : clients) {
+                if (client == excludeClient) {
+                    continue;
+                }
+                if (client.isCompressing()) {
+                    if (compressedFrame == null) {
+                        compressedFrame = FrameCodec.encode(message, true);
+                    }
+                    client.sendFrame(compressedFrame);
+                } else {
+                    if (frame == null) {
+                        frame = FrameCodec.encode(message);
+                    }
+                    client.sendFrame(frame);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("SERVER", "Error encoding broadcast: " + e.getMessage(), roomName, null, message.getPurpose(), message.getId());
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+            if (compressedFrame != null) {
+                compressedFrame.release();
+            }
+        }
+    }
+
+    /**
+     * Takes over the connection of a new spectator, which starts with the last public state sent.
+     * @param channel the connection of the spectator, not used by anybody else anymore.
+     */
+    void addSpectator(SocketChannel channel) {
+        if (!spectators.add(channel)) {
+            spectators.publish(projections.publicState());
+        }
+    }
+
+    /**
+     * Streams the public state of the game to the spectators, if there are any.
+     * Called by the players after every change. It only captures the state, the relay does the rest.
+     */
+    void publishPublicState() {
+        if (spectators.getSpectatorCount() > 0) {
+            spectators.publish(projections.publicState());
+        }
+    }
+
+    /**
+     * Returns the number of spectators connected to this room.
+     * @return the number of spectators.
+     */
+    public int getSpectatorCount() {
+        return spectators.getSpectatorCount();
+    }
+
+    /**
+     * Tells the waiting clients and the matchmaker that a player joined or that the game started.
+     * The clients get the names of the players as long as the game is not started.
+     */
+    void lobbyChanged() {
+        GameSnapshot snapshot = game.getSnapshot();
+        if (!snapshot.isStarted()) {
+            ArrayList<String> names = new ArrayList<>(snapshot.getSummaries().size());
+            for (PlayerSummary player : snapshot.getSummaries()) {
+                names.add(player.getName());
             }
+            broadcast(new Message<ArrayList<String>>("SERVER", Opcode.LOBBY_UPDATE, names, ArrayList.class), null);
+        }
+        Matchmaker current = matchmaker;
+        if (current != null) {
+            current.update(this);
+        }
+    }
+
+    /**
+     * Called by the matchmaker when it registers this room.
+     * @param matchmaker the matchmaker to tell about the joins.
+     */
+    void setMatchmaker(Matchmaker matchmaker) {
+        this.matchmaker = matchmaker;
+    }
+
+    private void leaveMatchmaker() {
+        Matchmaker current = matchmaker;
+        if (current != null) {
+            current.unregister(this);
+            matchmaker = null;
         }
     }
+
+    /**
+     * Records the time taken by a command, in the moving average of the room.
+     * Updated without a lock by the clients of the room: a lost update only delays the average a little.
+     * @param nanos the time taken by the command.
+     */
+    void recordLatency(long nanos) {
+        long average = latency;
+        latency = average + (nanos - average) / 8;
+    }
+
+    /**
+     * Returns the average time the room takes to handle a command, used to pick a room to join.
+     * @return the moving average, in nanoseconds.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the port of the room.
+     * @return the port clients connect to.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the name of the room hosted by this server, used to label its metrics.
+     * @return the name of the room.
+     */
+    public String getRoomName() {
+        return roomName;
+    }
 }
 
 /**
@@ -116,20 +528,82 @@ public class Server {
  * It reads messages from the client and performs actions based on the type and content of the messages.
  */
 class ClientHandler implements Runnable {
-    private Socket clientSocket;
+
+    /**
+     * The action run by the server for one kind of message.
+     */
+    interface CommandHandler {
+        void handle(ClientHandler client, Message<String> message) throws IOException;
+    }
+
+    private static final int MAX_DISCARD_PAGE = 100; // Cards in one page of a discard pile
+
+    // Dispatch table of the server, indexed by opcode
+    private static final EnumMap<Opcode, CommandHandler> HANDLERS = new EnumMap<>(Opcode.class);
+
+    static {
+        HANDLERS.put(Opcode.PING, ClientHandler::ping);
+        HANDLERS.put(Opcode.CONNEXION_NAME, ClientHandler::connect);
+        HANDLERS.put(Opcode.CONNEXION_COMPRESSION, ClientHandler::negotiateCompression);
+        HANDLERS.put(Opcode.CONNEXION_CATALOG, ClientHandler::negotiateCatalog);
+        HANDLERS.put(Opcode.CONNEXION_RESUME, ClientHandler::resume);
+        HANDLERS.put(Opcode.DRAW_DONJON_CARD, ClientHandler::drawDonjonCard);
+        HANDLERS.put(Opcode.DRAW_TREASURE_CARD, ClientHandler::drawTreasureCard);
+        HANDLERS.put(Opcode.GET_DONJON_DISCARD, ClientHandler::getDonjonDiscard);
+        HANDLERS.put(Opcode.GET_TREASURE_DISCARD, ClientHandler::getTreasureDiscard);
+        HANDLERS.put(Opcode.GET_DONJON_DISCARD_PAGE, ClientHandler::getDonjonDiscardPage);
+        HANDLERS.put(Opcode.GET_TREASURE_DISCARD_PAGE, ClientHandler::getTreasureDiscardPage);
+        HANDLERS.put(Opcode.GET_CURRENT_PLAYER, ClientHandler::getCurrentPlayer);
+        HANDLERS.put(Opcode.GET_PLAYER_LIST, ClientHandler::getPlayerList);
+        HANDLERS.put(Opcode.INIT_GAME, ClientHandler::initGame);
+        HANDLERS.put(Opcode.GET_INIT_GAME, ClientHandler::getInitGame);
+        HANDLERS.put(Opcode.END_TURN, ClientHandler::endTurn);
+    }
+
+    private SocketChannel clientSocket;
     private Server server;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private final OutboundQueue out;
+    private DataInputStream in;
     private String clientName;
+    private Player player; // Null until the client joins as a player
+    private ServerMetrics metrics;
+    private ArrayList<Message<?>> batchResponses; // Collects the responses while a batch is handled, null otherwise
+    private final CommandFilter commands = new CommandFilter();
+    private long commandId = Message.NO_ID; // Id of the command being handled, its response is kept for the repeats
+    private Message<? extends Serializable> commandResponse;
+    private volatile boolean compressing; // True once the client accepted our compression dictionary
+    private boolean cardIds; // True once the client showed the same card catalog, cards are then sent as ids
+    private volatile boolean draining; // True once the server asked the client to finish
+    private volatile long drainDeadline;
+    private volatile boolean redirecting; // True if the connection waits for a redirect before closing
+    private volatile String redirect; // Where to reconnect, null to only close
+    private final CountDownLatch stopped = new CountDownLatch(1); // Reading stopped, no more commands
+    private final CountDownLatch released = new CountDownLatch(1); // The redirect is known
+    private final CountDownLatch finished = new CountDownLatch(1);
 
     /**
      * Constructs a new ClientHandler for the given client socket and server.
-     * @param clientSocket the socket that is connected to the client.
+     * @param clientSocket the channel that is connected to the client, in blocking mode.
      * @param server the server that the client is connected to.
      */
-    public ClientHandler(Socket clientSocket, Server server) {
+    public ClientHandler(SocketChannel clientSocket, Server server) {
         this.clientSocket = clientSocket;
         this.server = server;
+        try {
+            clientSocket.socket().setTcpNoDelay(true); // Responses are small and pipelined requests must not wait for the previous ACK
+        } catch (SocketException e) {
+            Log.warn("SERVER", "Cannot disable Nagle's algorithm: " + e.getMessage(), server.getRoomName(), null, null, Message.NO_ID);
+        }
+        this.metrics = ServerMetrics.getInstance();
+        this.out = new OutboundQueue(clientSocket, server.getRoomName(), metrics.getBytesOut());
+    }
+
+    /**
+     * Returns true if the frames sent to the client can be compressed.
+     * @return true if the client negotiated the compression.
+     */
+    public boolean isCompressing() {
+        return compressing;
     }
 
     /**
@@ -147,143 +621,566 @@ class ClientHandler implements Runnable {
      */
     public void run() {
 
+        metrics.connectionOpened();
+        boolean spectator = false;
         try {
-            out = new ObjectOutputStream(clientSocket.getOutputStream());
-            in = new ObjectInputStream(clientSocket.getInputStream());
-            System.out.println("[CLIENT] Waiting for client name...");
+            in = new DataInputStream(new BufferedInputStream(new CountingInputStream(clientSocket.socket().getInputStream(), metrics.getBytesIn())));
+            Log.debug("SERVER", "Waiting for client name", server.getRoomName(), null, null, Message.NO_ID);
+
+            Message<?> inputMessage = readMessage();
+            if (inputMessage != null && inputMessage.getOpcode() == Opcode.CONNEXION_SPECTATE) {
+                // The relay takes the connection over, this thread has nothing left to do
+                Log.info("SERVER", "Spectator connected", server.getRoomName(), inputMessage.getSender(), null, inputMessage.getId());
+                spectator = true;
+                server.clients.remove(this);
+                server.addSpectator(clientSocket);
+                return;
+            }
+            out.start("writer-" + server.getRoomName());
 
             // Here is the main loop of the client handler
             // It makes actions based on the messages received from the client
-            Message<?> inputMessage;
-            while ((inputMessage = (Message<?>) in.readObject()) != null) {
+            for (; inputMessage != null; inputMessage = readMessage()) {
+                long receivedAt = System.nanoTime();
 
-                out.reset(); // Reset the output stream to avoid sending the same object multiple times
-                             // !! Very important !!
-
-                if (inputMessage.isOfType(String.class)) {
+                if (inputMessage.getOpcode() == Opcode.BATCH) {
+                    batch(inputMessage);
+                }
+                else if (inputMessage.getOpcode() == Opcode.ROOM_MIGRATE && inputMessage.isOfType(String.class)) {
+                    reserve((Message<String>) inputMessage);
+                }
+                else if (inputMessage.getOpcode() == Opcode.ROOM_MIGRATE) {
+                    adopt((Message<RoomTransfer>) inputMessage);
+                }
+                else if (inputMessage.isOfType(String.class)) {
                     Message<String> stringMessage = (Message<String>) inputMessage;
                     // Manage the message of type String here
-                    System.out.println("[SERVER] Received message from " + stringMessage.getSender() + ": " + stringMessage.getContent());
-
-                    if(stringMessage.getType().equals("PING")) {
-                        sendToClient(stringMessage.getId(), "PING", "", "PONG");
-                    }
-                    // Check if the message is a connexion message
-                    if(stringMessage.getType().equals("CONNEXION")) {
-
-                        if(stringMessage.getPurpose().equals("NAME")) {
-                            
-                            String clientName = stringMessage.getSender();
-                            System.out.println("[SERVER] " + clientName + " connected.");
-
-                            // Check if the name is already taken
-                            boolean nameTaken = Game.getInstance().getPlayerList().stream()
-                                .anyMatch(player -> player.getName().equals(clientName));
-
-                            if (nameTaken) {
-                                System.out.println("[SERVER] Name " + clientName + " is already taken.");
-                                sendToClient("CONNEXION", "NAME", "TAKEN");
-                            } else {
-                                this.clientName = clientName;
-                                System.out.println("[SERVER] Creating player " + this.getClientName());
-
-                                int playerId = server.getInstance().clients.size() - 1;
-                                sendToClient(stringMessage.getId(), "CONNEXION", "NAME", playerId);
-                                Player player = new Player(playerId, this.getClientName());
-                                Game.getInstance().addPlayer(player);
-                            }
-                        }
-                    }
-
-                    if(stringMessage.getType().equals("GAME")) {
-                        
-                        if(stringMessage.getPurpose().equals("DRAW_DONJON_CARD")) {
-
-                            System.out.println("[SERVER] " + this.getClientName() + " is drawing a donjon card.");
-                            Card card = Game.getInstance().getDonjonStack().draw();
-                            sendToClient(stringMessage.getId(), "GAME", "DRAW_DONJON_CARD", card);
-                        }
-
-                        if(stringMessage.getPurpose().equals("DRAW_TREASURE_CARD")) {
-
-                            System.out.println("[SERVER] " + this.getClientName() + " is drawing a treasure card.");
-                            Card card = Game.getInstance().getTreasureStack().draw();
-                            sendToClient(stringMessage.getId(), "GAME", "DRAW_TREASURE_CARD", card);
-                        }
-
-                        if(stringMessage.getPurpose().equals("GET_DONJON_DISCARD")) {
-
-                            System.out.println("[SERVER] " + this.getClientName() + " is getting the donjon discard.");
-                            LinkedList<Card> cards = Game.getInstance().getDonjonDiscard().getCards();
-                            sendToClient(stringMessage.getId(), "GAME", "GET_DONJON_DISCARD", cards);
-                        }
-
-                        if(stringMessage.getPurpose().equals("GET_TREASURE_DISCARD")) {
-                            
-                            System.out.println("[SERVER] " + this.getClientName() + " is getting the treasure discard.");
-                            LinkedList<Card> cards = Game.getInstance().getTreasureDiscard().getCards();
-                            sendToClient(stringMessage.getId(), "GAME", "GET_TREASURE_DISCARD", cards);
-                        }
-
-                        if(stringMessage.getPurpose().equals("GET_CURRENT_PLAYER")) {
-
-                            System.out.println("[SERVER] " + this.getClientName() + " is getting the current player.");
-                            Player player = Game.getInstance().getCurrentPlayer();
-                            sendToClient(stringMessage.getId(), "GAME", "GET_CURRENT_PLAYER", player);
-                        }
-
-                        if(stringMessage.getPurpose().equals("GET_PLAYER_LIST")) {
-    
-                            System.out.println("[SERVER] " + this.getClientName() + " is getting the player list.");
-                            ArrayList<Player> playerList = Game.getInstance().getPlayerList();   
-                            System.out.println(inputMessage.getContent());                     
-                            sendToClient(stringMessage.getId(), "GAME", "GET_PLAYER_LIST", playerList);
-                        }
-
-                        if(stringMessage.getPurpose().equals("INIT_GAME")) {
-    
-                            System.out.println("[SERVER] " + this.getClientName() + " is initializing the game.");
-                            Game.getInstance().init();
-                        }
-
-                        if(stringMessage.getPurpose().equals("GET_INIT_GAME")) {
-    
-                            System.out.println("[SERVER] " + this.getClientName() + " is getting the game initialization status.");
-                            boolean init = Game.getInstance().isGameStarted();
-                            System.out.println("[SERVER] Game is initialized: " + init);
-                            sendToClient(stringMessage.getId(), "GAME", "GET_INIT_GAME", init);
-                        }   
-                        
-                        if(stringMessage.getPurpose().equals("END_TURN")) {
-    
-                            System.out.println("[SERVER] " + this.getClientName() + " is ending its turn.");
-                            Game.getInstance().nextPlayer();
-                        }
-
-                    }
+                    Log.debug("SERVER", "Received message", server.getRoomName(), stringMessage.getSender(), stringMessage.getPurpose(), stringMessage.getId());
 
+                    dispatch(stringMessage);
                 } 
                 else if (inputMessage.isOfType(Card.class)) {
                     Message<Card> cardMessage = (Message<Card>) inputMessage;
                     // Traitez le message de type Card ici
                     
                 }
+
+                long elapsed = System.nanoTime() - receivedAt;
+                metrics.recordMessage(server.getRoomName(), inputMessage.getOpcode(), elapsed);
+                server.recordLatency(elapsed);
             }
-            System.out.println("[CLIENT] " + clientName + " disconnected.");
-            out.close();
-            in.close();
-            clientSocket.close();
+            Log.info("SERVER", "Client disconnected", server.getRoomName(), clientName, null, Message.NO_ID);
         } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error handling client connection: " + e.getMessage());
+            Log.error("SERVER", "Error handling client connection: " + e.getMessage(), server.getRoomName(), clientName, null, Message.NO_ID);
+        } finally {
+            stopped.countDown();
+            server.release(this); // A move that did not come to an end
+            if (!spectator) {
+                if (redirecting) {
+                    awaitRedirect();
+                }
+                if (draining) {
+                    flush();
+                }
+                out.close();
+                metrics.connectionClosed();
+            }
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Asks the client to finish: the command being handled completes, then reading stops as if the
+     * client had disconnected, and the responses queued are written before the connection closes.
+     * @param deadline the System.nanoTime after which the responses not written yet are dropped.
+     */
+    void beginDrain(long deadline) {
+        beginDrain(deadline, false);
+    }
+
+    /**
+     * Asks the client to finish, see beginDrain.
+     * @param deadline the System.nanoTime after which the responses not written yet are dropped.
+     * @param redirecting true to keep the connection open until redirect is called.
+     */
+    void beginDrain(long deadline, boolean redirecting) {
+        this.redirecting = redirecting;
+        drainDeadline = deadline;
+        draining = true;
+        try {
+            clientSocket.shutdownInput(); // The blocked read sees the end of the stream
+        } catch (IOException e) {
+            Log.warn("SERVER", "Error draining client: " + e.getMessage(), server.getRoomName(), clientName, null, Message.NO_ID);
+        }
+    }
+
+    /**
+     * Waits for the client to stop reading: once it did, it does not change the game anymore.
+     * @param deadline the System.nanoTime after which to stop waiting.
+     * @return true if the client stopped, false at the deadline.
+     */
+    boolean awaitStopped(long deadline) {
+        try {
+            return stopped.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Tells a client being drained where to reconnect, then lets it close.
+     * @param target "host:port/token" of the room moved, or null to only close.
+     */
+    void redirect(String target) {
+        redirect = target;
+        released.countDown();
+    }
+
+    /**
+     * Waits for the redirect until the drain deadline, then sends it.
+     */
+    private void awaitRedirect() {
+        try {
+            released.await(drainDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String target = redirect;
+        if (target != null) {
+            sendToClient(Opcode.CONNEXION_REDIRECT, target);
         }
     }
 
+    /**
+     * Returns the player of the client.
+     * @return the player, or null if the client did not join as a player.
+     */
+    Player getPlayer() {
+        return player;
+    }
+
+    /**
+     * Waits for the thread of the client to finish.
+     * @param deadline the System.nanoTime after which to stop waiting.
+     * @return true if the client finished, false at the deadline.
+     */
+    boolean awaitFinished(long deadline) {
+        try {
+            return finished.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the responses still queued, until the drain deadline.
+     */
+    private void flush() {
+        try {
+            if (!out.flush(drainDeadline)) {
+                Log.warn("SERVER", "Responses dropped at shutdown: " + out.getPending(), server.getRoomName(), clientName, null, Message.NO_ID);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the next message of the client.
+     * @return the message, or null if the client closed the connection.
+     */
+    private Message<?> readMessage() throws IOException, ClassNotFoundException {
+        try {
+            return FrameCodec.read(in);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // COMMANDS SECTION
+
+    /**
+     * Handles the requests of a batch in order, then sends all their responses in a single message.
+     * The requests without a response do not appear in the responses. The content comes from the client:
+     * anything in it that is not a request of type String is skipped, it would kill the thread in dispatch.
+     */
+    private void batch(Message<?> message) throws IOException {
+        Object content = message.getContent();
+        if (!(content instanceof List)) {
+            Log.warn("SERVER", "Batch without a list of requests", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+            content = Collections.emptyList();
+        }
+        List<?> requests = (List<?>) content;
+        ArrayList<Message<?>> responses = new ArrayList<>(requests.size());
+        batchResponses = responses;
+        try {
+            for (Object element : requests) {
+                if (!(element instanceof Message) || !((Message<?>) element).isOfType(String.class)
+                        || !(((Message<?>) element).getContent() instanceof String)) {
+                    Log.warn("SERVER", "Skipped a batched request that is not of type String", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                Message<String> request = (Message<String>) element;
+                long receivedAt = System.nanoTime();
+                if (dispatch(request)) {
+                    metrics.recordMessage(server.getRoomName(), request.getOpcode(), System.nanoTime() - receivedAt);
+                }
+            }
+        } finally {
+            batchResponses = null;
+        }
+        sendToClient(message.getId(), Opcode.BATCH, responses);
+    }
+
+    /**
+     * Handles a request. The commands go through the filter first: a repeated command gets the response
+     * of the first one, an illegal command is refused without reaching the game.
+     * @return false if there is no handler for the request.
+     */
+    private boolean dispatch(Message<String> request) throws IOException {
+        CommandHandler handler = HANDLERS.get(request.getOpcode());
+        if (handler == null) {
+            Log.warn("SERVER", "No handler for message", server.getRoomName(), clientName, request.getPurpose(), request.getId());
+            return false;
+        }
+        if (!CommandFilter.isCommand(request.getOpcode())) {
+            handler.handle(this, request);
+            return true;
+        }
+        if (commands.isDuplicate(request.getId())) {
+            Log.info("SERVER", "Repeated command answered again", server.getRoomName(), clientName, request.getPurpose(), request.getId());
+            Message<? extends Serializable> response = commands.getResponse(request.getId());
+            if (response != null) {
+                sendMessage(response);
+            }
+            return true;
+        }
+        commandId = request.getId();
+        commandResponse = null;
+        try {
+            String refusal = CommandFilter.check(request.getOpcode(), player, server.game.getSnapshot());
+            if (refusal != null) {
+                refuse(request, refusal);
+            } else {
+                handler.handle(this, request);
+            }
+            commands.remember(commandId, commandResponse);
+        } finally {
+            commandId = Message.NO_ID;
+            commandResponse = null;
+        }
+        return true;
+    }
+
+    /**
+     * Checks a command again under the lock of the game, which the caller holds: the turn may have ended
+     * since the check of dispatch.
+     * @return null if the command can be played, the reason of the refusal otherwise.
+     */
+    private String recheck(Message<String> message) {
+        return CommandFilter.check(message.getOpcode(), player, server.game.getSnapshot());
+    }
+
+    /**
+     * Refuses a command, answering with the reason if the client waits for a response.
+     */
+    private void refuse(Message<String> message, String refusal) {
+        Log.info("SERVER", "Command refused: " + refusal, server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        if (CommandFilter.isAnswered(message.getOpcode())) {
+            sendToClient(message.getId(), message.getOpcode(), refusal);
+        }
+    }
+
+    private void ping(Message<String> message) {
+        sendToClient(message.getId(), Opcode.PING, "PONG");
+    }
+
+    /**
+     * Enables the compression if the client offers the same dictionary as ours, and answers with the
+     * dictionary in use, or "NONE". The answer itself is never compressed.
+     */
+    private void negotiateCompression(Message<String> message) {
+        String dictionary = FrameDictionary.getInstance().getName();
+        boolean accepted = dictionary.equals(message.getContent());
+        Log.info("SERVER", accepted ? "Compression enabled" : "Compression refused, offered " + message.getContent(),
+            server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendToClient(message.getId(), Opcode.CONNEXION_COMPRESSION, accepted ? dictionary : "NONE");
+        compressing = accepted;
+    }
+
+    /**
+     * Sends the cards as ids from now on if the client has the same catalog as ours, and answers with
+     * the catalog in use, or "NONE".
+     */
+    private void negotiateCatalog(Message<String> message) {
+        String catalog = CardCatalog.getInstance().getName();
+        cardIds = catalog.equals(message.getContent());
+        Log.info("SERVER", cardIds ? "Cards sent as ids" : "Card catalog refused, offered " + message.getContent(),
+            server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendToClient(message.getId(), Opcode.CONNEXION_CATALOG, cardIds ? catalog : "NONE");
+    }
+
+    private void connect(Message<String> message) {
+        String clientName = message.getSender();
+        Log.info("SERVER", "Client connected", server.getRoomName(), clientName, null, message.getId());
+
+        // The name check and the join are one change of the game, two clients cannot take the same name or id
+        String refusal = null;
+        int playerId = -1;
+        synchronized (server.game) {
+            boolean nameTaken = server.game.getPlayerList().stream()
+                .anyMatch(player -> player.getName().equals(clientName));
+            if (nameTaken) {
+                refusal = "TAKEN";
+            } else if (server.game.isGameStarted() || server.isReserved()) {
+                refusal = "STARTED"; // A room being moved here has started somewhere else
+            } else {
+                // Spectators and refused names are connections too, only the players count
+                playerId = server.game.getPlayerList().size();
+                player = new Player(playerId, clientName);
+                server.game.addPlayer(player);
+            }
+        }
+
+        if ("TAKEN".equals(refusal)) {
+            Log.info("SERVER", "Name already taken", server.getRoomName(), clientName, null, message.getId());
+            sendToClient(Opcode.CONNEXION_NAME, refusal);
+        } else if (refusal != null) {
+            Log.info("SERVER", "Game already started", server.getRoomName(), clientName, null, message.getId());
+            sendToClient(Opcode.CONNEXION_NAME, refusal);
+        } else {
+            this.clientName = clientName;
+            Log.info("SERVER", "Creating player", server.getRoomName(), clientName, null, message.getId());
+            sendToClient(message.getId(), Opcode.CONNEXION_NAME, playerId);
+            server.lobbyChanged();
+            server.publishPublicState();
+        }
+    }
+
+    /**
+     * Gives a client of a room moved here its player back, in exchange for the token of the previous server.
+     */
+    private void resume(Message<String> message) {
+        Integer playerId = server.resume(message.getContent());
+        Player resumed = null;
+        if (playerId != null) {
+            synchronized (server.game) {
+                for (Player candidate : server.game.getPlayerList()) {
+                    if (candidate.getId() == playerId) {
+                        resumed = candidate;
+                    }
+                }
+            }
+        }
+        if (resumed == null) {
+            Log.warn("SERVER", "Unknown reconnect token", server.getRoomName(), message.getSender(), message.getPurpose(), message.getId());
+            sendToClient(message.getId(), Opcode.CONNEXION_RESUME, "UNKNOWN");
+            return;
+        }
+        player = resumed;
+        clientName = resumed.getName();
+        Log.info("SERVER", "Client resumed", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendToClient(message.getId(), Opcode.CONNEXION_RESUME, playerId);
+    }
+
+    /**
+     * Holds the room for a room another server is about to move here, see Server.migrate. Only accepted
+     * from this machine.
+     */
+    private void reserve(Message<String> message) throws IOException {
+        InetAddress address = ((InetSocketAddress) clientSocket.getRemoteAddress()).getAddress();
+        String refusal = address.isLoopbackAddress() ? server.reserve(this, message.getContent()) : "REMOTE";
+        if (refusal != null) {
+            Log.warn("SERVER", "Room not held: " + refusal, server.getRoomName(), message.getSender(), message.getPurpose(), message.getId());
+        }
+        sendToClient(message.getId(), Opcode.ROOM_MIGRATE, refusal != null ? refusal : "OK");
+    }
+
+    /**
+     * Takes over a room sent by another server, see Server.migrate. Only accepted from this machine.
+     */
+    private void adopt(Message<RoomTransfer> message) throws IOException {
+        InetAddress address = ((InetSocketAddress) clientSocket.getRemoteAddress()).getAddress();
+        String refusal = address.isLoopbackAddress() ? server.adopt(this, message.getContent()) : "REMOTE";
+        if (refusal != null) {
+            Log.warn("SERVER", "Room refused: " + refusal, server.getRoomName(), message.getSender(), message.getPurpose(), message.getId());
+        }
+        sendToClient(message.getId(), Opcode.ROOM_MIGRATE, refusal != null ? refusal : "OK");
+    }
+
+    private void drawDonjonCard(Message<String> message) {
+        Log.info("SERVER", "Drawing a donjon card", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        Card card;
+        String refusal;
+        synchronized (server.game) {
+            refusal = recheck(message);
+            card = refusal == null ? server.game.donjonDraw(player) : null; // The server keeps the hands, to show their size to the others
+        }
+        if (refusal != null) {
+            refuse(message, refusal);
+            return;
+        }
+        sendCard(message.getId(), Opcode.DRAW_DONJON_CARD, card);
+        server.publishPublicState();
+        server.turns.update();
+    }
+
+    private void drawTreasureCard(Message<String> message) {
+        Log.info("SERVER", "Drawing a treasure card", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        Card card;
+        String refusal;
+        synchronized (server.game) {
+            refusal = recheck(message);
+            card = refusal == null ? server.game.treasureDraw(player) : null; // The server keeps the hands, to show their size to the others
+        }
+        if (refusal != null) {
+            refuse(message, refusal);
+            return;
+        }
+        sendCard(message.getId(), Opcode.DRAW_TREASURE_CARD, card);
+        server.publishPublicState();
+        server.turns.update();
+    }
+
+    private void getDonjonDiscard(Message<String> message) {
+        Log.debug("SERVER", "Getting the donjon discard", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendCards(message.getId(), Opcode.GET_DONJON_DISCARD, server.game.getSnapshot().getDonjonDiscard());
+    }
+
+    private void getTreasureDiscard(Message<String> message) {
+        Log.debug("SERVER", "Getting the treasure discard", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendCards(message.getId(), Opcode.GET_TREASURE_DISCARD, server.game.getSnapshot().getTreasureDiscard());
+    }
+
+    private void getDonjonDiscardPage(Message<String> message) {
+        Log.debug("SERVER", "Getting a page of the donjon discard", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendDiscardPage(message, server.game.getSnapshot().getDonjonDiscard());
+    }
+
+    private void getTreasureDiscardPage(Message<String> message) {
+        Log.debug("SERVER", "Getting a page of the treasure discard", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        sendDiscardPage(message, server.game.getSnapshot().getTreasureDiscard());
+    }
+
+    private void getCurrentPlayer(Message<String> message) {
+        Log.debug("SERVER", "Getting the current player", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        PlayerSummary currentPlayer = server.projections.currentPlayer();
+        sendToClient(message.getId(), Opcode.GET_CURRENT_PLAYER, currentPlayer);
+    }
+
+    private void getPlayerList(Message<String> message) {
+        Log.debug("SERVER", "Getting the player list", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        TableView view = server.projections.viewFor(player); // Only our own hand, the others are summarized
+        sendToClient(message.getId(), Opcode.GET_PLAYER_LIST, view);
+    }
+
+    private void initGame(Message<String> message) {
+        Log.info("SERVER", "Initializing the game", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        String refusal;
+        synchronized (server.game) { // Two players starting the game at once start it once
+            refusal = recheck(message);
+            if (refusal == null) {
+                server.bots.fill();
+                server.game.init();
+            }
+        }
+        if (refusal != null) {
+            refuse(message, refusal);
+            return;
+        }
+        server.broadcast(new Message<Boolean>("SERVER", Opcode.INIT_GAME, true, Boolean.class), this); // The waiting clients start without asking
+        server.lobbyChanged();
+        server.publishPublicState();
+        server.turns.update();
+        server.bots.turnChanged();
+    }
+
+    private void getInitGame(Message<String> message) {
+        Log.debug("SERVER", "Getting the game initialization status", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        boolean init = server.game.getSnapshot().isStarted();
+        sendToClient(message.getId(), Opcode.GET_INIT_GAME, init);
+    }
+
+    private void endTurn(Message<String> message) {
+        Log.info("SERVER", "Ending its turn", server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        String refusal;
+        synchronized (server.game) {
+            refusal = recheck(message);
+            if (refusal == null) {
+                server.game.nextPlayer();
+            }
+        }
+        if (refusal != null) {
+            refuse(message, refusal);
+            return;
+        }
+        server.publishPublicState();
+        server.turns.update();
+        server.bots.turnChanged();
+    }
+
+    /**
+     * Answers with a card, as its id if the client has our catalog, or without content if the stack is empty.
+     */
+    private void sendCard(long id, Opcode opcode, Card card) {
+        if (card == null) {
+            sendToClient(id, opcode, (Card) null); // The stack is empty
+        } else if (cardIds) {
+            sendToClient(id, opcode, card.getId());
+        } else {
+            sendToClient(id, opcode, card);
+        }
+    }
+
+    /**
+     * Answers with a list of cards, as an array of varint ids if the client has our catalog.
+     * Otherwise the cards are copied to the LinkedList the clients expect.
+     */
+    private void sendCards(long id, Opcode opcode, CardList cards) {
+        if (cardIds) {
+            sendToClient(id, opcode, CardCodec.encode(cards.getCardIds()));
+        } else {
+            sendToClient(id, opcode, new LinkedList<Card>(cards.getCards()));
+        }
+    }
+
+    /**
+     * Answers with the cards of a discard pile added since the version of the request, "since/limit".
+     * A malformed request gets the top of the pile, as a client that knows nothing.
+     */
+    private void sendDiscardPage(Message<String> message, Discard discard) {
+        long since = 0;
+        int limit = MAX_DISCARD_PAGE;
+        String query = message.getContent();
+        int slash = query != null ? query.indexOf('/') : -1;
+        try {
+            if (slash < 0) {
+                throw new NumberFormatException("missing '/'");
+            }
+            since = Long.parseLong(query.substring(0, slash));
+            limit = Math.max(1, Math.min(MAX_DISCARD_PAGE, Integer.parseInt(query.substring(slash + 1))));
+        } catch (NumberFormatException e) {
+            since = 0; // The version may have been read before the limit failed
+            limit = MAX_DISCARD_PAGE;
+            Log.warn("SERVER", "Bad discard page request: " + query, server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        }
+        DiscardPage page = discard.since(since, limit);
+        if (cardIds) {
+            page = page.withCardIds(CardCodec.encode(page.getCards()));
+        }
+        sendToClient(message.getId(), message.getOpcode(), page);
+    }
+
     /**
      * Stops the client connection by closing the client socket.
      * If an error occurs while stopping the client, it is caught and printed.
      */
     public void stop() {
         try {
+            out.close();
             if (clientSocket != null) {
                 clientSocket.close();
             }
@@ -300,11 +1197,32 @@ class ClientHandler implements Runnable {
      * @param <T> the type of the content of the message, which must implement Serializable.
      */
     public <T extends Serializable> void sendMessage(Message<T> message) {
+        if (commandId != Message.NO_ID && message.getId() == commandId) {
+            commandResponse = message; // Sent again if the command is repeated
+        }
+        if (batchResponses != null) {
+            batchResponses.add(message);
+            return;
+        }
         try {
-            out.writeObject(message);
-            out.flush();
+            SharedFrame frame = FrameCodec.encode(message, compressing);
+            sendFrame(frame);
+            frame.release();
         } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
+            Log.error("SERVER", "Error sending message: " + e.getMessage(), server.getRoomName(), clientName, message.getPurpose(), message.getId());
+        }
+    }
+
+    /**
+     * Queues an encoded message to be written to the client, without serializing it again.
+     * The frame is retained by the connection, the caller keeps its own reference.
+     * @param frame the frame to be sent to the client.
+     */
+    public void sendFrame(SharedFrame frame) {
+        if (!out.send(frame)) {
+            Log.debug("SERVER", "Frame dropped, connection closed", server.getRoomName(), clientName, frame.getPurpose(), frame.getId());
+        } else if (frame.size() != frame.getUncompressedSize()) {
+            metrics.recordCompressedFrame(frame.getUncompressedSize() - frame.size());
         }
     }
 
@@ -317,8 +1235,8 @@ class ClientHandler implements Runnable {
      * @param <T> the type of the content of the message, which must implement Serializable.
      */
     public <T extends Serializable> void sendToClient(String type, String purpose, T content) {
-        System.out.println("[SERVER] Sending message to " + this.getClientName() + ": " + type + " " + purpose);
-        Message<T> message = new Message<T>("SERVER", type, purpose, content, content.getClass());
+        Message<T> message = new Message<T>("SERVER", type, purpose, content, typeOf(content));
+        Log.debug("SERVER", "Sending message", server.getRoomName(), clientName, purpose, message.getId());
         sendMessage(message);
     }
 
@@ -331,9 +1249,41 @@ class ClientHandler implements Runnable {
      * @param content the content of the message.
      * @param <T> the type of the content of the message, which must implement Serializable.
      */
-    public <T extends Serializable> void sendToClient(UUID id, String type, String purpose, T content) {
-        System.out.println("[SERVER] Sending message to " + this.getClientName() + ": " + type + " " + purpose);
-        Message<T> message = new Message<T>(id, "SERVER", type, purpose, content, content.getClass());
+    public <T extends Serializable> void sendToClient(long id, String type, String purpose, T content) {
+        Message<T> message = new Message<T>(id, "SERVER", type, purpose, content, typeOf(content));
+        Log.debug("SERVER", "Sending message", server.getRoomName(), clientName, purpose, id);
+        sendMessage(message);
+    }
+
+    /**
+     * Sends a message to the client with a specified opcode and content.
+     * @param opcode the kind of the message.
+     * @param content the content of the message.
+     * @param <T> the type of the content of the message, which must implement Serializable.
+     */
+    public <T extends Serializable> void sendToClient(Opcode opcode, T content) {
+        Message<T> message = new Message<T>("SERVER", opcode, content, typeOf(content));
+        Log.debug("SERVER", "Sending message", server.getRoomName(), clientName, opcode.getPurpose(), message.getId());
         sendMessage(message);
     }
-}
\ No newline at end of file
+
+    /**
+     * Sends a response to the client with a specified ID, opcode and content.
+     * @param id the ID of the request being answered.
+     * @param opcode the kind of the message.
+     * @param content the content of the message.
+     * @param <T> the type of the content of the message, which must implement Serializable.
+     */
+    public <T extends Serializable> void sendToClient(long id, Opcode opcode, T content) {
+        Message<T> message = new Message<T>(id, "SERVER", opcode, content, typeOf(content));
+        Log.debug("SERVER", "Sending message", server.getRoomName(), clientName, opcode.getPurpose(), id);
+        sendMessage(message);
+    }
+
+    /**
+     * Returns the type of the content of a message, Serializable for a response without content.
+     */
+    private static java.lang.Class<? extends Serializable> typeOf(Serializable content) {
+        return content != null ? content.getClass() : Serializable.class;
+    }
+}
@@ -0,0 +1,230 @@
+package org.gregsquad.gregserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The ServerMetrics class is a singleton that collects the metrics of every server of the process.
+ * The message path only touches LongAdders and LatencyHistograms indexed by opcode, no lock and
+ * no allocation. The metrics can be scraped in the Prometheus text format from a local HTTP endpoint.
+ */
+public class ServerMetrics {
+    private static ServerMetrics instance;
+
+    private final MessageStats[] messages; // indexed by opcode ordinal
+    private final ConcurrentHashMap<String, LongAdder> roomCommands;
+    private final AtomicInteger activeConnections;
+    private final AtomicInteger activeSpectators;
+    private final LongAdder acceptedConnections;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder compressedFrames;
+    private final LongAdder compressionSavedBytes;
+    private HttpServer httpServer;
+
+    /**
+     * The counter and the handling latency of one opcode.
+     */
+    private static class MessageStats {
+        private final LongAdder count = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder latencyNanos = new LongAdder(); // Sum of the latencies, the histogram only has buckets
+    }
+
+    /**
+     * Private constructor for the ServerMetrics class.
+     */
+    private ServerMetrics() {
+        this.messages = new MessageStats[Opcode.values().length];
+        for (Opcode opcode : Opcode.values()) {
+            messages[opcode.ordinal()] = new MessageStats();
+        }
+        this.roomCommands = new ConcurrentHashMap<>();
+        this.activeConnections = new AtomicInteger();
+        this.activeSpectators = new AtomicInteger();
+        this.acceptedConnections = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.compressedFrames = new LongAdder();
+        this.compressionSavedBytes = new LongAdder();
+    }
+
+    /**
+     * Returns the singleton instance of the ServerMetrics class.
+     * @return the singleton instance of the ServerMetrics class.
+     */
+    public static synchronized ServerMetrics getInstance() {
+        if (instance == null) {
+            instance = new ServerMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Records a handled message.
+     * @param room the room that handled the message.
+     * @param opcode the kind of the message.
+     * @param nanos the time spent handling the message, in nanoseconds.
+     */
+    public void recordMessage(String room, Opcode opcode, long nanos) {
+        MessageStats stats = messages[opcode.ordinal()];
+        stats.count.increment();
+        stats.latency.record(nanos);
+        stats.latencyNanos.add(nanos);
+        LongAdder commands = roomCommands.get(room);
+        if (commands == null) {
+            commands = roomCommands.computeIfAbsent(room, key -> new LongAdder());
+        }
+        commands.increment();
+    }
+
+    /**
+     * Records a new client connection.
+     */
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    /**
+     * Records a closed client connection.
+     */
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records a connection that became a spectator.
+     */
+    public void spectatorJoined() {
+        activeSpectators.incrementAndGet();
+    }
+
+    /**
+     * Records a spectator that left.
+     */
+    public void spectatorLeft() {
+        activeSpectators.decrementAndGet();
+    }
+
+    /**
+     * Returns the counter of the bytes read from the clients, to be given to a CountingInputStream.
+     * @return the counter of the bytes received.
+     */
+    public LongAdder getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Returns the counter of the bytes written to the clients, to be given to a CountingOutputStream.
+     * @return the counter of the bytes sent.
+     */
+    public LongAdder getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Records a compressed frame queued to a client.
+     * @param savedBytes the number of bytes the compression saved on the wire.
+     */
+    public void recordCompressedFrame(int savedBytes) {
+        compressedFrames.increment();
+        compressionSavedBytes.add(savedBytes);
+    }
+
+    /**
+     * Starts the HTTP endpoint serving the metrics on /metrics.
+     * It only listens on the loopback interface. Calling it again does nothing.
+     * @param port the port of the endpoint.
+     * @throws IOException if the port cannot be bound.
+     */
+    public synchronized void expose(int port) throws IOException {
+        if (httpServer != null) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+        System.out.println("[INFO] Metrics available on http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Stops the HTTP endpoint if it is running.
+     */
+    public synchronized void stopExposing() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    /**
+     * Renders all the metrics in the Prometheus text format.
+     * Each family is one block, its TYPE line first, as the format requires.
+     * @return the metrics as text.
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE gregs_messages_total counter\n");
+        for (Opcode opcode : Opcode.values()) {
+            MessageStats stats = messages[opcode.ordinal()];
+            if (stats.count.sum() != 0) {
+                text.append("gregs_messages_total{").append(labelsOf(opcode)).append("} ").append(stats.count.sum()).append('\n');
+            }
+        }
+        text.append("# TYPE gregs_message_latency_seconds summary\n");
+        for (Opcode opcode : Opcode.values()) {
+            MessageStats stats = messages[opcode.ordinal()];
+            if (stats.count.sum() == 0) {
+                continue;
+            }
+            String labels = labelsOf(opcode);
+            for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                text.append("gregs_message_latency_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(stats.latency.getPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            text.append("gregs_message_latency_seconds_sum{").append(labels).append("} ").append(stats.latencyNanos.sum() / 1e9).append('\n');
+            text.append("gregs_message_latency_seconds_count{").append(labels).append("} ").append(stats.latency.getCount()).append('\n');
+        }
+        text.append("# TYPE gregs_room_commands_total counter\n");
+        for (Map.Entry<String, LongAdder> room : new TreeMap<>(roomCommands).entrySet()) {
+            text.append("gregs_room_commands_total{room=\"").append(room.getKey()).append("\"} ").append(room.getValue().sum()).append('\n');
+        }
+        text.append("# TYPE gregs_connections_active gauge\n");
+        text.append("gregs_connections_active ").append(activeConnections.get()).append('\n');
+        text.append("# TYPE gregs_spectators_active gauge\n");
+        text.append("gregs_spectators_active ").append(activeSpectators.get()).append('\n');
+        text.append("# TYPE gregs_connections_total counter\n");
+        text.append("gregs_connections_total ").append(acceptedConnections.sum()).append('\n');
+        text.append("# TYPE gregs_bytes_received_total counter\n");
+        text.append("gregs_bytes_received_total ").append(bytesIn.sum()).append('\n');
+        text.append("# TYPE gregs_bytes_sent_total counter\n");
+        text.append("gregs_bytes_sent_total ").append(bytesOut.sum()).append('\n');
+        text.append("# TYPE gregs_frames_compressed_total counter\n");
+        text.append("gregs_frames_compressed_total ").append(compressedFrames.sum()).append('\n');
+        text.append("# TYPE gregs_compression_saved_bytes_total counter\n");
+        text.append("gregs_compression_saved_bytes_total ").append(compressionSavedBytes.sum()).append('\n');
+        return text.toString();
+    }
+
+    private static String labelsOf(Opcode opcode) {
+        return "type=\"" + opcode.getType() + "\",purpose=\"" + opcode.getPurpose() + "\"";
+    }
+}
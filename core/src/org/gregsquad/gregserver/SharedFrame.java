@@ -0,0 +1,93 @@
+package org.gregsquad.gregserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SharedFrame class is an encoded message, ready to be written on any number of connections.
+ * The bytes live in a pooled direct buffer, holding the length prefix followed by the serialized
+ * message. Every holder of the frame owns a reference: the encoder gets the first one, each outbound
+ * queue retains the frame until it is written. The buffer goes back to the pool with the last release.
+ */
+public final class SharedFrame {
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final String purpose;
+    private final long id;
+    private final int uncompressedSize;
+
+    /**
+     * Constructs a new SharedFrame owning a pooled buffer.
+     * @param buffer the frame bytes, between position 0 and the limit.
+     * @param purpose the purpose of the encoded message, for the logs.
+     * @param id the id of the encoded message, for the logs.
+     * @param uncompressedSize the size the frame would have without compression.
+     */
+    SharedFrame(ByteBuffer buffer, String purpose, long id, int uncompressedSize) {
+        this.buffer = buffer;
+        this.purpose = purpose;
+        this.id = id;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    /**
+     * Returns a read-only view of the frame bytes, with its own position.
+     * Several connections can write their own view at the same time.
+     * @return a new view of the frame.
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the size of the frame on the wire, length prefix included.
+     * @return the number of bytes of the frame.
+     */
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * Returns the size the frame would have without compression, length prefix included.
+     * @return the number of bytes of the uncompressed frame, equal to size() if the frame is not compressed.
+     */
+    public int getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    public String getPurpose() {
+        return purpose;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Adds a reference to the frame.
+     * @return this frame.
+     * @throws IllegalStateException if the frame was already released.
+     */
+    public SharedFrame retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("[FRAME] Retained after release");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference to the frame. The last release gives the buffer back to the pool.
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            FramePool.getInstance().release(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("[FRAME] Released too many times");
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.gregsquad.gregserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.gregsquad.gregsadventure.game.PublicTableState;
+
+/**
+ * The SpectatorRelay class streams the public state of a room to its spectators.
+ *
+ * The fan-out has two tiers. The players only hand the latest state to the relay thread and
+ * never wait: the relay encodes it once into a shared frame and passes the frame to its groups.
+ * Each group is a thread with a selector, writing the frame to up to GROUP_SIZE spectators with
+ * non-blocking writes.
+ *
+ * Every state replaces the previous one as a whole, so both tiers conflate: a spectator that is
+ * still writing an old frame skips directly to the latest one. A slow spectator costs no memory
+ * and never delays the others. Spectators never touch the game itself.
+ */
+public class SpectatorRelay implements Runnable {
+    private static final int GROUP_SIZE = 1024;
+
+    private final String room;
+    private final ServerMetrics metrics;
+    private final AtomicReference<PublicTableState> pending = new AtomicReference<>();
+    private final List<SpectatorGroup> groups = new CopyOnWriteArrayList<>();
+    private final AtomicInteger spectators = new AtomicInteger();
+    private SharedFrame latest; // Last frame handed to the groups, retained for the groups created later
+    private volatile Thread relay;
+    private volatile boolean running = true;
+
+    /**
+     * Constructs a new SpectatorRelay for a room. Its threads start with the first spectator.
+     * @param room the name of the room, for the logs.
+     */
+    public SpectatorRelay(String room) {
+        this.room = room;
+        this.metrics = ServerMetrics.getInstance();
+    }
+
+    /**
+     * Publishes a new public state. Never blocks: if the relay is behind, the previous state is skipped.
+     * @param state the new state of the room.
+     */
+    public void publish(PublicTableState state) {
+        pending.set(state);
+        Thread thread = relay;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the number of connected spectators.
+     * @return the number of spectators.
+     */
+    public int getSpectatorCount() {
+        return spectators.get();
+    }
+
+    /**
+     * Takes over the connection of a new spectator. The connection must not be used by anybody else anymore.
+     * The spectator starts with the last state sent, if any, then gets the states published from now on.
+     * @param channel the connection of the spectator, in blocking mode.
+     * @return false if nothing was published yet, the caller then publishes a state for the spectator to start with.
+     */
+    public synchronized boolean add(SocketChannel channel) {
+        if (!running) {
+            abandon(channel);
+            return true;
+        }
+        if (relay == null) {
+            Thread thread = new Thread(this, "relay-" + room);
+            thread.setDaemon(true);
+            relay = thread;
+            thread.start();
+        }
+        SpectatorGroup group = null;
+        for (SpectatorGroup candidate : groups) {
+            if (candidate.size.get() < GROUP_SIZE) {
+                group = candidate;
+                break;
+            }
+        }
+        if (group == null) {
+            try {
+                group = new SpectatorGroup(groups.size());
+            } catch (IOException e) {
+                Log.error("SERVER", "Cannot open a spectator group: " + e.getMessage(), room, null, null, Message.NO_ID);
+                abandon(channel);
+                return true;
+            }
+            if (latest != null) {
+                group.publish(latest);
+            }
+            groups.add(group);
+        }
+        spectators.incrementAndGet();
+        metrics.spectatorJoined();
+        group.add(channel);
+        return latest != null || pending.get() != null;
+    }
+
+    /**
+     * Disconnects every spectator and stops the threads.
+     */
+    public synchronized void stop() {
+        running = false;
+        Thread thread = relay;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        for (SpectatorGroup group : groups) {
+            group.selector.wakeup();
+        }
+        if (latest != null) {
+            latest.release();
+            latest = null;
+        }
+    }
+
+    /**
+     * The loop of the relay thread: encodes each new state once and hands it to every group.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            PublicTableState state = pending.getAndSet(null);
+            if (state == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            SharedFrame frame;
+            try {
+                frame = FrameCodec.encode(new Message<PublicTableState>(Message.NO_ID, "SERVER", Opcode.PUBLIC_STATE, state, PublicTableState.class));
+            } catch (IOException e) {
+                Log.error("SERVER", "Error encoding public state: " + e.getMessage(), room, null, Opcode.PUBLIC_STATE.getPurpose(), Message.NO_ID);
+                continue;
+            }
+            synchronized (this) {
+                if (!running) {
+                    frame.release();
+                    break;
+                }
+                for (SpectatorGroup group : groups) {
+                    group.publish(frame);
+                }
+                if (latest != null) {
+                    latest.release();
+                }
+                latest = frame; // Keeps the reference of the encoder
+            }
+        }
+    }
+
+    /**
+     * Closes the connection of a spectator that could not be added or left.
+     */
+    private void abandon(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        metrics.connectionClosed();
+    }
+
+    /**
+     * A spectator connection and the frame being written to it.
+     */
+    private static final class Spectator {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private SharedFrame frame; // Retained while it is written
+        private ByteBuffer view;
+        private SharedFrame delivered; // Last frame completely written, not retained, only compared
+
+        Spectator(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A thread writing the frames of the relay to a group of spectators.
+     */
+    private final class SpectatorGroup implements Runnable {
+        private final Selector selector;
+        private final AtomicInteger size = new AtomicInteger();
+        private final ConcurrentLinkedQueue<SocketChannel> joining = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<SharedFrame> published = new AtomicReference<>(); // Handed by the relay, not taken yet
+        private final List<Spectator> members = new ArrayList<>();
+        private final ByteBuffer discarded = ByteBuffer.allocate(512);
+        private SharedFrame current; // Latest frame taken, owned by the group thread
+
+        SpectatorGroup(int index) throws IOException {
+            this.selector = Selector.open();
+            Thread thread = new Thread(this, "spectators-" + room + "-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void add(SocketChannel channel) {
+            size.incrementAndGet();
+            joining.offer(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Hands a new frame to the group. Called by the relay thread only.
+         */
+        void publish(SharedFrame frame) {
+            SharedFrame skipped = published.getAndSet(frame.retain());
+            if (skipped != null) {
+                skipped.release();
+            }
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    acceptJoining();
+                    SharedFrame next = published.getAndSet(null);
+                    if (next != null) {
+                        if (current != null) {
+                            current.release();
+                        }
+                        current = next;
+                        for (Spectator spectator : new ArrayList<>(members)) {
+                            if (spectator.frame == null) {
+                                startWriting(spectator);
+                            }
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Spectator spectator = (Spectator) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            discardInput(spectator);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(spectator);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("SERVER", "Spectator group failed: " + e.getMessage(), room, null, null, Message.NO_ID);
+            } finally {
+                for (Spectator spectator : new ArrayList<>(members)) {
+                    drop(spectator);
+                }
+                SocketChannel channel;
+                while ((channel = joining.poll()) != null) {
+                    leave();
+                    abandon(channel);
+                }
+                if (current != null) {
+                    current.release();
+                }
+                SharedFrame skipped = published.getAndSet(null);
+                if (skipped != null) {
+                    skipped.release();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing left to do
+                }
+            }
+        }
+
+        private void acceptJoining() {
+            SocketChannel channel;
+            while ((channel = joining.poll()) != null) {
+                Spectator spectator = new Spectator(channel);
+                try {
+                    channel.configureBlocking(false);
+                    spectator.key = channel.register(selector, SelectionKey.OP_READ, spectator);
+                } catch (IOException e) {
+                    leave();
+                    abandon(channel);
+                    continue;
+                }
+                members.add(spectator);
+                if (current != null) {
+                    startWriting(spectator);
+                }
+            }
+        }
+
+        /**
+         * Starts writing the current frame to a spectator that is not writing anything.
+         */
+        private void startWriting(Spectator spectator) {
+            if (current == null || current == spectator.delivered) {
+                return;
+            }
+            spectator.frame = current.retain();
+            spectator.view = current.view();
+            write(spectator);
+        }
+
+        /**
+         * Writes as much of the frame as the socket takes without blocking.
+         */
+        private void write(Spectator spectator) {
+            try {
+                spectator.channel.write(spectator.view);
+            } catch (IOException e) {
+                drop(spectator);
+                return;
+            }
+            if (spectator.view.hasRemaining()) {
+                spectator.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            metrics.getBytesOut().add(spectator.frame.size());
+            spectator.delivered = spectator.frame;
+            spectator.frame.release();
+            spectator.frame = null;
+            spectator.view = null;
+            spectator.key.interestOps(SelectionKey.OP_READ);
+            startWriting(spectator); // A newer frame may have arrived meanwhile
+        }
+
+        /**
+         * Spectators have nothing to say, reading only detects the closed connections.
+         */
+        private void discardInput(Spectator spectator) {
+            try {
+                int read;
+                do {
+                    discarded.clear();
+                    read = spectator.channel.read(discarded);
+                } while (read > 0);
+                if (read < 0) {
+                    drop(spectator);
+                }
+            } catch (IOException e) {
+                drop(spectator);
+            }
+        }
+
+        private void drop(Spectator spectator) {
+            if (!members.remove(spectator)) {
+                return;
+            }
+            if (spectator.frame != null) {
+                spectator.frame.release();
+                spectator.frame = null;
+            }
+            if (spectator.key != null) {
+                spectator.key.cancel();
+            }
+            leave();
+            abandon(spectator.channel);
+        }
+
+        private void leave() {
+            size.decrementAndGet();
+            spectators.decrementAndGet();
+            metrics.spectatorLeft();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.gregsquad.gregserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TimerWheel class runs the timers of every room of the process on one thread: a hashed wheel of
+ * WHEEL_SIZE buckets, one per tick of TICK_MS. A timer goes in the bucket of its deadline, with the
+ * number of turns of the wheel left before it expires: scheduling and cancelling are constant time
+ * whatever the number of timers, and the thread only looks at one bucket per tick.
+ * The deadlines are rounded up to the next tick, a timer never expires early and at most a tick late.
+ *
+ * Scheduling and cancelling only add the timer to a queue, any thread can call them without a lock.
+ * The tasks run on the thread of the wheel: they must be short and must not block, the other timers
+ * wait for them.
+ */
+final class TimerWheel {
+    static final long TICK_MS = 10;
+    static final int WHEEL_SIZE = 1024; // A power of two, about ten seconds per turn of the wheel
+    private static final int MAX_TRANSFERS = 100000; // Timers moved from the queue into the wheel per tick
+
+    private static final TimerWheel INSTANCE = new TimerWheel(TICK_MS, WHEEL_SIZE);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final long startTime = System.nanoTime();
+    private long tick; // Only used by the thread of the wheel
+
+    /**
+     * A task scheduled on the wheel, until it expires or is cancelled.
+     */
+    final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // Since the start of the wheel, in nanoseconds
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds; // Turns of the wheel left before the deadline
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timer. Its task does not run, unless it is already running.
+         * @return true if the timer was cancelled, false if it had already expired or been cancelled.
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            cancelled.add(this); // Taken out of its bucket by the thread of the wheel
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("TIMER", "Timer task failed: " + e, null, null, null, Message.NO_ID);
+            }
+        }
+    }
+
+    /**
+     * The timers of a tick of the wheel, in a doubly linked list so a cancelled one is removed in place.
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            pending.decrementAndGet();
+        }
+
+        /**
+         * Runs the timers of this turn of the wheel and counts down the others.
+         * @param now the time of the tick, since the start of the wheel.
+         */
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0 && timeout.deadline <= now) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private TimerWheel(long tickMillis, int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The size of the wheel must be a power of two: " + size);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the wheel shared by the rooms of the process. Its thread starts with the first timer.
+     * @return the wheel.
+     */
+    static TimerWheel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs a task once, after a delay.
+     * @param task the task, run on the thread of the wheel.
+     * @param delay the delay, rounded up to the next tick.
+     * @param unit the unit of the delay.
+     * @return the timer, to cancel it.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::run, "timer-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of timers waiting, cancelled ones included until the wheel drops them.
+     * @return the number of timers.
+     */
+    long getPending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            long now = awaitNextTick();
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(now);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the end of the current tick.
+     * @return the time of the end of the tick, since the start of the wheel.
+     */
+    private long awaitNextTick() {
+        long end = tickNanos * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            long sleepNanos = end - now;
+            if (sleepNanos <= 0) {
+                return now;
+            }
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999)); // Rounded up, never early
+            } catch (InterruptedException e) {
+                // The wheel only stops with the process
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Puts the timers scheduled since the last tick in the bucket of their deadline. A deadline already
+     * passed goes in the bucket of the current tick.
+     */
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                pending.decrementAndGet(); // Never got in a bucket
+                continue;
+            }
+            long ticks = (timeout.deadline + tickNanos - 1) / tickNanos; // Rounded up to the end of a tick
+            timeout.rounds = (ticks - tick - 1) / wheel.length;
+            wheel[(int) (Math.max(ticks - 1, tick) & mask)].add(timeout);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.gregsquad.gregserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gregsquad.gregsadventure.card.Monster;
+import org.gregsquad.gregsadventure.game.Game;
+import org.gregsquad.gregsadventure.game.GameSnapshot;
+
+/**
+ * The TurnScheduler class keeps the game of a room moving when a player does not play.
+ * Each turn has a deadline, and each phase of the turn its own shorter one. When a deadline passes and
+ * the game is still where it was, the scheduler plays the default move for the player: the monster is
+ * fought alone, the extra cards are given away, a turn without a door opened is lost. When the deadline
+ * of the turn passes, its remaining phases are played that way and the next player starts.
+ * The timers of every room are on the shared TimerWheel, the scheduler only moves them when the turn
+ * or the phase changes.
+ *
+ * System properties: gregs.turn.ms, the time of a turn (120 s by default), and gregs.turn.phase.ms, the
+ * time of a phase (30 s by default). 0 disables a deadline.
+ */
+class TurnScheduler {
+    private static final long TURN_MILLIS = Long.getLong("gregs.turn.ms", 120000);
+    private static final long PHASE_MILLIS = Long.getLong("gregs.turn.phase.ms", 30000);
+
+    private final Server server;
+    private final TimerWheel wheel = TimerWheel.getInstance();
+    private Game game; // The game of the timers, replaced when a room is moved here
+    private long turn;
+    private Game.Phase phase;
+    private TimerWheel.Timeout turnTimeout;
+    private TimerWheel.Timeout phaseTimeout;
+    private volatile boolean stopped; // Read by the timers without the lock of the scheduler
+
+    /**
+     * Constructs the scheduler of a room, without timer.
+     * @param server the room.
+     */
+    TurnScheduler(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Moves the timers to the current turn and phase of the game. Called after every change of the game
+     * that may end a phase, it does nothing if the phase is the same.
+     */
+    synchronized void update() {
+        Game current = server.game;
+        GameSnapshot snapshot = current.getSnapshot();
+        if (stopped || !snapshot.isStarted()) {
+            cancel();
+            return;
+        }
+        boolean newTurn = current != game || snapshot.getTurn() != turn;
+        if (!newTurn && snapshot.getPhase() == phase) {
+            return;
+        }
+        game = current;
+        turn = snapshot.getTurn();
+        phase = snapshot.getPhase();
+        Game timed = current;
+        long timedTurn = turn;
+        Game.Phase timedPhase = phase;
+        if (newTurn) {
+            if (turnTimeout != null) {
+                turnTimeout.cancel();
+            }
+            turnTimeout = TURN_MILLIS > 0 ? wheel.schedule(() -> expire(timed, timedTurn, null), TURN_MILLIS, TimeUnit.MILLISECONDS) : null;
+        }
+        if (phaseTimeout != null) {
+            phaseTimeout.cancel();
+        }
+        phaseTimeout = PHASE_MILLIS > 0 ? wheel.schedule(() -> expire(timed, timedTurn, timedPhase), PHASE_MILLIS, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * Cancels the timers for good, when the room stops or moves away.
+     */
+    synchronized void stop() {
+        stopped = true;
+        cancel();
+    }
+
+    private void cancel() {
+        if (turnTimeout != null) {
+            turnTimeout.cancel();
+            turnTimeout = null;
+        }
+        if (phaseTimeout != null) {
+            phaseTimeout.cancel();
+            phaseTimeout = null;
+        }
+        game = null;
+        phase = null;
+    }
+
+    /**
+     * Plays the default move of a deadline, on the thread of the wheel, if the game did not move since
+     * the timer was set. The check and the move are made under the lock of the game.
+     * @param timedPhase the phase of the deadline, null for the deadline of the whole turn.
+     */
+    private void expire(Game timed, long timedTurn, Game.Phase timedPhase) {
+        synchronized (timed) {
+            if (stopped || timed != server.game || timed.getTurn() != timedTurn || (timedPhase != null && timed.getPhase() != timedPhase)) {
+                return;
+            }
+            if (timedPhase != null) {
+                playPhase(timed);
+            } else {
+                while (timed.getTurn() == timedTurn) {
+                    playPhase(timed);
+                }
+            }
+        }
+        String what = timedPhase != null ? "Phase " + timedPhase : "Turn " + timedTurn;
+        Log.info("SERVER", what + " timed out, default move played", server.getRoomName(), null, null, Message.NO_ID);
+        server.publishPublicState();
+        server.bots.turnChanged();
+        update();
+    }
+
+    /**
+     * Plays the default move of the current phase, which moves the game to another phase.
+     */
+    private static void playPhase(Game game) {
+        switch (game.getPhase()) {
+            case FIGHT:
+            case HELP:
+                Monster monster = game.getMonster();
+                if (monster != null) {
+                    game.fight(monster); // Alone: the helper did not answer in time
+                } else {
+                    game.nextPlayer();
+                }
+                break;
+            case CHARITY:
+                game.charity();
+                break;
+            case DRAW: // The player did not open a door, the turn is lost
+            case END:
+            default:
+                game.nextPlayer();
+                break;
+        }
+    }
+}